@@ -0,0 +1,80 @@
+package ru.revolut.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read path of GET /account/:accountNumber: account lookup, conversion to {@link AccountView}
+ * and its serialization by the Gson instance of {@link MoneyTransferAPI},
+ * compared to {@link AccountJson} encoding the balance in cents without a view.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountViewBenchmark {
+
+    @Param({"10000"})
+    public int accounts;
+
+    private PaymentEngine engine;
+
+    private AccountView view;
+
+    private int next;
+
+    private final byte[] json = new byte[128];
+
+    @Setup(Level.Trial)
+    public void createAccounts() throws IOException, PaymentEngineException {
+        engine = new PaymentEngine(new PaymentEngineConfig());
+        for (int i=0;i<accounts;i++) engine.createAccountCents(i, 1234567L*i);
+        view = new AccountView(42, new BigDecimal("12345.67"));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    @Benchmark
+    public AccountView get_account_view() throws PaymentEngineException {
+        next = (next+1)%accounts;
+        return engine.getAccountView(next);
+    }
+
+    @Benchmark
+    public String account_view_to_json() {
+        return MoneyTransferAPI.gson.toJson(view);
+    }
+
+    @Benchmark
+    public String get_account_as_json() throws PaymentEngineException {
+        next = (next+1)%accounts;
+        return MoneyTransferAPI.gson.toJson(engine.getAccountView(next));
+    }
+
+    @Benchmark
+    public int get_account_as_encoded_json() throws PaymentEngineException {
+        next = (next+1)%accounts;
+        return AccountJson.encode(next, engine.getAccountBalanceCents(next), false, json);
+    }
+
+}
@@ -0,0 +1,72 @@
+package ru.revolut.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creation of a million accounts in a fresh engine, i.e. including every growth of the ledger on the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CreateAccountBenchmark {
+
+    @Param({"1000000"})
+    public int accounts;
+
+    @Param({"false"})
+    public boolean presized;
+
+    private PaymentEngine engine;
+
+    private final AtomicInteger numbers = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void createEngine() throws IOException {
+        engine = new PaymentEngine(new PaymentEngineConfig());
+        if (presized) engine.presize(accounts);
+        numbers.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    private void createAccounts() throws PaymentEngineException {
+        for (int i = numbers.getAndIncrement(); i<accounts; i = numbers.getAndIncrement())
+            engine.createAccountCents(i, 10000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void create_accounts_1_thread() throws PaymentEngineException {
+        createAccounts();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void create_accounts_max_threads() throws PaymentEngineException {
+        createAccounts();
+    }
+
+}
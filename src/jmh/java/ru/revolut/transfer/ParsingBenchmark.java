@@ -0,0 +1,41 @@
+package ru.revolut.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of money amounts taken from request parameters: {@link Cents#parse} against the former BigDecimal path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    @Param({"12", "12345.67"})
+    public String amount;
+
+    @Benchmark
+    public long cents() throws PaymentEngineException {
+        return Cents.parse(amount);
+    }
+
+    @Benchmark
+    public long big_decimal() {
+        return new BigDecimal(amount).movePointRight(2).longValueExact();
+    }
+
+}
@@ -0,0 +1,137 @@
+package ru.revolut.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link PaymentEngine#transferCents} under different access patterns:
+ * uniform - both accounts are picked uniformly,
+ * zipf - both accounts are picked by Zipf distribution with exponent {@link #skew},
+ * hot - every transfer goes to or from account 0, other side is picked uniformly.
+ *
+ * Account pairs are generated in advance, so random number generation is not measured.
+ * Same benchmark is run by 1, 4 and as many threads as there are processors, in every execution mode of the engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    private static final int PAIRS = 1<<16;
+
+    @Param({"uniform", "zipf", "hot"})
+    public String distribution;
+
+    @Param({"10000"})
+    public int accounts;
+
+    @Param({"1.0"})
+    public double skew;
+
+    @Param({"false"})
+    public boolean hotAccount;
+
+    @Param({"LOCKING", "SEQUENCED", "PARTITIONED"})
+    public PaymentEngineConfig.ExecutionMode mode;
+
+    private PaymentEngine engine;
+
+    private double[] zipf;
+
+    @Setup(Level.Trial)
+    public void createAccounts() throws IOException, PaymentEngineException {
+        PaymentEngineConfig config = new PaymentEngineConfig();
+        config.setExecutionMode(mode);
+        engine = new PaymentEngine(config);
+        engine.presize(accounts);
+        // large enough for transfers never to fail for lack of money
+        for (int i=0;i<accounts;i++) engine.createAccountCents(i, Long.MAX_VALUE/4/accounts);
+        if (hotAccount) engine.markAccountHot(0);
+        if ("zipf".equals(distribution)){
+            zipf = new double[accounts];
+            double sum = 0;
+            for (int i=0;i<accounts;i++) zipf[i] = sum += 1/Math.pow(i+1, skew);
+            for (int i=0;i<accounts;i++) zipf[i] /= sum;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    /**
+     * Pregenerated account pairs of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Pairs {
+
+        int[] from = new int[PAIRS];
+        int[] to = new int[PAIRS];
+        int next;
+
+        @Setup(Level.Trial)
+        public void generate(TransferBenchmark benchmark) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+            for (int i=0;i<PAIRS;i++){
+                do {
+                    from[i] = benchmark.pick(random);
+                    to[i] = benchmark.pick(random);
+                    if ("hot".equals(benchmark.distribution)) {
+                        if (i%2==0) from[i] = 0; else to[i] = 0;
+                    }
+                } while (from[i]==to[i]);
+            }
+        }
+    }
+
+    private int pick(SplittableRandom random) {
+        if (zipf==null) return random.nextInt(accounts);
+        int i = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(i<0 ? -i-1 : i, accounts-1);
+    }
+
+    private void transfer(Pairs pairs) throws PaymentEngineException {
+        int i = pairs.next++ & (PAIRS-1);
+        engine.transferCents(pairs.from[i], pairs.to[i], 1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void transfer_1_thread(Pairs pairs) throws PaymentEngineException {
+        transfer(pairs);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void transfer_4_threads(Pairs pairs) throws PaymentEngineException {
+        transfer(pairs);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void transfer_max_threads(Pairs pairs) throws PaymentEngineException {
+        transfer(pairs);
+    }
+
+}
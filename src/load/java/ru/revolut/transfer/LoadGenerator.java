@@ -0,0 +1,331 @@
+package ru.revolut.transfer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator that drives the REST API end to end, run with {@code mvn -Pload compile exec:java}.
+ *
+ * It starts the server on localhost with settings from system properties, creates accounts in bulk and then sends
+ * requests at a fixed rate for the given time, a mix of account creations, reads and transfers between accounts
+ * picked uniformly, by Zipf distribution or with a hot spot. Traffic is open loop: request i is due at
+ * {@code i/rate} seconds after the start whether or not earlier requests have completed, and its latency is
+ * measured from that moment, so a stalled server is not hidden by the generator waiting for it
+ * (coordinated omission). Time spent on the wire alone is reported as service time.
+ *
+ * At the end balances of all accounts are read in one snapshot and their total is checked against the money
+ * created, the process exits with status 1 if money is not conserved or requests have failed.
+ *
+ * Settings are system properties:
+ * <ul>
+ *     <li>{@code load.accounts} - accounts created before the run (default 10000)</li>
+ *     <li>{@code load.rate} - requests per second (default 1000)</li>
+ *     <li>{@code load.durationSeconds} - length of the measured run (default 30)</li>
+ *     <li>{@code load.warmupSeconds} - length of the run before measurement to warm up both sides (default 5)</li>
+ *     <li>{@code load.connections} - concurrent connections (default 64)</li>
+ *     <li>{@code load.mix} - weights of operations (default {@code create=5,read=25,transfer=70})</li>
+ *     <li>{@code load.distribution} - {@code uniform}, {@code zipf} or {@code hot} (default uniform)</li>
+ *     <li>{@code load.skew} - exponent of Zipf distribution (default 1.0)</li>
+ *     <li>{@code load.hotShare} - share of transfers to or from account 0 with hot distribution (default 0.5)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static final long INITIAL_BALANCE_CENTS = 100_000;
+
+    private static final long CREATED_BALANCE_CENTS = 1_000;
+
+    private static final int IMPORT_CHUNK = 10_000;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    enum Operation { CREATE, READ, TRANSFER }
+
+    /**
+     * Outcomes and latencies of one operation.
+     */
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+    }
+
+    private final String base;
+    private final int accounts;
+    private final double rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int connections;
+    private final int[] weights = new int[Operation.values().length];
+    private final String distribution;
+    private final double hotShare;
+    private final double[] zipf;
+    private final Stats[] stats = new Stats[Operation.values().length];
+    private final AtomicInteger nextAccount;
+
+    LoadGenerator(int port) {
+        base = "http://localhost:"+port;
+        accounts = Integer.getInteger("load.accounts", 10000);
+        rate = Double.parseDouble(System.getProperty("load.rate", "1000"));
+        durationSeconds = Integer.getInteger("load.durationSeconds", 30);
+        warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+        connections = Integer.getInteger("load.connections", 64);
+        distribution = System.getProperty("load.distribution", "uniform");
+        hotShare = Double.parseDouble(System.getProperty("load.hotShare", "0.5"));
+        for (String item : System.getProperty("load.mix", "create=5,read=25,transfer=70").split(",")){
+            String[] pair = item.split("=");
+            weights[Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+        if ("zipf".equals(distribution)){
+            double skew = Double.parseDouble(System.getProperty("load.skew", "1.0"));
+            zipf = new double[accounts];
+            double sum = 0;
+            for (int i=0;i<accounts;i++) zipf[i] = sum += 1/Math.pow(i+1, skew);
+            for (int i=0;i<accounts;i++) zipf[i] /= sum;
+        } else zipf = null;
+        for (int i=0;i<stats.length;i++) stats[i] = new Stats();
+        nextAccount = new AtomicInteger(accounts);
+        // connections beyond this limit would be closed after every request instead of being kept alive
+        System.setProperty("http.maxConnections", Integer.toString(connections));
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        MoneyTransferAPI.start(config);
+        boolean passed;
+        try {
+            passed = new LoadGenerator(config.getPort()).run();
+        } finally {
+            MoneyTransferAPI.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return true if money is conserved and no request has failed
+     */
+    boolean run() throws IOException, InterruptedException {
+        awaitServer();
+        createAccounts();
+        System.out.printf(Locale.ROOT, "%d accounts created, sending %.0f requests/s over %d connections for %d s, %s distribution%n",
+                accounts, rate, connections, durationSeconds, distribution);
+        long start = System.nanoTime()+10_000_000L;
+        long measured = start+warmupSeconds*1_000_000_000L;
+        long end = measured+durationSeconds*1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i=0;i<connections;i++){
+            int worker = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    drive(worker, start, measured, end);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-"+i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        double elapsed = (System.nanoTime()-measured)/1e9;
+        return report(elapsed) & checkConservation();
+    }
+
+    /**
+     * Send every {@code connections}-th request of the schedule starting from the worker's one.
+     * Requests due before {@code measured} are not recorded.
+     */
+    private void drive(int worker, long start, long measured, long end) {
+        SplittableRandom random = new SplittableRandom(worker*0x9E3779B97F4A7C15L);
+        int total = 0;
+        for (int weight : weights) total += weight;
+        for (long k=worker;;k+=connections){
+            long due = start+(long) (k*1e9/rate);
+            if (due>=end) return;
+            long now;
+            while ((now = System.nanoTime())<due) LockSupport.parkNanos(due-now);
+            Operation operation = pick(random, total);
+            Stats stats = this.stats[operation.ordinal()];
+            int status;
+            try {
+                status = send(operation, random);
+            } catch (IOException e){
+                status = -1;
+            }
+            long completed = System.nanoTime();
+            if (due<measured) continue;
+            stats.latency.record(completed-due);
+            stats.service.record(completed-now);
+            if (status==200) stats.succeeded.increment();
+            else if (status>=400 && status<500) stats.rejected.increment();
+            else stats.failed.increment();
+        }
+    }
+
+    private Operation pick(SplittableRandom random, int total) {
+        int point = random.nextInt(total);
+        for (Operation operation : Operation.values()){
+            point -= weights[operation.ordinal()];
+            if (point<0) return operation;
+        }
+        return Operation.TRANSFER;
+    }
+
+    private int send(Operation operation, SplittableRandom random) throws IOException {
+        switch (operation){
+            case CREATE:
+                return send("POST", "/account/"+nextAccount.getAndIncrement()+"/"+amount(CREATED_BALANCE_CENTS), null, null);
+            case READ:
+                return send("GET", "/account/"+account(random), null, null);
+            default:
+                int from;
+                int to;
+                do {
+                    from = account(random);
+                    to = account(random);
+                    if ("hot".equals(distribution) && random.nextDouble()<hotShare){
+                        if (random.nextBoolean()) from = 0; else to = 0;
+                    }
+                } while (from==to);
+                return send("PUT", "/transfer/"+from+"/"+to+"/"+amount(1+random.nextInt(100)), null, null);
+        }
+    }
+
+    private int account(SplittableRandom random) {
+        if (zipf==null) return random.nextInt(accounts);
+        int i = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(i<0 ? -i-1 : i, accounts-1);
+    }
+
+    private static String amount(long cents) {
+        return cents/100+"."+(cents%100<10 ? "0" : "")+cents%100;
+    }
+
+    /**
+     * Send a request and read its response to the end, so the connection is kept alive.
+     * @param body CSV body or null
+     * @param reply receives the response body if not null
+     * @return HTTP status
+     */
+    private int send(String method, String path, String body, StringBuilder reply) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(base+path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(10_000);
+        connection.setReadTimeout(60_000);
+        if (body!=null){
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/csv");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status<400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in!=null){
+            try {
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer))>=0;)
+                    if (reply!=null) reply.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    private void awaitServer() throws InterruptedException {
+        long deadline = System.nanoTime()+10_000_000_000L;
+        while (true){
+            try {
+                if (send("GET", "/metrics", null, null)==200) return;
+            } catch (IOException e){
+                if (System.nanoTime()>deadline) throw new IllegalStateException("Server has not started: "+e.getMessage(), e);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private void createAccounts() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int from=0;from<accounts;from+=IMPORT_CHUNK){
+            csv.setLength(0);
+            for (int number=from;number<Math.min(accounts, from+IMPORT_CHUNK);number++)
+                csv.append(number).append(',').append(amount(INITIAL_BALANCE_CENTS)).append('\n');
+            StringBuilder reply = new StringBuilder();
+            int status = send("POST", "/accounts?expected="+accounts, csv.toString(), reply);
+            if (status!=200) throw new IllegalStateException("Accounts are not created: "+status+" "+reply);
+        }
+    }
+
+    private boolean report(double elapsed) {
+        boolean passed = true;
+        long requests = 0;
+        for (Operation operation : Operation.values()){
+            Stats stats = this.stats[operation.ordinal()];
+            LatencyHistogram.Snapshot latency = stats.latency.snapshot();
+            LatencyHistogram.Snapshot service = stats.service.snapshot();
+            if (latency.getCount()==0) continue;
+            requests += latency.getCount();
+            passed &= stats.failed.sum()==0;
+            System.out.printf(Locale.ROOT, "%-8s %d requests, %.1f/s, %d succeeded, %d rejected, %d failed%n",
+                    operation.name().toLowerCase(Locale.ROOT), latency.getCount(), latency.getCount()/elapsed,
+                    stats.succeeded.sum(), stats.rejected.sum(), stats.failed.sum());
+            System.out.println("         latency "+quantiles(latency));
+            System.out.println("         service "+quantiles(service));
+        }
+        System.out.printf(Locale.ROOT, "total    %d requests, %.1f/s of %.0f/s scheduled%n", requests, requests/elapsed, rate);
+        return passed;
+    }
+
+    private static String quantiles(LatencyHistogram.Snapshot snapshot) {
+        StringBuilder line = new StringBuilder();
+        for (double quantile : QUANTILES)
+            line.append(String.format(Locale.ROOT, "p%s=%.3fms ", BigDecimal.valueOf(quantile*100).stripTrailingZeros().toPlainString(),
+                    snapshot.valueAt(quantile)/1e6));
+        return line.append(String.format(Locale.ROOT, "max=%.3fms", snapshot.getMax()/1e6)).toString();
+    }
+
+    /**
+     * @return true if the total of a snapshot of all balances equals money put into the accounts
+     */
+    private boolean checkConservation() throws IOException {
+        StringBuilder reply = new StringBuilder();
+        int status = send("GET", "/accounts/snapshot", null, reply);
+        if (status!=200){
+            System.out.println("Snapshot of balances has failed: "+status+" "+reply);
+            return false;
+        }
+        JsonObject snapshot = new JsonParser().parse(reply.toString()).getAsJsonObject();
+        long created = 0;
+        BigDecimal sum = BigDecimal.ZERO;
+        for (JsonElement account : snapshot.getAsJsonArray("accounts")){
+            JsonObject object = account.getAsJsonObject();
+            if (object.get("number").getAsInt()>=accounts) created++;
+            sum = sum.add(object.get("balance").getAsBigDecimal());
+        }
+        BigDecimal expected = BigDecimal.valueOf(accounts*INITIAL_BALANCE_CENTS+created*CREATED_BALANCE_CENTS, 2);
+        BigDecimal total = snapshot.get("total").getAsBigDecimal();
+        boolean conserved = total.compareTo(expected)==0 && sum.compareTo(expected)==0;
+        System.out.println((conserved ? "Money is conserved: " : "Money is NOT conserved: ")
+                +"total "+total.toPlainString()+", expected "+expected.toPlainString());
+        return conserved;
+    }
+
+}
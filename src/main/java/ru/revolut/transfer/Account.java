@@ -1,19 +1,21 @@
 package ru.revolut.transfer;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Internal Payment Engine account representation.
  */
 @Getter
 @Setter
-@AllArgsConstructor
 public class Account {
 
+    private static final AtomicLongFieldUpdater<Account> BALANCE = AtomicLongFieldUpdater.newUpdater(Account.class, "balance");
+
     /**
      * Simple account number as integer.
      */
@@ -23,15 +25,123 @@ public class Account {
      * Here we need for compact and precise data structure to represent account balance.
      * Primitive 'long' type is good enough as we do not need precision more than 1 cent of money unit,
      * it is compact enough in terms of memory footprint and it will allow fast arithmetics in future.
+     * Not used anymore once the account became hot, its money is moved into stripes then.
+     * Volatile, so that readers which take no lock see the latest balance.
+     */
+    private volatile long balance;
+
+    /**
+     * Striped balance of a hot account or null for an ordinary one.
+     * Once set it is never reset back.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.NONE)
+    private volatile StripedBalance stripes;
+
+    /**
+     * Id of the newest entry of this account in transaction history or -1, replaced by {@link TransactionHistory}.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    volatile long latestTransaction = -1;
+
+    /**
+     * Balance replaced by the first change in {@link #preservedVersion}, see {@link BalanceVersions}.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    long preservedBalance;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    volatile long preservedVersion;
+
+    /**
+     * Money reserved by open holds, it is a part of the balance not available for transfers.
+     * Changed under the account monitor or by the sequencer of its shard.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    volatile long held;
+
+    public Account(int number, long balance) {
+        this.number = number;
+        this.balance = balance;
+    }
+
+    /**
+     * Set balance of this ordinary account if it has not changed since it was read, for transfers that take no locks.
+     * @return true if the balance has been set
+     */
+    boolean compareAndSetBalance(long expected, long balance) {
+        return BALANCE.compareAndSet(this, expected, balance);
+    }
+
+    /**
+     * Add to balance of this ordinary account atomically, for transfers that take no locks.
+     * @return new balance
+     */
+    long addBalance(long delta) {
+        return BALANCE.addAndGet(this, delta);
+    }
+
+    /**
+     * @return true if balance of this account is split into stripes
+     */
+    public boolean isHot() {
+        return stripes != null;
+    }
+
+    /**
+     * Preserve balance of this ordinary account before it is changed in the version for the first time.
+     * Caller must hold the account monitor or be the sequencer of its shard.
+     * @param version version entered by the caller
+     */
+    void preserve(long version) {
+        if (preservedVersion==version) return;
+        preservedBalance = balance;
+        preservedVersion = version;
+    }
+
+    /**
+     * Mark this new account as not existing before the cut of the version, before it is inserted into the ledger.
+     * @param version version entered by the caller
+     */
+    void created(long version) {
+        preservedBalance = BalanceVersions.ABSENT;
+        preservedVersion = version;
+    }
+
+    /**
+     * Split balance of this account into stripes. Caller must hold the account monitor.
+     * @param numberOfStripes number of stripes
+     */
+    void makeHot(int numberOfStripes) {
+        if (stripes != null) return;
+        stripes = new StripedBalance(numberOfStripes, balance);
+    }
+
+    /**
+     * @return overall balance of this account in cents regardless of whether it is hot or not
+     */
+    public long getTotalBalance() {
+        StripedBalance striped = stripes;
+        return striped == null ? balance : striped.sum();
+    }
+
+    /**
+     * @return balance of this account less money reserved by its holds, in cents
      */
-    private long balance;
+    public long getAvailableBalance() {
+        return getTotalBalance()-held;
+    }
 
     /**
      * Generate account view instance of this account.
      * @return an account view
      */
     public AccountView toAccountView(){
-        return new AccountView(number,new BigDecimal(balance).divide(new BigDecimal("100.00")));
+        return new AccountView(number, BigDecimal.valueOf(getTotalBalance(), 2));
     }
 
 }
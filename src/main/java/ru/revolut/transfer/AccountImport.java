@@ -0,0 +1,167 @@
+package ru.revolut.transfer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bulk import of accounts from a stream of lines, either CSV {@code number,balance}
+ * or NDJSON {@code {"number": 1, "balance": 10.50}}, one account per line.
+ *
+ * The stream is parsed as it arrives through a fixed buffer, so memory does not depend on its length.
+ * Parsed accounts are created by batches of {@link #BATCH_SIZE} with {@link PaymentEngine#createAccountsCents}.
+ */
+class AccountImport {
+
+    static final int BATCH_SIZE = 4096;
+
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final PaymentEngine engine;
+
+    private final boolean csv;
+
+    private final int[] numbers = new int[BATCH_SIZE];
+
+    private final long[] balances = new long[BATCH_SIZE];
+
+    private final long[] lines = new long[BATCH_SIZE];
+
+    private final PaymentEngineException[] batchErrors = new PaymentEngineException[BATCH_SIZE];
+
+    private int batched;
+
+    private int created;
+
+    private int failed;
+
+    private final List<AccountImportError> errors = new ArrayList<>();
+
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * @param engine engine to create accounts in
+     * @param csv true for CSV lines, false for NDJSON ones
+     */
+    AccountImport(PaymentEngine engine, boolean csv) {
+        this.engine = engine;
+        this.csv = csv;
+    }
+
+    /**
+     * Read the stream to its end and create accounts of all its lines.
+     * @param in stream of lines
+     * @return outcome of the import
+     * @throws IOException in case of stream I/O error
+     * @throws PaymentEngineException if the journal has failed to write created accounts
+     */
+    AccountImportResult run(InputStream in) throws IOException, PaymentEngineException {
+        byte[] buffer = new byte[1<<16];
+        long lineNumber = 1;
+        boolean tooLong = false;
+        for (int read; (read = in.read(buffer)) >= 0; ) {
+            for (int i=0;i<read;i++){
+                byte b = buffer[i];
+                if (b=='\n'){
+                    if (tooLong) fail(lineNumber, "Line is too long");
+                    else parse(lineNumber);
+                    line.setLength(0);
+                    tooLong = false;
+                    lineNumber++;
+                } else if (line.length() < MAX_LINE_LENGTH) {
+                    // account lines are ASCII, anything else fails to parse anyway
+                    line.append((char) (b & 0xff));
+                } else {
+                    tooLong = true;
+                }
+            }
+        }
+        if (tooLong) fail(lineNumber, "Line is too long");
+        else parse(lineNumber);
+        flush();
+        // lines rejected by the engine are reported after malformed lines of the same batch
+        errors.sort(Comparator.comparingLong(AccountImportError::getLine));
+        return new AccountImportResult(created, failed, errors);
+    }
+
+    private void parse(long lineNumber) throws PaymentEngineException {
+        int end = line.length();
+        while (end > 0 && Character.isWhitespace(line.charAt(end-1))) end--;
+        line.setLength(end);
+        if (end==0) return;
+        try {
+            if (!(csv ? parseCsv(lineNumber) : parseJson())) return;
+        } catch (PaymentEngineException e) {
+            fail(lineNumber, e.getMessage());
+            return;
+        }
+        lines[batched++] = lineNumber;
+        if (batched==BATCH_SIZE) flush();
+    }
+
+    /**
+     * @return false for the optional header line
+     */
+    private boolean parseCsv(long lineNumber) throws PaymentEngineException {
+        int comma = line.indexOf(",");
+        if (comma<0 || line.indexOf(",", comma+1)>=0) throw PaymentEngineException.INCORRECT_ACCOUNT_FORMAT;
+        String number = line.substring(0, comma).trim();
+        String balance = line.substring(comma+1).trim();
+        if (lineNumber==1 && "number".equals(number) && "balance".equals(balance)) return false;
+        setAccount(number, balance);
+        return true;
+    }
+
+    private boolean parseJson() throws PaymentEngineException {
+        String number = null;
+        String balance = null;
+        try {
+            JsonReader reader = new JsonReader(new StringReader(line.toString()));
+            reader.beginObject();
+            while (reader.hasNext()){
+                String name = reader.nextName();
+                if ("number".equals(name)) number = reader.nextString();
+                else if ("balance".equals(name)) balance = reader.nextString();
+                else reader.skipValue();
+            }
+            reader.endObject();
+            if (reader.peek()!=JsonToken.END_DOCUMENT) throw new IllegalStateException();
+        } catch (IOException | IllegalStateException e) {
+            throw PaymentEngineException.INCORRECT_ACCOUNT_FORMAT;
+        }
+        if (number==null || balance==null) throw PaymentEngineException.INCORRECT_ACCOUNT_FORMAT;
+        setAccount(number, balance);
+        return true;
+    }
+
+    private void setAccount(String number, String balance) throws PaymentEngineException {
+        try {
+            numbers[batched] = Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+        }
+        balances[batched] = Cents.parse(balance);
+    }
+
+    private void flush() throws PaymentEngineException {
+        if (batched==0) return;
+        created += engine.createAccountsCents(numbers, balances, batched, batchErrors);
+        for (int i=0;i<batched;i++)
+            if (batchErrors[i]!=null) fail(lines[i], batchErrors[i].getMessage());
+        batched = 0;
+    }
+
+    private void fail(long lineNumber, String error) {
+        failed++;
+        if (errors.size() < MAX_REPORTED_ERRORS) errors.add(new AccountImportError(lineNumber, error));
+    }
+
+}
@@ -0,0 +1,19 @@
+package ru.revolut.transfer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A line of bulk import whose account has not been created.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class AccountImportError {
+    /**
+     * Line number starting from 1.
+     */
+    long line;
+    String error;
+}
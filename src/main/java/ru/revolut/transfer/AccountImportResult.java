@@ -0,0 +1,22 @@
+package ru.revolut.transfer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Outcome of a bulk import of accounts.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class AccountImportResult {
+    int created;
+    int failed;
+    /**
+     * Errors of lines whose accounts have not been created in the order of lines, up to {@link AccountImport#MAX_REPORTED_ERRORS} of them.
+     */
+    List<AccountImportError> errors;
+}
@@ -0,0 +1,299 @@
+package ru.revolut.transfer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent index of accounts by their numbers.
+ *
+ * Open addressing with linear probing over a power-of-two table of account references.
+ * The key is not stored separately, it is the primitive number of the account sitting in a slot,
+ * so there is no boxing neither on lookup nor on insert.
+ *
+ * Lookups are lock-free: they just read the current table and probe it.
+ * Inserts claim an empty slot with CAS, so concurrent inserts do not serialize each other.
+ * The only exclusive section is resizing: inserts share the read side of a read-write lock
+ * and the resizer takes the write side, so the table is never mutated while it is being copied.
+ * Accounts are never removed from the index, the whole index is thrown away on engine reset instead.
+ *
+ * Next to the hash table there is an ordered set of account numbers for range scans.
+ * Numbers are grouped by their upper 16 bits, a group keeps its lower bits in a sorted array while it is sparse
+ * and in a bitmap once it is dense, so the set takes a few bytes per account either way.
+ */
+class AccountIndex {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /**
+     * Current table. Readers may keep using a previous table for a while after resize,
+     * it stays valid as the resizer copies it while no insert is in progress.
+     */
+    private volatile AtomicReferenceArray<Account> table;
+
+    /**
+     * Number of claimed slots. A slot is reserved in this counter before it is claimed in the table
+     * and load factor is kept at 1/2, so the table always has empty slots to terminate probing.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+    /**
+     * Ordered set of account numbers by their upper 16 bits.
+     */
+    private final AtomicReferenceArray<NumberGroup> groups = new AtomicReferenceArray<>(1 << 15);
+
+    AccountIndex() {
+        this(MIN_CAPACITY/2);
+    }
+
+    /**
+     * Create an index presized to hold expected number of accounts without resizing.
+     * @param expectedSize expected number of accounts
+     */
+    AccountIndex(int expectedSize) {
+        table = new AtomicReferenceArray<>(capacityFor(expectedSize));
+    }
+
+    /**
+     * Lock-free lookup of an account.
+     * @param number account number
+     * @return account with specified number or null if there is no such account
+     */
+    Account get(int number) {
+        AtomicReferenceArray<Account> tab = table;
+        int mask = tab.length()-1;
+        for (int i = hash(number) & mask; ; i = (i+1) & mask) {
+            Account account = tab.get(i);
+            if (account == null) return null;
+            if (account.getNumber() == number) return account;
+        }
+    }
+
+    /**
+     * Insert an account unless an account with the same number is already indexed.
+     * @param account account to insert
+     * @return previously indexed account with the same number or null if the account has been inserted
+     */
+    Account putIfAbsent(Account account) {
+        int number = account.getNumber();
+        while (true) {
+            ReentrantReadWriteLock.ReadLock readLock = resizeLock.readLock();
+            readLock.lock();
+            try {
+                AtomicReferenceArray<Account> tab = table;
+                if (size.incrementAndGet() <= tab.length()/2) {
+                    int mask = tab.length()-1;
+                    for (int i = hash(number) & mask; ; i = (i+1) & mask) {
+                        Account existing = tab.get(i);
+                        if (existing == null) {
+                            if (tab.compareAndSet(i, null, account)) {
+                                addNumber(number);
+                                return null;
+                            }
+                            existing = tab.get(i);
+                        }
+                        if (existing.getNumber() == number) {
+                            size.decrementAndGet();
+                            return existing;
+                        }
+                    }
+                }
+                size.decrementAndGet();
+            } finally {
+                readLock.unlock();
+            }
+            // there is no free room in the current table, grow it and try again
+            if (table.length() == MAX_CAPACITY) throw new IllegalStateException("Account index is full");
+            ensureCapacity(size.get()+1);
+        }
+    }
+
+    /**
+     * Grow the table in advance to hold specified number of accounts without further resizing.
+     * @param expectedSize expected number of accounts
+     */
+    void ensureCapacity(int expectedSize) {
+        int capacity = capacityFor(expectedSize);
+        if (table.length() >= capacity) return;
+        resizeLock.writeLock().lock();
+        try {
+            AtomicReferenceArray<Account> tab = table;
+            if (tab.length() >= capacity) return;
+            AtomicReferenceArray<Account> newTab = new AtomicReferenceArray<>(capacity);
+            int mask = capacity-1;
+            for (int j = 0; j < tab.length(); j++) {
+                Account account = tab.get(j);
+                if (account == null) continue;
+                int i = hash(account.getNumber()) & mask;
+                while (newTab.get(i) != null) i = (i+1) & mask;
+                newTab.set(i, account);
+            }
+            table = newTab;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of indexed accounts
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Weakly consistent traversal of indexed accounts in no particular order.
+     * Accounts inserted during traversal may or may not be visited.
+     * @param action action to apply to each account
+     */
+    void forEach(Consumer<Account> action) {
+        AtomicReferenceArray<Account> tab = table;
+        for (int i = 0; i < tab.length(); i++) {
+            Account account = tab.get(i);
+            if (account != null) action.accept(account);
+        }
+    }
+
+    /**
+     * Lock-free lookup of the least indexed account number within a range.
+     * Accounts inserted concurrently may or may not be found.
+     * @param from least number to look for, non-negative
+     * @return the least indexed account number not less than specified one or -1 if there is none
+     */
+    int nextNumber(int from) {
+        for (int high = from >>> 16; high < groups.length(); high++) {
+            NumberGroup group = groups.get(high);
+            if (group == null) continue;
+            int low = group.next(high == from >>> 16 ? from & 0xFFFF : 0);
+            if (low >= 0) return high << 16 | low;
+        }
+        return -1;
+    }
+
+    private void addNumber(int number) {
+        int high = number >>> 16;
+        NumberGroup group = groups.get(high);
+        if (group == null) {
+            groups.compareAndSet(high, null, new NumberGroup());
+            group = groups.get(high);
+        }
+        group.add((char) number);
+    }
+
+    /**
+     * Account numbers sharing upper 16 bits. Writers are serialized by the group monitor,
+     * readers see either a sorted array with its size or the bitmap without locking.
+     */
+    private static final class NumberGroup {
+
+        /**
+         * Size of the sorted array at which it is replaced with a bitmap of the same size in bytes.
+         */
+        private static final int MAX_SORTED = 4096;
+
+        /**
+         * Lower bits of numbers in ascending order. Numbers greater than all others, as sequential ones are,
+         * are appended in place and published by the size; others are inserted into a copy.
+         * Values below the size never change once published, so readers need no lock.
+         */
+        private static final class Sorted {
+            final char[] values;
+            volatile int size;
+
+            Sorted(char[] values, int size) {
+                this.values = values;
+                this.size = size;
+            }
+        }
+
+        /**
+         * Sorted numbers or null once there is a bitmap.
+         */
+        private volatile Sorted sorted = new Sorted(new char[8], 0);
+
+        private volatile AtomicLongArray bitmap;
+
+        synchronized void add(char low) {
+            AtomicLongArray bits = bitmap;
+            if (bits == null) {
+                Sorted current = sorted;
+                char[] values = current.values;
+                int size = current.size;
+                if (size > 0 && low > values[size-1]) {
+                    if (size < values.length) {
+                        values[size] = low;
+                        current.size = size+1;
+                        return;
+                    }
+                    if (size < MAX_SORTED) {
+                        char[] grown = Arrays.copyOf(values, Math.min(MAX_SORTED, 2*values.length));
+                        grown[size] = low;
+                        sorted = new Sorted(grown, size+1);
+                        return;
+                    }
+                } else {
+                    int i = Arrays.binarySearch(values, 0, size, low);
+                    if (i >= 0) return;
+                    i = -i-1;
+                    if (size < MAX_SORTED) {
+                        char[] copy = new char[size < values.length ? values.length : Math.min(MAX_SORTED, 2*values.length)];
+                        System.arraycopy(values, 0, copy, 0, i);
+                        copy[i] = low;
+                        System.arraycopy(values, i, copy, i+1, size-i);
+                        sorted = new Sorted(copy, size+1);
+                        return;
+                    }
+                }
+                bits = new AtomicLongArray(1 << 10);
+                for (int i = 0; i < size; i++) bits.set(values[i] >>> 6, bits.get(values[i] >>> 6) | 1L << values[i]);
+                bitmap = bits;
+                sorted = null;
+            }
+            bits.set(low >>> 6, bits.get(low >>> 6) | 1L << low);
+        }
+
+        /**
+         * @return the least number not less than specified one or -1 if there is none
+         */
+        int next(int low) {
+            AtomicLongArray bits = bitmap;
+            Sorted current = sorted;
+            if (current != null) {
+                int size = current.size;
+                int i = Arrays.binarySearch(current.values, 0, size, (char) low);
+                if (i < 0) i = -i-1;
+                return i < size ? current.values[i] : -1;
+            }
+            // the array is dropped only after the bitmap is published
+            if (bits == null) bits = bitmap;
+            for (int word = low >>> 6; word < bits.length(); word++) {
+                long w = bits.get(word);
+                if (word == low >>> 6) w &= -1L << low;
+                if (w != 0) return word << 6 | Long.numberOfTrailingZeros(w);
+            }
+            return -1;
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        if (expectedSize >= MAX_CAPACITY/2) return MAX_CAPACITY;
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2L*expectedSize) capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * Spread sequential account numbers over the table, they are very common in practice.
+     */
+    private static int hash(int number) {
+        int h = number * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
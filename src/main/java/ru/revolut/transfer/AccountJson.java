@@ -0,0 +1,173 @@
+package ru.revolut.transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * JSON encoding of an account written straight from its number and balance in cents,
+ * without {@link AccountView}, BigDecimal or reflection, into a pooled buffer. The pool is not tied to threads,
+ * so it stays small when every request runs on a new virtual thread.
+ * Output is the same as Gson gives for an {@link AccountView} with balance of scale 2,
+ * e.g. {"number":6458,"balance":34.35}. Transactions of an account are encoded the same way.
+ */
+final class AccountJson {
+
+    /**
+     * Enough for the longest pretty printed account.
+     */
+    static final int MAX_LENGTH = 96;
+
+    /**
+     * Enough for the longest transaction.
+     */
+    static final int MAX_TRANSACTION_LENGTH = 192;
+
+    private static final byte[] NUMBER = "{\"number\":".getBytes();
+
+    private static final byte[] BALANCE = ",\"balance\":".getBytes();
+
+    private static final byte[] PRETTY_NUMBER = "{\n  \"number\": ".getBytes();
+
+    private static final byte[] PRETTY_BALANCE = ",\n  \"balance\": ".getBytes();
+
+    private static final byte[] ID = "{\"id\":".getBytes();
+
+    private static final byte[] TRANSFER = ",\"transfer\":".getBytes();
+
+    private static final byte[] COUNTERPARTY = ",\"counterparty\":".getBytes();
+
+    private static final byte[] AMOUNT = ",\"amount\":".getBytes();
+
+    private static final byte[] TRANSACTION_BALANCE = ",\"balance\":".getBytes();
+
+    private static final byte[] TIME = ",\"time\":".getBytes();
+
+    private static final byte[] NULL = "null".getBytes();
+
+    /**
+     * Number of buffers kept for reuse, a request finding none takes a new one.
+     */
+    static final int POOLED_BUFFERS = 256;
+
+    private static final ArrayBlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    private AccountJson() {}
+
+    /**
+     * @return number of buffers waiting in the pool
+     */
+    static int pooledBuffers() {
+        return buffers.size();
+    }
+
+    /**
+     * Write JSON of an account.
+     * @param number account number
+     * @param balance balance in cents
+     * @param pretty whether to indent it the way pretty printing Gson does
+     * @param out stream to write to
+     * @throws IOException in case of I/O error of the stream
+     */
+    static void write(int number, long balance, boolean pretty, OutputStream out) throws IOException {
+        byte[] bytes = buffers.poll();
+        if (bytes==null) bytes = new byte[MAX_LENGTH];
+        try {
+            out.write(bytes, 0, encode(number, balance, pretty, bytes));
+        } finally {
+            buffers.offer(bytes);
+        }
+    }
+
+    /**
+     * Encode JSON of an account.
+     * @param number account number
+     * @param balance balance in cents
+     * @param pretty whether to indent it the way pretty printing Gson does
+     * @param bytes buffer of at least {@link #MAX_LENGTH} bytes
+     * @return number of bytes encoded
+     */
+    static int encode(int number, long balance, boolean pretty, byte[] bytes) {
+        return encode(number, balance, pretty, bytes, 0);
+    }
+
+    /**
+     * Encode JSON of an account at specified position of a buffer.
+     * @return number of bytes encoded
+     */
+    static int encode(int number, long balance, boolean pretty, byte[] bytes, int offset) {
+        int position = put(pretty ? PRETTY_NUMBER : NUMBER, bytes, offset);
+        position = putDigits(number, bytes, position);
+        position = put(pretty ? PRETTY_BALANCE : BALANCE, bytes, position);
+        position = putCents(balance, bytes, position);
+        if (pretty) bytes[position++] = '\n';
+        bytes[position++] = '}';
+        return position-offset;
+    }
+
+    /**
+     * Encode compact JSON of a transaction of an account at specified position of a buffer,
+     * e.g. {"id":7,"transfer":6,"counterparty":2,"amount":-10.50,"balance":89.50,"time":1539648000000}.
+     * @param balance balance in cents or {@link TransactionHistory#UNKNOWN_BALANCE} to encode null
+     * @param bytes buffer of at least {@link #MAX_TRANSACTION_LENGTH} bytes from the offset
+     * @return number of bytes encoded
+     */
+    static int encodeTransaction(long id, long transfer, int counterparty, long amount, long time, long balance,
+                                 byte[] bytes, int offset) {
+        int position = put(ID, bytes, offset);
+        position = putDigits(id, bytes, position);
+        position = put(TRANSFER, bytes, position);
+        position = putDigits(transfer, bytes, position);
+        position = put(COUNTERPARTY, bytes, position);
+        position = putDigits(counterparty, bytes, position);
+        position = put(AMOUNT, bytes, position);
+        position = putCents(amount, bytes, position);
+        position = put(TRANSACTION_BALANCE, bytes, position);
+        position = balance==TransactionHistory.UNKNOWN_BALANCE ? put(NULL, bytes, position) : putCents(balance, bytes, position);
+        position = put(TIME, bytes, position);
+        position = putDigits(time, bytes, position);
+        bytes[position++] = '}';
+        return position-offset;
+    }
+
+    private static int putCents(long value, byte[] bytes, int position) {
+        // digits are produced from the negative value, which covers Long.MIN_VALUE as well
+        long negative = value < 0 ? value : -value;
+        if (value < 0) bytes[position++] = '-';
+        position = putNegativeDigits(negative/100, bytes, position);
+        int cents = (int) -(negative%100);
+        bytes[position++] = '.';
+        bytes[position++] = (byte) ('0'+cents/10);
+        bytes[position++] = (byte) ('0'+cents%10);
+        return position;
+    }
+
+    private static int put(byte[] text, byte[] bytes, int position) {
+        System.arraycopy(text, 0, bytes, position, text.length);
+        return position+text.length;
+    }
+
+    private static int putDigits(long value, byte[] bytes, int position) {
+        if (value < 0) {
+            bytes[position++] = '-';
+        } else {
+            value = -value;
+        }
+        return putNegativeDigits(value, bytes, position);
+    }
+
+    /**
+     * Put decimal digits of the absolute value of a non-positive number.
+     */
+    private static int putNegativeDigits(long value, byte[] bytes, int position) {
+        int length = 1;
+        for (long rest = value/10; rest != 0; rest /= 10) length++;
+        int end = position+length;
+        for (int i = end-1; i >= position; i--) {
+            bytes[i] = (byte) ('0'-(int) (value%10));
+            value /= 10;
+        }
+        return end;
+    }
+
+}
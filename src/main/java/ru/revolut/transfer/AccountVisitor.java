@@ -0,0 +1,17 @@
+package ru.revolut.transfer;
+
+import java.io.IOException;
+
+/**
+ * Receives accounts of a range scan.
+ */
+public interface AccountVisitor {
+
+    /**
+     * @param number account number
+     * @param balance balance in cents
+     * @throws IOException in case of I/O error of the visitor, it stops the scan
+     */
+    void visit(int number, long balance) throws IOException;
+
+}
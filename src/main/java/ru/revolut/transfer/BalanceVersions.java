@@ -0,0 +1,102 @@
+package ru.revolut.transfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Versions of account balances for consistent snapshots of many accounts taken while transfers go on.
+ *
+ * A snapshot advances the current version, which is the cut: every change of balances is applied entirely
+ * within one version. Before a writer changes a balance for the first time in a version it preserves
+ * the balance it replaces, so a snapshot reads the preserved balance of an account changed after the cut
+ * and the current balance of the others. The snapshot waits for changes of the previous version
+ * to complete before reading, writers never wait for snapshots.
+ *
+ * Writers are counted per version in padded slots chosen by thread, so they do not contend with each other.
+ * A writer enters a version while holding locks of all balances it changes, or on the sequencer thread.
+ */
+class BalanceVersions {
+
+    /**
+     * Preserved balance of an account which did not exist before the cut.
+     */
+    static final long ABSENT = Long.MIN_VALUE;
+
+    private static final int SLOTS = 64;
+
+    // longs between slots to keep them on separate cache lines
+    private static final int PADDING = 16;
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Number of writers per slot, slots of even versions go first.
+     */
+    private final AtomicLongArray writers = new AtomicLongArray(2*SLOTS*PADDING);
+
+    /**
+     * Register a writer in the current version.
+     * @return version to preserve balances for and to pass to {@link #exit}
+     */
+    long enter() {
+        int slot = slot();
+        while (true) {
+            long current = version.get();
+            int index = ((int) (current & 1)*SLOTS+slot)*PADDING;
+            writers.incrementAndGet(index);
+            // a snapshot might have advanced the version before it could see this writer
+            if (version.get()==current) return current;
+            writers.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * Deregister a writer entered by the same thread.
+     */
+    void exit(long version) {
+        writers.decrementAndGet(((int) (version & 1)*SLOTS+slot())*PADDING);
+    }
+
+    /**
+     * Advance the current version and wait for writers of the previous one. Snapshots must not overlap.
+     * @return version of the snapshot, balances read with it are the balances at the moment of the call
+     */
+    long advance() {
+        long next = version.incrementAndGet();
+        int base = (int) ((next-1) & 1)*SLOTS;
+        for (int slot = 0; slot < SLOTS; slot++)
+            while (writers.get((base+slot)*PADDING)!=0) Thread.yield();
+        return next;
+    }
+
+    /**
+     * Read balance of an account as of the snapshot of specified version.
+     * @return balance in cents or {@link #ABSENT} if the account has been created after the cut
+     */
+    static long balanceAt(Account account, long version) {
+        StripedBalance stripes = account.getStripes();
+        if (stripes==null) {
+            // current balance is read first, its change is never seen without the preserved one
+            long balance = account.getBalance();
+            return account.preservedVersion==version ? account.preservedBalance : balance;
+        }
+        // the account has become hot after the cut
+        if (account.preservedVersion==version) return account.preservedBalance;
+        long sum = 0;
+        for (StripedBalance.Stripe stripe : stripes.stripes()) sum += valueAt(stripe, version);
+        return sum;
+    }
+
+    /**
+     * Read value of a stripe of a hot account as of the snapshot of specified version.
+     */
+    static long valueAt(StripedBalance.Stripe stripe, long version) {
+        long value = stripe.value;
+        return stripe.preservedVersion==version ? stripe.preservedValue : value;
+    }
+
+    private static int slot() {
+        return (int) Thread.currentThread().getId() & (SLOTS-1);
+    }
+
+}
@@ -0,0 +1,378 @@
+package ru.revolut.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Binary TCP listener for high-volume internal callers, an alternative to the REST API without HTTP parsing,
+ * decimal amounts and JSON. Requests and responses are frames of fixed layout in network byte order:
+ * <pre>
+ * request  (28 bytes): long id, int op, int from, int to, long amount in cents
+ * response (20 bytes): long id, int status, long value
+ * </pre>
+ * Operations are {@link #TRANSFER} from one account to another, {@link #BALANCE} of account {@code from}
+ * returned as the value and {@link #CREATE} of account {@code from} with balance {@code amount}.
+ * Status is the HTTP status the REST API would answer with, 200 for success.
+ *
+ * A client may send many requests without waiting for responses. One selector thread reads and writes
+ * all connections, requests are applied by worker threads and responses are sent as soon as they are ready,
+ * so responses of a connection may come in any order and are matched to requests by ids.
+ * Frames are decoded into a fixed pool of request objects and responses are encoded into a buffer of their
+ * connection, a request allocates nothing. A connection stops being read while its buffer has no room
+ * for responses of all its requests in flight, and all connections stop while the pool is exhausted.
+ */
+class BinaryServer implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(BinaryServer.class);
+
+    static final int TRANSFER = 1;
+
+    static final int BALANCE = 2;
+
+    static final int CREATE = 3;
+
+    static final int REQUEST_SIZE = 28;
+
+    static final int RESPONSE_SIZE = 20;
+
+    private static final int BUFFER_SIZE = 1<<16;
+
+    /**
+     * Pause of accepting after a failed accept, e.g. when the process is out of file descriptors.
+     */
+    private static final long ACCEPT_PAUSE_MILLIS = 100;
+
+    private static final String[] OPERATIONS = {null, "TCP TRANSFER", "TCP BALANCE", "TCP CREATE"};
+
+    /**
+     * Request being applied, reused for other requests once its response is encoded.
+     */
+    private static final class Frame {
+        Connection connection;
+        long id;
+        int op;
+        int from;
+        int to;
+        long amount;
+        long start;
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // guarded by itself, filled by workers and drained by the selector thread
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /**
+         * Room of the output buffer taken by responses of requests in flight and responses not yet sent.
+         */
+        int reserved;
+        boolean pendingWrite;
+        /**
+         * The client has shut its output down, the connection is closed once responses in flight are sent.
+         */
+        boolean inputClosed;
+        volatile boolean dirty;
+        volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final PaymentEngine engine;
+
+    private final RejectionLog rejections;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+
+    private final Selector selector;
+
+    private final ServerSocketChannel server;
+
+    private final SelectionKey serverKey;
+
+    // accessed by the selector thread only, 0 while accepting
+    private long acceptPausedUntil;
+
+    private final ArrayBlockingQueue<Frame> free;
+
+    private final ArrayBlockingQueue<Frame> work;
+
+    // accessed by the selector thread only
+    private final List<Connection> connections = new ArrayList<>();
+
+    private final Thread selectorThread;
+
+    private final Thread[] workers;
+
+    private volatile boolean closed;
+
+    /**
+     * Start listening.
+     * @param engine engine to apply requests
+     * @param rejections log of rejected requests
+     * @param config settings of the listener
+     * @throws IOException if the port cannot be bound
+     */
+    BinaryServer(PaymentEngine engine, RejectionLog rejections, ServerConfig config) throws IOException {
+        this.engine = engine;
+        this.rejections = rejections;
+        for (int op=1;op<OPERATIONS.length;op++) histograms[op] = engine.getMetrics().route(OPERATIONS[op]);
+        int frames = Math.max(1, config.getBinaryMaxInFlight());
+        free = new ArrayBlockingQueue<>(frames);
+        work = new ArrayBlockingQueue<>(frames);
+        for (int i=0;i<frames;i++) free.add(new Frame());
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(config.getBinaryHost(), config.getBinaryPort()));
+        server.configureBlocking(false);
+        serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(this::select, "binary-selector");
+        selectorThread.setDaemon(true);
+        workers = new Thread[Math.max(1, config.getBinaryWorkers())];
+        for (int i=0;i<workers.length;i++){
+            workers[i] = new Thread(this::work, "binary-worker-"+i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        selectorThread.start();
+    }
+
+    /**
+     * @return port the server listens on, useful when it has been configured as 0
+     */
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Serve connections until the server is closed. A failure of one connection closes only that connection
+     * and a failed accept pauses accepting for a while, neither stops the listener.
+     */
+    private void select() {
+        while (!closed){
+            try {
+                selector.select(acceptPausedUntil==0 ? 0 : ACCEPT_PAUSE_MILLIS);
+            } catch (IOException e) {
+                log.error("Binary listener failed to select", e);
+            }
+            if (closed) break;
+            if (acceptPausedUntil!=0 && System.currentTimeMillis()>=acceptPausedUntil){
+                acceptPausedUntil = 0;
+                serverKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+            for (SelectionKey key : selector.selectedKeys()){
+                if (key==serverKey){
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) read(connection);
+                    if (!connection.closed && key.isValid() && key.isWritable()) flush(connection);
+                } catch (RuntimeException e) {
+                    log.error("Binary connection has failed", e);
+                    close(connection);
+                }
+            }
+            selector.selectedKeys().clear();
+            for (int i=0;i<connections.size();i++){
+                Connection connection = connections.get(i);
+                try {
+                    if (!connection.closed && connection.dirty) flush(connection);
+                    if (!connection.closed) decode(connection);
+                    // a partial frame left after the client has shut its output down is never completed
+                    if (connection.inputClosed && connection.reserved==0 && connection.in.position()<REQUEST_SIZE)
+                        close(connection);
+                } catch (RuntimeException e) {
+                    log.error("Binary connection has failed", e);
+                    close(connection);
+                }
+                if (connection.closed) connections.remove(i--);
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = server.accept();
+            if (channel==null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Connection connection = new Connection(channel, key);
+            key.attach(connection);
+            connections.add(connection);
+        } catch (IOException e) {
+            log.warn("Binary listener failed to accept a connection, pausing for "+ACCEPT_PAUSE_MILLIS+" ms", e);
+            if (channel!=null){
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    // nothing to do about it
+                }
+            }
+            acceptPausedUntil = System.currentTimeMillis()+ACCEPT_PAUSE_MILLIS;
+            serverKey.interestOps(0);
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.in)<0){
+                // half-closed: requests read so far still get their responses
+                connection.inputClosed = true;
+                interest(connection);
+            }
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Hand whole frames read from a connection to workers while there is room for their responses.
+     */
+    private void decode(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining()>=REQUEST_SIZE && connection.reserved+RESPONSE_SIZE<=connection.out.capacity()){
+            Frame frame = free.poll();
+            if (frame==null) break;
+            frame.connection = connection;
+            frame.id = in.getLong();
+            frame.op = in.getInt();
+            frame.from = in.getInt();
+            frame.to = in.getInt();
+            frame.amount = in.getLong();
+            frame.start = System.nanoTime();
+            connection.reserved += RESPONSE_SIZE;
+            // the queue holds every frame of the pool, so there is always room
+            work.add(frame);
+        }
+        in.compact();
+        interest(connection);
+    }
+
+    private void flush(Connection connection) {
+        connection.dirty = false;
+        ByteBuffer out = connection.out;
+        try {
+            synchronized (out){
+                out.flip();
+                connection.reserved -= connection.channel.write(out);
+                out.compact();
+                connection.pendingWrite = out.position()>0;
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        interest(connection);
+    }
+
+    /**
+     * Read a connection while it is open for input and its input buffer has room
+     * and wait until it is writable while a response is unsent.
+     */
+    private void interest(Connection connection) {
+        int ops = (!connection.inputClosed && connection.in.hasRemaining() ? SelectionKey.OP_READ : 0)
+                | (connection.pendingWrite ? SelectionKey.OP_WRITE : 0);
+        if (connection.key.isValid() && connection.key.interestOps()!=ops) connection.key.interestOps(ops);
+    }
+
+    private void close(Connection connection) {
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // nothing to do about it
+        }
+    }
+
+    private void work() {
+        try {
+            while (!closed){
+                Frame frame = work.take();
+                Connection connection = frame.connection;
+                int op = frame.op;
+                long value = 0;
+                int status = 200;
+                try {
+                    PaymentEngineException rejection = null;
+                    try {
+                        switch (op){
+                            case TRANSFER:
+                                rejection = engine.tryTransferCents(frame.from, frame.to, frame.amount, null);
+                                break;
+                            case BALANCE:
+                                value = engine.getAccountBalanceCents(frame.from);
+                                break;
+                            case CREATE:
+                                engine.createAccountCents(frame.from, frame.amount);
+                                break;
+                            default:
+                                rejection = PaymentEngineException.UNKNOWN_OPERATION;
+                        }
+                    } catch (PaymentEngineException e) {
+                        rejection = e;
+                    }
+                    if (rejection!=null){
+                        rejections.rejected(rejection);
+                        status = rejection.getCode().getHttpStatus();
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Binary request "+frame.id+" has failed", e);
+                    status = 500;
+                    value = 0;
+                } finally {
+                    // the response has its room reserved, so it is always written and the frame always returned
+                    synchronized (connection.out){
+                        connection.out.putLong(frame.id).putInt(status).putLong(value);
+                    }
+                    if (op>0 && op<histograms.length) histograms[op].recordSince(frame.start);
+                    frame.connection = null;
+                    free.add(frame);
+                    connection.dirty = true;
+                    selector.wakeup();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stop listening and close all connections, requests in flight are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        for (Thread worker : workers) worker.interrupt();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Connection connection : connections) close(connection);
+        server.close();
+        selector.close();
+    }
+
+}
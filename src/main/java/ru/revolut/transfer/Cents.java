@@ -0,0 +1,52 @@
+package ru.revolut.transfer;
+
+/**
+ * Conversion of decimal money amounts to cents without intermediate BigDecimal instances.
+ */
+public final class Cents {
+
+    private static final long MAX_UNITS = Long.MAX_VALUE/100;
+
+    private Cents() {}
+
+    /**
+     * Parse plain decimal notation, e.g. "-12", "12.3" or "12.34", into a number of cents.
+     * Digits beyond 2nd one after decimal point are allowed only if they are zeros.
+     * @param text decimal string
+     * @return amount in cents
+     * @throws PaymentEngineException in case of malformed string, excessive precision or when amount does not fit in long
+     */
+    public static long parse(CharSequence text) throws PaymentEngineException {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length>0 && (text.charAt(0)=='-' || text.charAt(0)=='+')) {
+            negative = text.charAt(0)=='-';
+            i++;
+        }
+        long units = 0;
+        int digits = 0;
+        for (; i<length; i++, digits++) {
+            int digit = text.charAt(i)-'0';
+            if (digit<0 || digit>9) break;
+            if (units > (MAX_UNITS-digit)/10) throw PaymentEngineException.AMOUNT_TOO_LARGE;
+            units = units*10+digit;
+        }
+        long cents = 0;
+        if (i<length && text.charAt(i)=='.') {
+            int fractionDigits = 0;
+            for (i++; i<length; i++, digits++, fractionDigits++) {
+                int digit = text.charAt(i)-'0';
+                if (digit<0 || digit>9) break;
+                if (fractionDigits<2) cents = cents*10+digit;
+                else if (digit!=0) throw PaymentEngineException.TOO_PRECISE;
+            }
+            if (fractionDigits==1) cents *= 10;
+        }
+        if (digits==0 || i!=length) throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+        if (units > (Long.MAX_VALUE-cents)/100) throw PaymentEngineException.AMOUNT_TOO_LARGE;
+        long amount = units*100+cents;
+        return negative ? -amount : amount;
+    }
+
+}
@@ -0,0 +1,252 @@
+package ru.revolut.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point-in-time image of all account balances tied to a journal position.
+ *
+ * A checkpoint is taken while transfers go on: every account is read under its own monitor for a moment,
+ * nothing is locked for the whole duration. Such image is fuzzy, accounts are read at different moments,
+ * but it is made exact on recovery: journal records hold absolute balances, so replaying every record
+ * from the position the checkpoint has started at overwrites all balances changed after that position.
+ * A checkpoint is published only when all journal records it may have captured are on disk.
+ * In sequenced mode the image is exact instead: the sequencer thread only advances the version of balances
+ * between two commands and notes the journal position, balances as of that version are written out by
+ * the checkpoint thread while the sequencer goes on, see {@link BalanceVersions}.
+ *
+ * File layout: magic, version, journal position, then per account its number, number of stripes (0 for an ordinary account)
+ * and balance or stripe values, then end marker, number of accounts and CRC32 of everything before it.
+ */
+class Checkpoint {
+
+    private static Logger log = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final int MAGIC = 0x434B5054;
+
+    private static final int VERSION = 1;
+
+    private static final String PREFIX = "checkpoint-";
+
+    private static final String SUFFIX = ".ckpt";
+
+    /**
+     * Version to write current balances instead of balances as of a cut, versions of cuts are positive.
+     */
+    private static final long CURRENT = 0;
+
+    private Checkpoint() {}
+
+    /**
+     * Write a checkpoint of the ledger and cut off journal segments it makes obsolete.
+     * @param directory checkpoint directory
+     * @param ledger ledger to write
+     * @param journal journal of the ledger
+     * @return journal position of the checkpoint
+     */
+    static long write(Path directory, AccountIndex ledger, Journal journal) throws IOException, PaymentEngineException {
+        return write(directory, ledger, journal, journal.position(), CURRENT);
+    }
+
+    /**
+     * Write a checkpoint of balances as of a cut taken by {@link #cut}.
+     * The caller keeps other snapshots of balances from advancing the version until it returns.
+     * @param directory checkpoint directory
+     * @param ledger ledger to write
+     * @param cut version of balances and journal position
+     * @param journal journal of the ledger
+     * @return journal position of the checkpoint
+     */
+    static long write(Path directory, AccountIndex ledger, Cut cut, Journal journal) throws IOException, PaymentEngineException {
+        return write(directory, ledger, journal, cut.position, cut.version);
+    }
+
+    /**
+     * Version of balances and journal position it corresponds to.
+     */
+    static final class Cut {
+        private final long version;
+        private final long position;
+
+        private Cut(long version, long position) {
+            this.version = version;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Take a cut of balances, an instant no change of them spans. It takes no copy of the ledger, so it is cheap
+     * for the only thread changing the ledger, which has to call it between two changes.
+     * @param versions versions of balances of the ledger
+     * @param journal journal of the ledger
+     * @return cut to write with {@link #write(Path, AccountIndex, Cut, Journal)}
+     */
+    static Cut cut(BalanceVersions versions, Journal journal) {
+        return new Cut(versions.advance(), journal.position());
+    }
+
+    private static long write(Path directory, AccountIndex ledger, Journal journal, long position, long version) throws IOException, PaymentEngineException {
+        Path temporary = directory.resolve(String.format("%s%020d.tmp", PREFIX, position));
+        long count;
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1<<16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(position);
+            count = version==CURRENT ? writeAccounts(out, ledger) : writeAccounts(out, ledger, version);
+            out.writeInt(-1);
+            out.writeLong(count);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            // every record that might have been captured must be durable before the checkpoint is
+            long end = journal.position();
+            if (end > 0) journal.awaitDurable(end-1);
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(String.format("%s%020d%s", PREFIX, position, SUFFIX)), StandardCopyOption.ATOMIC_MOVE);
+        for (Path older : checkpoints(directory))
+            if (positionOf(older) < position) Files.delete(older);
+        journal.truncate(position);
+        log.info("Checkpoint of "+count+" accounts at journal position "+position);
+        return position;
+    }
+
+    private static long writeAccounts(DataOutputStream out, AccountIndex ledger) throws IOException {
+        long[] count = {0};
+        long[] balance = new long[1];
+        try {
+            ledger.forEach(account -> {
+                int stripes = 0;
+                long[] values = balance;
+                // read balance under account locks, so it is never seen without its journal record
+                synchronized (account){
+                    StripedBalance striped = account.getStripes();
+                    if (striped==null) {
+                        values[0] = account.getBalance();
+                    } else {
+                        stripes = striped.stripes().length;
+                        values = new long[stripes];
+                        for (StripedBalance.Stripe stripe : striped.stripes())
+                            synchronized (stripe){
+                                values[stripe.index] = stripe.value;
+                            }
+                    }
+                }
+                try {
+                    out.writeInt(account.getNumber());
+                    out.writeInt(stripes);
+                    for (long value : values) out.writeLong(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                count[0]++;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return count[0];
+    }
+
+    /**
+     * Write balances as of the cut of specified version, accounts created after it are left out.
+     */
+    private static long writeAccounts(DataOutputStream out, AccountIndex ledger, long version) throws IOException {
+        long count = 0;
+        for (int number = ledger.nextNumber(0); number>=0; number = ledger.nextNumber(number+1)){
+            Account account = ledger.get(number);
+            StripedBalance striped = account.getStripes();
+            // the preserved balance of an account that has become hot after the cut is its ordinary balance
+            if (striped==null || account.preservedVersion==version){
+                long balance = BalanceVersions.balanceAt(account, version);
+                if (balance!=BalanceVersions.ABSENT){
+                    out.writeInt(number);
+                    out.writeInt(0);
+                    out.writeLong(balance);
+                    count++;
+                }
+            } else {
+                StripedBalance.Stripe[] stripes = striped.stripes();
+                out.writeInt(number);
+                out.writeInt(stripes.length);
+                for (StripedBalance.Stripe stripe : stripes) out.writeLong(BalanceVersions.valueAt(stripe, version));
+                count++;
+            }
+            if (number==Integer.MAX_VALUE) break;
+        }
+        return count;
+    }
+
+    /**
+     * Load the latest checkpoint into an empty ledger.
+     * @param directory checkpoint directory
+     * @param ledger ledger to fill
+     * @return journal position to replay from, 0 if there is no checkpoint
+     */
+    static long load(Path directory, AccountIndex ledger) throws IOException {
+        List<Path> checkpoints = checkpoints(directory);
+        if (checkpoints.isEmpty()) return 0;
+        Path latest = checkpoints.get(checkpoints.size()-1);
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(latest), 1<<16), crc))) {
+            if (in.readInt()!=MAGIC || in.readInt()!=VERSION) throw new IOException("Unknown checkpoint format of "+latest);
+            long position = in.readLong();
+            long count = 0;
+            for (int number = in.readInt(); number!=-1; number = in.readInt(), count++){
+                int stripes = in.readInt();
+                Account account = new Account(number, stripes==0 ? in.readLong() : 0);
+                if (stripes>0){
+                    account.makeHot(stripes);
+                    for (StripedBalance.Stripe stripe : account.getStripes().stripes()) stripe.value = in.readLong();
+                }
+                ledger.putIfAbsent(account);
+            }
+            long expectedCount = in.readLong();
+            long expectedChecksum = crc.getValue();
+            if (expectedCount!=count || in.readLong()!=expectedChecksum)
+                throw new IOException("Checkpoint "+latest+" is corrupted");
+            log.info("Loaded checkpoint of "+count+" accounts at journal position "+position);
+            return position;
+        }
+    }
+
+    /**
+     * Delete all checkpoints in specified directory.
+     */
+    static void delete(Path directory) throws IOException {
+        for (Path checkpoint : checkpoints(directory)) Files.delete(checkpoint);
+    }
+
+    private static List<Path> checkpoints(Path directory) throws IOException {
+        List<Path> checkpoints = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX+"*"+SUFFIX)) {
+            stream.forEach(checkpoints::add);
+        }
+        checkpoints.sort((a, b) -> Long.compare(positionOf(a), positionOf(b)));
+        return checkpoints;
+    }
+
+    private static long positionOf(Path checkpoint) {
+        String name = checkpoint.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length()-SUFFIX.length()));
+    }
+
+}
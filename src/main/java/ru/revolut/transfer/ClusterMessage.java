@@ -0,0 +1,94 @@
+package ru.revolut.transfer;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Request sent from one cluster node to another or the reply to it.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class ClusterMessage {
+
+    /**
+     * Create account {@link #account} with initial balance {@link #amount}.
+     */
+    public static final int CREATE = 1;
+
+    /**
+     * Read balance of account {@link #account}, it is returned in {@link #amount}.
+     */
+    public static final int GET = 2;
+
+    /**
+     * Transfer {@link #amount} from account {@link #account} to account {@link #otherAccount}.
+     */
+    public static final int TRANSFER = 3;
+
+    /**
+     * Mark account {@link #account} as hot.
+     */
+    public static final int HOT = 4;
+
+    /**
+     * Apply batch of {@link #transfers}, the outcome is returned in {@link #batchResult}.
+     */
+    public static final int BATCH = 5;
+
+    /**
+     * Second phase of a transfer between nodes: credit {@link #amount} debited by node {@link #node}
+     * under its intent {@link #intent} from account {@link #otherAccount} to account {@link #account}. Repeated credits of the same intent are ignored.
+     * Intents of the node below {@link #settledBelow} are settled and never delivered again.
+     */
+    public static final int CREDIT = 6;
+
+    int type;
+    int node;
+    long intent;
+    long settledBelow;
+    int account;
+    int otherAccount;
+    long amount;
+    boolean atomic;
+    List<TransferRequest> transfers;
+    TransferBatchResult batchResult;
+    /**
+     * Error message of a failed request, null on success.
+     */
+    String error;
+    ErrorCode errorCode;
+
+    static ClusterMessage request(int type, int account, int otherAccount, long amount) {
+        ClusterMessage message = new ClusterMessage();
+        message.type = type;
+        message.account = account;
+        message.otherAccount = otherAccount;
+        message.amount = amount;
+        return message;
+    }
+
+    static ClusterMessage reply(long amount) {
+        ClusterMessage message = new ClusterMessage();
+        message.amount = amount;
+        return message;
+    }
+
+    static ClusterMessage failure(PaymentEngineException error) {
+        ClusterMessage message = new ClusterMessage();
+        message.error = error.getMessage();
+        message.errorCode = error.getCode();
+        return message;
+    }
+
+    /**
+     * @return rejection of a failed request or null on success
+     */
+    PaymentEngineException rejection() {
+        return error==null ? null : new PaymentEngineException(errorCode, error);
+    }
+
+}
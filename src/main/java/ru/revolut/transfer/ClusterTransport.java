@@ -0,0 +1,17 @@
+package ru.revolut.transfer;
+
+/**
+ * Delivers messages between nodes of a Payment Engine cluster.
+ */
+public interface ClusterTransport {
+
+    /**
+     * Deliver a request to a node and wait for its reply, which is produced by {@link PaymentEngine#handle} of that node.
+     * @param node destination node
+     * @param request request message
+     * @return reply message
+     * @throws PaymentEngineException if the node cannot be reached
+     */
+    ClusterMessage send(int node, ClusterMessage request) throws PaymentEngineException;
+
+}
@@ -0,0 +1,54 @@
+package ru.revolut.transfer;
+
+/**
+ * Kind of a rejected request and the HTTP status it maps to.
+ */
+public enum ErrorCode {
+
+    /**
+     * Malformed or out of range argument.
+     */
+    INVALID_REQUEST(400),
+
+    ACCOUNT_NOT_FOUND(404),
+
+    /**
+     * Anything else that is referred to but does not exist, e.g. a transaction.
+     */
+    NOT_FOUND(404),
+
+    ACCOUNT_EXISTS(409),
+
+    /**
+     * Conflict with another request in progress.
+     */
+    CONFLICT(409),
+
+    INSUFFICIENT_FUNDS(422),
+
+    /**
+     * Well-formed request that cannot be applied, e.g. an atomic batch over several shards.
+     */
+    UNPROCESSABLE(422),
+
+    /**
+     * Request over a rate limit or one that has waited too long for its turn.
+     */
+    TOO_MANY_REQUESTS(429),
+
+    /**
+     * Journal or another cluster node is not available.
+     */
+    UNAVAILABLE(503);
+
+    private final int httpStatus;
+
+    ErrorCode(int httpStatus) {
+        this.httpStatus = httpStatus;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+}
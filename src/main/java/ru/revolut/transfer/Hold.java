@@ -0,0 +1,28 @@
+package ru.revolut.transfer;
+
+/**
+ * Money of an account reserved for a later capture, see {@link PaymentEngine#holdCents}.
+ * The money stays in the balance of the account but is not available for transfers until the hold is captured,
+ * released or expires. Whoever takes the hold out of the engine's map of open holds closes it.
+ */
+final class Hold extends TimingWheel.Timer {
+
+    final long id;
+
+    final Account account;
+
+    final long amount;
+
+    /**
+     * Whether a capture has taken the money of the hold out of the held one of its account,
+     * set under the monitor of the account or on the sequencer of its shard.
+     */
+    boolean consumed;
+
+    Hold(long id, Account account, long amount) {
+        this.id = id;
+        this.account = account;
+        this.amount = amount;
+    }
+
+}
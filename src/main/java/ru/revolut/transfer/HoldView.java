@@ -0,0 +1,21 @@
+package ru.revolut.transfer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+
+/**
+ * A view of a new hold for external consumers.
+ */
+@Getter
+@AllArgsConstructor
+public class HoldView {
+    long id;
+    int accountNumber;
+    BigDecimal amount;
+    /**
+     * Balance of the account available to transfers once the hold is placed.
+     */
+    BigDecimal available;
+}
@@ -0,0 +1,360 @@
+package ru.revolut.transfer;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Outcomes of requests by their idempotency keys, so a repeated request gets the outcome of the first one
+ * instead of being applied again.
+ *
+ * Nothing is allocated per key: a key is kept as a 128-bit fingerprint and an outcome as a code,
+ * all of them in primitive arrays of a fixed capacity. Only outcomes of batches take an array of per-transfer codes.
+ * Keys are split into segments, each one is a ring of entries in the order of their arrival with an open addressing
+ * index over it. A new entry replaces the oldest one when the ring is full, entries older than time to live are
+ * replaced first and are not found anymore. An entry in progress is never replaced, a new key is rejected
+ * as unavailable instead when it is the oldest one of a full ring.
+ *
+ * A request repeated while the first one is still in progress waits for its outcome. Only final outcomes are kept:
+ * a request failed as unavailable, e.g. with the journal down, is forgotten, so it can be retried with the same key.
+ */
+class IdempotencyCache {
+
+    private static final int SEGMENTS = 64;
+
+    private static final long IN_PROGRESS_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // outcome codes, failure code is FAILURE plus index of its error,
+    // or FAILURE plus MAX_ERRORS plus ordinal of its code once the table of errors is full
+    private static final int ABANDONED = -1;
+    private static final int IN_PROGRESS = 0;
+    private static final int SUCCESS = 1;
+    private static final int BATCH = 2;
+    private static final int ATOMIC_BATCH = 3;
+    private static final int FAILURE = 4;
+
+    private static final int MAX_ERRORS = 4096;
+
+    private static final ErrorCode[] CODES = ErrorCode.values();
+
+    /**
+     * Errors by codes, repeated when the table of errors has no room for the exact error.
+     */
+    private static final PaymentEngineException[] UNRETAINED = new PaymentEngineException[CODES.length];
+
+    static {
+        for (ErrorCode code : CODES)
+            UNRETAINED[code.ordinal()] = new PaymentEngineException(code, "Request has failed, its error has not been retained");
+    }
+
+    /**
+     * Transfer to apply once per key.
+     */
+    interface Transfer {
+        void apply() throws PaymentEngineException;
+    }
+
+    /**
+     * Batch of transfers to apply once per key.
+     */
+    interface Batch {
+        TransferBatchResult apply() throws PaymentEngineException;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final long ttlNanos;
+
+    private final LongSupplier clock;
+
+    /**
+     * Errors by their indexes, there are few distinct ones. They are immutable and thrown again as they are.
+     */
+    private final List<PaymentEngineException> errors = new ArrayList<>();
+
+    /**
+     * Indexes of errors by their codes and messages.
+     */
+    private final Map<ErrorCode, Map<String, Integer>> indexes = new EnumMap<>(ErrorCode.class);
+
+    /**
+     * @param capacity maximum number of keys
+     * @param ttlSeconds time to live of a key
+     * @param clock source of time in nanoseconds
+     */
+    IdempotencyCache(int capacity, long ttlSeconds, LongSupplier clock) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.clock = clock;
+        for (int i=0;i<SEGMENTS;i++) segments[i] = new Segment(Math.max(1, (capacity+SEGMENTS-1)/SEGMENTS));
+        for (ErrorCode code : CODES) indexes.put(code, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Apply a transfer unless a request with the same key has been applied already,
+     * in which case its outcome is repeated.
+     * @param key idempotency key
+     * @param request hash of request parameters, a key must not be reused for another request
+     * @param transfer transfer to apply
+     * @throws PaymentEngineException the exception of the first request, if the key has been used for another request
+     * or if too many keys are in progress
+     */
+    void transfer(String key, int request, Transfer transfer) throws PaymentEngineException {
+        long hi = fingerprint(key, 0xCBF29CE484222325L);
+        long lo = fingerprint(key, 0x84222325CBF29CE4L);
+        Segment segment = segmentOf(hi);
+        Outcome outcome = segment.acquire(hi, lo, request);
+        if (outcome!=null){
+            if (outcome.code!=SUCCESS) throw error(outcome.code-FAILURE);
+            return;
+        }
+        int code = ABANDONED;
+        try {
+            transfer.apply();
+            code = SUCCESS;
+        } catch (PaymentEngineException e) {
+            if (e.getCode()!=ErrorCode.UNAVAILABLE) code = FAILURE+index(e.getCode(), e.getMessage(), e);
+            throw e;
+        } finally {
+            segment.complete(hi, lo, code, null);
+        }
+    }
+
+    /**
+     * Apply a batch unless a request with the same key has been applied already,
+     * in which case its outcome is repeated.
+     * @param key idempotency key
+     * @param request hash of request parameters, a key must not be reused for another request
+     * @param batch batch to apply
+     * @return outcome of the batch
+     * @throws PaymentEngineException the exception of the first request, if the key has been used for another request
+     * or if too many keys are in progress
+     */
+    TransferBatchResult batch(String key, int request, Batch batch) throws PaymentEngineException {
+        long hi = fingerprint(key, 0xCBF29CE484222325L);
+        long lo = fingerprint(key, 0x84222325CBF29CE4L);
+        Segment segment = segmentOf(hi);
+        Outcome outcome = segment.acquire(hi, lo, request);
+        if (outcome!=null){
+            if (outcome.code>=FAILURE) throw error(outcome.code-FAILURE);
+            List<TransferResult> results = new ArrayList<>(outcome.details.length);
+            int succeeded = 0;
+            for (int i=0;i<outcome.details.length;i++){
+                boolean success = outcome.details[i]==0;
+                if (success) succeeded++;
+                results.add(new TransferResult(i, success, success ? null : error(outcome.details[i]-1).getMessage()));
+            }
+            return new TransferBatchResult(outcome.code==ATOMIC_BATCH, succeeded, results.size()-succeeded, results);
+        }
+        int code = ABANDONED;
+        char[] details = null;
+        try {
+            TransferBatchResult result = batch.apply();
+            details = new char[result.getResults().size()];
+            for (TransferResult transfer : result.getResults())
+                details[transfer.getIndex()] = transfer.isSuccess() ? 0 : (char) (1+index(ErrorCode.INVALID_REQUEST, transfer.getError(), null));
+            code = result.isAtomic() ? ATOMIC_BATCH : BATCH;
+            return result;
+        } catch (PaymentEngineException e) {
+            if (e.getCode()!=ErrorCode.UNAVAILABLE) code = FAILURE+index(e.getCode(), e.getMessage(), e);
+            throw e;
+        } finally {
+            segment.complete(hi, lo, code, details);
+        }
+    }
+
+    private Segment segmentOf(long hi) {
+        return segments[(int) (hi>>>58) & (SEGMENTS-1)];
+    }
+
+    /**
+     * @param error error with the code and message or null to create one for an error of a batch transfer
+     * @return index of the error or MAX_ERRORS plus ordinal of its code if there is no room for it
+     */
+    private int index(ErrorCode code, String message, PaymentEngineException error) {
+        Map<String, Integer> byMessage = indexes.get(code);
+        Integer index = byMessage.get(message);
+        if (index!=null) return index;
+        synchronized (errors){
+            index = byMessage.get(message);
+            if (index!=null) return index;
+            if (errors.size()==MAX_ERRORS) return MAX_ERRORS+code.ordinal();
+            errors.add(error!=null ? error : new PaymentEngineException(code, message));
+            byMessage.put(message, errors.size()-1);
+            return errors.size()-1;
+        }
+    }
+
+    private PaymentEngineException error(int index) {
+        if (index>=MAX_ERRORS) return UNRETAINED[index-MAX_ERRORS];
+        synchronized (errors){
+            return errors.get(index);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string finished with a bit mixer, different seeds give independent hashes.
+     */
+    private static long fingerprint(String key, long seed) {
+        long h = seed;
+        for (int i=0;i<key.length();i++){
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h>>>33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h>>>33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h>>>33;
+    }
+
+    /**
+     * Outcome of a completed request.
+     */
+    private static final class Outcome {
+        final int code;
+        final char[] details;
+
+        Outcome(int code, char[] details) {
+            this.code = code;
+            this.details = details;
+        }
+    }
+
+    private final class Segment {
+
+        private final int capacity;
+        // ring of entries
+        private final long[] his;
+        private final long[] los;
+        private final int[] requests;
+        private final int[] outcomes;
+        private final long[] times;
+        private final char[][] details;
+        private int head;
+        private int size;
+        /**
+         * Linear probing index of entries, slot number plus one or 0 for an empty cell.
+         */
+        private final int[] index;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            his = new long[capacity];
+            los = new long[capacity];
+            requests = new int[capacity];
+            outcomes = new int[capacity];
+            times = new long[capacity];
+            details = new char[capacity][];
+            int cells = 2;
+            while (cells < 2*capacity) cells <<= 1;
+            index = new int[cells];
+        }
+
+        /**
+         * Find outcome of a completed request or register a new one in progress.
+         * @return outcome or null if the caller is to apply the request and {@link #complete} it
+         */
+        synchronized Outcome acquire(long hi, long lo, int request) throws PaymentEngineException {
+            long deadline = clock.getAsLong()+IN_PROGRESS_TIMEOUT_NANOS;
+            while (true){
+                int cell = find(hi, lo);
+                if (cell<0) break;
+                int slot = index[cell]-1;
+                if (outcomes[slot]==ABANDONED || outcomes[slot]!=IN_PROGRESS && clock.getAsLong()-times[slot] > ttlNanos){
+                    remove(cell);
+                    break;
+                }
+                if (requests[slot]!=request)
+                    throw PaymentEngineException.IDEMPOTENCY_KEY_REUSED;
+                if (outcomes[slot]!=IN_PROGRESS) return new Outcome(outcomes[slot], details[slot]);
+                long timeout = deadline-clock.getAsLong();
+                if (timeout<=0) throw PaymentEngineException.IDEMPOTENCY_KEY_IN_PROGRESS;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw PaymentEngineException.IDEMPOTENCY_KEY_IN_PROGRESS;
+                }
+            }
+            long now = clock.getAsLong();
+            while (size>0 && (size==capacity || now-times[head] > ttlNanos)){
+                if (outcomes[head]==IN_PROGRESS){
+                    // a repetition waiting for it would not find it and would apply the request again
+                    if (size==capacity) throw PaymentEngineException.IDEMPOTENCY_KEYS_EXHAUSTED;
+                    break;
+                }
+                int cell = findSlot(head);
+                if (cell>=0) remove(cell);
+                details[head] = null;
+                head = (head+1)%capacity;
+                size--;
+            }
+            int slot = (head+size++)%capacity;
+            his[slot] = hi;
+            los[slot] = lo;
+            requests[slot] = request;
+            outcomes[slot] = IN_PROGRESS;
+            times[slot] = now;
+            int cell = home(lo);
+            while (index[cell]!=0) cell = (cell+1)&(index.length-1);
+            index[cell] = slot+1;
+            return null;
+        }
+
+        /**
+         * Record outcome of a request registered by {@link #acquire} and wake up its repetitions.
+         */
+        synchronized void complete(long hi, long lo, int outcome, char[] batchDetails) {
+            int cell = find(hi, lo);
+            if (cell>=0){
+                int slot = index[cell]-1;
+                if (outcomes[slot]==IN_PROGRESS){
+                    outcomes[slot] = outcome;
+                    details[slot] = batchDetails;
+                }
+            }
+            notifyAll();
+        }
+
+        private int home(long lo) {
+            return (int) (lo ^ lo>>>32) & (index.length-1);
+        }
+
+        private int find(long hi, long lo) {
+            for (int cell = home(lo); index[cell]!=0; cell = (cell+1)&(index.length-1)){
+                int slot = index[cell]-1;
+                if (his[slot]==hi && los[slot]==lo) return cell;
+            }
+            return -1;
+        }
+
+        private int findSlot(int slot) {
+            for (int cell = home(los[slot]); index[cell]!=0; cell = (cell+1)&(index.length-1))
+                if (index[cell]==slot+1) return cell;
+            return -1;
+        }
+
+        /**
+         * Remove an index cell shifting back following cells of the same probe sequence.
+         */
+        private void remove(int cell) {
+            int mask = index.length-1;
+            int next = cell;
+            while (true){
+                next = (next+1)&mask;
+                if (index[next]==0) break;
+                int home = home(los[index[next]-1]);
+                // the entry stays if its home lies cyclically within (cell, next]
+                if (cell<=next ? cell<home && home<=next : cell<home || home<=next) continue;
+                index[cell] = index[next];
+                cell = next;
+            }
+            index[cell] = 0;
+        }
+    }
+
+}
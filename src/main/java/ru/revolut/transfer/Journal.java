@@ -0,0 +1,468 @@
+package ru.revolut.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the Payment Engine.
+ *
+ * Records have fixed size of 64 bytes: sequence number, header, amount, two balance cell entries and a checksum.
+ * They are appended to segment files named after the sequence number of their first record.
+ *
+ * Appending does not take any lock. A thread reserves a sequence number with an atomic increment,
+ * puts the record into its slot of an in-memory ring and publishes the slot. The only writer thread picks up
+ * published records in sequence order, writes them in one go and forces them to disk, so concurrent
+ * transfers share one fsync (group commit). A caller waits until its record is durable after it has released
+ * account locks. As journal order of records touching the same account is the order they were appended in
+ * under that account lock (or by the sequencer owning the account), a record never becomes durable before a record it depends on.
+ */
+class Journal implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(Journal.class);
+
+    static final int RECORD_SIZE = 64;
+
+    private static final int SLOT_LONGS = 6;
+
+    private static final int MAX_WRITE_RECORDS = 4096;
+
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static final long WAIT_PARK_NANOS = 10_000;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+
+    private final long segmentRecords;
+
+    private final long commitDelayNanos;
+
+    private final int mask;
+
+    /**
+     * Slots of records that have not been written yet, {@link #SLOT_LONGS} longs per record.
+     */
+    private final long[] ring;
+
+    /**
+     * Sequence number of the record published in each slot.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Next sequence number to reserve.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Records below this sequence number have been taken out of the ring, their slots can be reused.
+     */
+    private volatile long consumed;
+
+    /**
+     * Records below this sequence number are on disk.
+     */
+    private volatile long durable;
+
+    private volatile IOException failure;
+
+    private volatile boolean running = true;
+
+    private volatile boolean idle;
+
+    private final Thread writer;
+
+    // state of the writer thread
+    private FileChannel segment;
+    private long segmentStart;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE*MAX_WRITE_RECORDS);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Open journal in specified directory, replay its records and start the writer thread.
+     * A torn or corrupted tail of the journal, including an incomplete group of records, is cut off.
+     * @param directory journal directory, created if absent
+     * @param bufferRecords capacity of in-memory ring of records, rounded up to a power of two
+     * @param segmentRecords number of records in one segment file
+     * @param commitDelayMicros how long the writer waits to gather more records into one fsync
+     * @param from sequence number of the first record to replay, preceding ones are covered by a checkpoint
+     * @param handler consumer of replayed records
+     * @throws IOException in case of I/O error
+     */
+    Journal(Path directory, int bufferRecords, long segmentRecords, long commitDelayMicros,
+            long from, Consumer<JournalRecord> handler) throws IOException {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.commitDelayNanos = commitDelayMicros*1000;
+        int capacity = 1;
+        while (capacity < Math.max(bufferRecords, MAX_WRITE_RECORDS)) capacity <<= 1;
+        mask = capacity-1;
+        ring = new long[capacity*SLOT_LONGS];
+        published = new AtomicLongArray(capacity);
+        for (int i=0;i<capacity;i++) published.set(i, -1);
+
+        Files.createDirectories(directory);
+        long end = recover(from, handler);
+        tail.set(end);
+        consumed = end;
+        durable = end;
+        List<Path> segments = segments();
+        if (!segments.isEmpty() && end-startOf(segments.get(segments.size()-1)) < segmentRecords) {
+            segmentStart = startOf(segments.get(segments.size()-1));
+            segment = FileChannel.open(segments.get(segments.size()-1), StandardOpenOption.WRITE);
+        } else {
+            openSegment(end);
+        }
+
+        writer = new Thread(this::writeRecords, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static long header(int type, int entries, int groupIndex, int groupSize) {
+        return type | (long) entries<<8 | (long) groupIndex<<16 | (long) groupSize<<40;
+    }
+
+    static long key(int account, int cell) {
+        return (long) account<<32 | (cell & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Append a record of new account.
+     * @return sequence number of the record
+     */
+    long create(int account, long balance) throws PaymentEngineException {
+        return append(header(JournalRecord.CREATE, 1, 0, 0), 0, key(account, 0), balance, 0, 0);
+    }
+
+    /**
+     * Append a record of an account that has become hot.
+     * @return sequence number of the record
+     */
+    long hot(int account, int stripes, long balance) throws PaymentEngineException {
+        return append(header(JournalRecord.HOT, 1, 0, 0), 0, key(account, stripes), balance, 0, 0);
+    }
+
+    /**
+     * Append a record of money moved between two balance cells.
+     * @param type {@link JournalRecord#TRANSFER} or {@link JournalRecord#BORROW}
+     * @return sequence number of the record
+     */
+    long transfer(int type, long amount, int account1, int cell1, long value1, int account2, int cell2, long value2)
+            throws PaymentEngineException {
+        return append(header(type, 2, 0, 0), amount, key(account1, cell1), value1, key(account2, cell2), value2);
+    }
+
+    /**
+     * Append a record of money that has left the source account of a transfer between two shards.
+     * @return sequence number of the record
+     */
+    long reservation(long amount, int accountFrom, long fromBalance, int accountTo) throws PaymentEngineException {
+        return append(header(JournalRecord.RESERVE, 1, 0, 0), amount, key(accountFrom, 0), fromBalance, key(accountTo, 0), 0);
+    }
+
+    /**
+     * Append a record of money in flight that has reached an account.
+     * @param reservation sequence number of the reservation record
+     * @return sequence number of the record
+     */
+    long settlement(long amount, int account, long balance, long reservation) throws PaymentEngineException {
+        return append(header(JournalRecord.SETTLE, 1, 0, 0), amount, key(account, 0), balance, 0, reservation);
+    }
+
+    /**
+     * Append a record of money in flight that has been credited by another cluster node.
+     * @param reservation sequence number of the reservation record
+     * @return sequence number of the record
+     */
+    long settled(long reservation) throws PaymentEngineException {
+        return append(header(JournalRecord.SETTLE, 0, 0, 0), 0, 0, 0, 0, reservation);
+    }
+
+    /**
+     * Append a record of money debited by another cluster node and credited here.
+     * @param node node that has debited the money
+     * @param reservation sequence number of the reservation record of that node
+     * @return sequence number of the record
+     */
+    long credit(long amount, int account, long balance, int node, long reservation) throws PaymentEngineException {
+        return append(header(JournalRecord.CREDIT, 1, 0, 0), amount, key(account, 0), balance, key(node, 0), reservation);
+    }
+
+    /**
+     * Reserve contiguous sequence numbers for a group of records.
+     * Each of them must be written afterwards with {@link #batch}.
+     * @return sequence number of the first record of the group
+     */
+    long reserve(int count) {
+        return tail.getAndAdd(count);
+    }
+
+    /**
+     * Write a record of a group reserved with {@link #reserve}.
+     */
+    void batch(long sequence, int index, int size, int entries, int account1, long value1, int account2, long value2)
+            throws PaymentEngineException {
+        write(sequence, header(JournalRecord.BATCH, entries, index, size), 0,
+                key(account1, 0), value1, entries>1 ? key(account2, 0) : 0, value2);
+    }
+
+    private long append(long header, long amount, long key1, long value1, long key2, long value2) throws PaymentEngineException {
+        long sequence = tail.getAndIncrement();
+        write(sequence, header, amount, key1, value1, key2, value2);
+        return sequence;
+    }
+
+    private void write(long sequence, long header, long amount, long key1, long value1, long key2, long value2)
+            throws PaymentEngineException {
+        // wait for the slot to be released by the writer thread
+        while (sequence-consumed > mask) {
+            checkFailure();
+            LockSupport.parkNanos(WAIT_PARK_NANOS);
+        }
+        int slot = (int) (sequence & mask);
+        int base = slot*SLOT_LONGS;
+        ring[base] = header;
+        ring[base+1] = amount;
+        ring[base+2] = key1;
+        ring[base+3] = value1;
+        ring[base+4] = key2;
+        ring[base+5] = value2;
+        published.lazySet(slot, sequence);
+        if (idle) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Wait until the record with specified sequence number and all preceding ones are on disk.
+     * @param sequence sequence number of the record
+     * @throws PaymentEngineException if journal has failed to write records
+     */
+    void awaitDurable(long sequence) throws PaymentEngineException {
+        for (int spins = 0; durable <= sequence; spins++) {
+            checkFailure();
+            if (spins < 100) Thread.yield();
+            else LockSupport.parkNanos(WAIT_PARK_NANOS);
+        }
+    }
+
+    /**
+     * @return sequence number of the next record to be appended
+     */
+    long position() {
+        return tail.get();
+    }
+
+    private void checkFailure() throws PaymentEngineException {
+        if (failure != null) throw new PaymentEngineException(ErrorCode.UNAVAILABLE, "Journal is not available");
+    }
+
+    /**
+     * Writer thread loop.
+     */
+    private void writeRecords() {
+        try {
+            while (true) {
+                long next = consumed;
+                int slot = (int) (next & mask);
+                if (published.get(slot) != next) {
+                    if (!running) break;
+                    idle = true;
+                    if (published.get(slot) != next && running) LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    idle = false;
+                    continue;
+                }
+                // give concurrent transfers a chance to join this fsync
+                if (commitDelayNanos > 0) LockSupport.parkNanos(commitDelayNanos);
+                flush(next);
+            }
+        } catch (IOException e) {
+            log.error("Journal write failed: "+e.getMessage());
+            failure = e;
+        }
+    }
+
+    private void flush(long next) throws IOException {
+        buffer.clear();
+        long segmentEnd = segmentStart+segmentRecords;
+        long sequence = next;
+        while (sequence < segmentEnd && buffer.hasRemaining() && published.get((int) (sequence & mask)) == sequence) {
+            int base = (int) (sequence & mask)*SLOT_LONGS;
+            int start = buffer.position();
+            buffer.putLong(sequence);
+            for (int i=0;i<SLOT_LONGS;i++) buffer.putLong(ring[base+i]);
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(start);
+            payload.limit(start+RECORD_SIZE-8);
+            crc.reset();
+            crc.update(payload);
+            buffer.putLong(crc.getValue());
+            sequence++;
+        }
+        consumed = sequence;
+        buffer.flip();
+        long position = (next-segmentStart)*RECORD_SIZE;
+        while (buffer.hasRemaining()) position += segment.write(buffer, position);
+        segment.force(false);
+        durable = sequence;
+        if (sequence == segmentEnd) {
+            segment.close();
+            openSegment(sequence);
+        }
+    }
+
+    private void openSegment(long start) throws IOException {
+        segmentStart = start;
+        segment = FileChannel.open(directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, start, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Replay all valid records of the journal and cut off everything after them.
+     * @return sequence number following the last valid record
+     */
+    private long recover(long from, Consumer<JournalRecord> handler) throws IOException {
+        List<Path> segments = segments();
+        long end = segments.isEmpty() ? from : startOf(segments.get(0));
+        if (end > from) throw new IOException("Journal starts at record "+end+" while checkpoint refers to record "+from);
+        Consumer<JournalRecord> replay = record -> {
+            if (record.sequence >= from) handler.accept(record);
+        };
+        JournalRecord record = new JournalRecord();
+        List<JournalRecord> group = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE*1024);
+        scan:
+        for (Path path : segments) {
+            if (startOf(path) != end + group.size()) break;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer.clear().flip();
+                while (fill(channel, buffer)) {
+                    if (!decode(buffer, end+group.size(), record)) break scan;
+                    if (record.type == JournalRecord.BATCH) {
+                        if (record.groupIndex != group.size()) break scan;
+                        group.add(record.copy());
+                        if (group.size() < record.groupSize) continue;
+                        group.forEach(replay);
+                        end += group.size();
+                        group.clear();
+                    } else {
+                        if (!group.isEmpty()) break scan;
+                        replay.accept(record);
+                        end++;
+                    }
+                }
+            }
+        }
+        // cut off everything that follows the last valid record
+        for (Path path : segments) {
+            long start = startOf(path);
+            if (start >= end) {
+                Files.delete(path);
+            } else if (Files.size(path) > (end-start)*RECORD_SIZE) {
+                log.warn("Journal segment "+path+" is cut off at record "+end);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate((end-start)*RECORD_SIZE);
+                }
+            }
+        }
+        if (end < from) throw new IOException("Journal ends at record "+end+" while checkpoint refers to record "+from);
+        return end;
+    }
+
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= RECORD_SIZE) return true;
+        buffer.compact();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        buffer.flip();
+        return buffer.remaining() >= RECORD_SIZE;
+    }
+
+    private boolean decode(ByteBuffer buffer, long expectedSequence, JournalRecord record) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(payload.position()+RECORD_SIZE-8);
+        crc.reset();
+        crc.update(payload);
+        record.sequence = buffer.getLong();
+        long header = buffer.getLong();
+        record.amount = buffer.getLong();
+        for (int i=0;i<2;i++) {
+            long key = buffer.getLong();
+            record.accounts[i] = (int) (key>>>32);
+            record.cells[i] = (int) key;
+            record.values[i] = buffer.getLong();
+        }
+        long checksum = buffer.getLong();
+        record.type = (int) (header & 0xFF);
+        record.entries = (int) (header>>>8 & 0xFF);
+        record.groupIndex = (int) (header>>>16 & 0xFFFFFF);
+        record.groupSize = (int) (header>>>40);
+        return checksum == crc.getValue() && record.sequence == expectedSequence;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX+"*"+SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(startOf(a), startOf(b)));
+        return segments;
+    }
+
+    private static long startOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Delete segment files that hold only records preceding specified position.
+     * The segment being written is never deleted.
+     * @param position sequence number of the first record to keep
+     */
+    void truncate(long position) throws IOException {
+        List<Path> segments = segments();
+        for (int i=0;i+1<segments.size();i++)
+            if (startOf(segments.get(i+1)) <= position) Files.delete(segments.get(i));
+    }
+
+    /**
+     * Write out all appended records and stop the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Delete all segment files of a closed journal.
+     */
+    void delete() throws IOException {
+        for (Path path : segments()) Files.delete(path);
+    }
+
+}
@@ -0,0 +1,81 @@
+package ru.revolut.transfer;
+
+/**
+ * Journal record as it is read back on recovery.
+ *
+ * Records are redo records: instead of the operation they keep absolute values of balance cells after the operation,
+ * so replaying a record is just setting values. A balance cell is identified by an account number and a cell number:
+ * cell 0 is the whole balance of an account, cell 1+i is stripe i of a hot account.
+ */
+class JournalRecord {
+
+    /**
+     * New account, the first entry holds its initial balance.
+     */
+    static final int CREATE = 1;
+
+    /**
+     * Money transfer, entries hold new values of debited and credited cells.
+     */
+    static final int TRANSFER = 2;
+
+    /**
+     * Account has become hot. The first entry cell holds the number of stripes and the value is the balance moved into stripe 0.
+     */
+    static final int HOT = 3;
+
+    /**
+     * Money moved between stripes of a hot account, entries hold new values of both stripes.
+     */
+    static final int BORROW = 4;
+
+    /**
+     * Part of a batch, i.e. a group of records that is applied all-or-nothing.
+     * Records of a group are contiguous in the journal.
+     */
+    static final int BATCH = 5;
+
+    /**
+     * Money has left the source account of a transfer between two shards, the first entry holds its new balance
+     * and the second one refers to the destination account. Money is in flight until a {@link #SETTLE} record.
+     */
+    static final int RESERVE = 6;
+
+    /**
+     * Money in flight has reached an account, the first entry holds its new balance and the second entry value
+     * is the sequence number of the {@link #RESERVE} record. The account is the source one when money is returned.
+     * There is no first entry when money has been credited by another cluster node.
+     */
+    static final int SETTLE = 7;
+
+    /**
+     * Money debited by another cluster node has been credited here, the first entry holds new balance of the account,
+     * the second entry account is the number of that node and the value is sequence number of its {@link #RESERVE} record.
+     */
+    static final int CREDIT = 8;
+
+    long sequence;
+    int type;
+    int groupIndex;
+    int groupSize;
+    int entries;
+    long amount;
+    final int[] accounts = new int[2];
+    final int[] cells = new int[2];
+    final long[] values = new long[2];
+
+    JournalRecord copy() {
+        JournalRecord copy = new JournalRecord();
+        copy.sequence = sequence;
+        copy.type = type;
+        copy.groupIndex = groupIndex;
+        copy.groupSize = groupSize;
+        copy.entries = entries;
+        copy.amount = amount;
+        System.arraycopy(accounts, 0, copy.accounts, 0, 2);
+        System.arraycopy(cells, 0, copy.cells, 0, 2);
+        System.arraycopy(values, 0, copy.values, 0, 2);
+        return copy;
+    }
+
+}
@@ -0,0 +1,156 @@
+package ru.revolut.transfer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Histogram of latencies in nanoseconds with buckets of logarithmic size, like HdrHistogram:
+ * values below 32 have a bucket each, larger ones are split into 16 buckets per power of two,
+ * so a value is known within 1/16 of it.
+ *
+ * Threads record into a fixed set of recorders chosen by thread id, so recording takes neither locks
+ * nor allocations and threads seldom contend for cache lines, while the number of recorders does not grow
+ * with the number of threads ever started, e.g. a virtual thread per request. Recorders are summed up
+ * when the histogram is read.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64-SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+    // count, sum and max are kept in the cells after buckets, followed by a cache line of padding
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS+1;
+    private static final int MAX = BUCKETS+2;
+    private static final int CELLS = BUCKETS+3+8;
+
+    /**
+     * Number of recorders, a power of two not less than the number of processors, at most 16.
+     */
+    static final int RECORDERS = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()-1))<<1);
+
+    /**
+     * Counts of threads sharing a recorder, created on first use.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> recorders = new AtomicReferenceArray<>(RECORDERS);
+
+    /**
+     * Record a latency.
+     * @param nanos latency in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos<0) nanos = 0;
+        AtomicLongArray counts = recorder();
+        counts.getAndIncrement(bucket(nanos));
+        counts.getAndIncrement(COUNT);
+        counts.getAndAdd(SUM, nanos);
+        for (long max = counts.get(MAX); nanos>max && !counts.compareAndSet(MAX, max, nanos); max = counts.get(MAX));
+    }
+
+    private AtomicLongArray recorder() {
+        long id = Thread.currentThread().getId();
+        int index = (int) ((id*0x9E3779B97F4A7C15L) >>> 32) & (RECORDERS-1);
+        AtomicLongArray counts = recorders.get(index);
+        if (counts==null){
+            recorders.compareAndSet(index, null, new AtomicLongArray(CELLS));
+            counts = recorders.get(index);
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of recorders created so far
+     */
+    int recorders() {
+        int created = 0;
+        for (int i=0;i<RECORDERS;i++) if (recorders.get(i)!=null) created++;
+        return created;
+    }
+
+    /**
+     * Record the time passed since the given moment.
+     * @param startNanos {@link System#nanoTime()} at the start
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime()-startNanos);
+    }
+
+    static int bucket(long value) {
+        if (value < 2*SUB_BUCKETS) return (int) value;
+        int shift = 63-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS;
+        return (shift<<SUB_BUCKET_BITS) + (int) (value>>>shift);
+    }
+
+    /**
+     * @return the largest value that falls into the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < 2*SUB_BUCKETS) return bucket;
+        int shift = (bucket>>>SUB_BUCKET_BITS)-1;
+        long subBucket = (bucket & (SUB_BUCKETS-1)) + SUB_BUCKETS;
+        return ((subBucket+1)<<shift)-1;
+    }
+
+    /**
+     * @return sum of all recorders at the moment
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int r=0;r<RECORDERS;r++){
+            AtomicLongArray counts = recorders.get(r);
+            if (counts==null) continue;
+            for (int i=0;i<BUCKETS;i++) snapshot.counts[i] += counts.get(i);
+            snapshot.count += counts.get(COUNT);
+            snapshot.sum += counts.get(SUM);
+            snapshot.max = Math.max(snapshot.max, counts.get(MAX));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Latencies recorded so far.
+     */
+    static final class Snapshot {
+
+        private final long[] counts = new long[BUCKETS];
+
+        private long count;
+
+        private long sum;
+
+        private long max;
+
+        long getCount() {
+            return count;
+        }
+
+        long getSum() {
+            return sum;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @param quantile quantile from 0 to 1
+         * @return value that the given share of latencies does not exceed, within the precision of buckets
+         */
+        long valueAt(double quantile) {
+            long total = 0;
+            for (long bucketCount : counts) total += bucketCount;
+            if (total==0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile*total));
+            long seen = 0;
+            for (int i=0;i<BUCKETS;i++){
+                seen += counts[i];
+                if (seen>=rank) return Math.min(highestValue(i), max);
+            }
+            return max;
+        }
+    }
+
+}
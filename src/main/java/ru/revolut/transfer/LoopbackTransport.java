@@ -0,0 +1,35 @@
+package ru.revolut.transfer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport between nodes running in the same JVM, e.g. to test a cluster on one machine.
+ * A node is reachable while it is connected.
+ */
+public class LoopbackTransport implements ClusterTransport {
+
+    private final Map<Integer, PaymentEngine> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Make a node reachable.
+     */
+    public void connect(int node, PaymentEngine engine) {
+        nodes.put(node, engine);
+    }
+
+    /**
+     * Make a node unreachable, as if it has crashed or the network is down.
+     */
+    public void disconnect(int node) {
+        nodes.remove(node);
+    }
+
+    @Override
+    public ClusterMessage send(int node, ClusterMessage request) throws PaymentEngineException {
+        PaymentEngine engine = nodes.get(node);
+        if (engine==null) throw new PaymentEngineException(ErrorCode.UNAVAILABLE, "Node "+node+" is not available");
+        return engine.handle(request);
+    }
+
+}
@@ -0,0 +1,222 @@
+package ru.revolut.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ledger of balances kept in a memory-mapped file instead of account objects on heap, for hundreds of millions
+ * of accounts: heap footprint does not depend on the number of accounts, and a restart finds balances in the file.
+ *
+ * The balance of account n is a long in slot n of the file, with the top bit set once the account exists,
+ * so the file is indexed by account number and sparse where there are no accounts. Slots are mapped in chunks
+ * of 1 GB on first use. Balances are changed in place under monitors of lock stripes chosen by account number,
+ * taken in the order of stripes, so a transfer locks two stripes the same way it locks two accounts.
+ *
+ * A transfer writes its new balances into an intent slot of its lower stripe before it writes them into
+ * the account slots, and clears the intent afterwards. Intents left in the file by a killed process are applied
+ * again on open, so a transfer is never seen half applied. Balances reach the disk when the operating system
+ * writes the pages out or on close, a power loss may lose recent transfers.
+ */
+class MappedLedger implements Closeable {
+
+    private static final long MAGIC = 0x4C45444745523031L;
+
+    private static final int STRIPES = 4096;
+
+    // intent of a stripe: state, from account, to account, new balances of both
+    private static final int INTENT_SIZE = 32;
+    private static final int INTENTS = 64;
+    private static final int STATE = 0;
+    private static final int FROM = 8;
+    private static final int TO = 12;
+    private static final int FROM_VALUE = 16;
+    private static final int TO_VALUE = 24;
+
+    /**
+     * Offset of slot 0, the header and intents take less.
+     */
+    private static final long DATA = 1<<20;
+
+    private static final int CHUNK_BITS = 27;
+
+    private static final long EXISTS = Long.MIN_VALUE;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer header;
+
+    private final AtomicReferenceArray<MappedByteBuffer> chunks = new AtomicReferenceArray<>(1<<(31-CHUNK_BITS));
+
+    private final Object[] locks = new Object[STRIPES];
+
+    /**
+     * Written between stores that must reach the mapping in order.
+     */
+    private volatile int fence;
+
+    /**
+     * Open or create a ledger file, applying intents of transfers interrupted by a crash.
+     * @throws IOException in case of I/O error or if the file is not a ledger
+     */
+    MappedLedger(Path path) throws IOException {
+        if (path.getParent()!=null) Files.createDirectories(path.getParent());
+        file = new RandomAccessFile(path.toFile(), "rw");
+        boolean created = file.length()==0;
+        header = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA);
+        header.order(ByteOrder.nativeOrder());
+        if (created) {
+            header.putLong(0, MAGIC);
+        } else if (header.getLong(0)!=MAGIC) {
+            file.close();
+            throw new IOException("Not a ledger file: "+path);
+        }
+        for (int i=0;i<STRIPES;i++) locks[i] = new Object();
+        for (int i=0;i<STRIPES;i++){
+            int intent = INTENTS+i*INTENT_SIZE;
+            if (header.getLong(intent+STATE)==0) continue;
+            put(header.getInt(intent+FROM), header.getLong(intent+FROM_VALUE));
+            put(header.getInt(intent+TO), header.getLong(intent+TO_VALUE));
+            header.putLong(intent+STATE, 0);
+        }
+    }
+
+    /**
+     * Create an account.
+     * @throws PaymentEngineException if the account exists already
+     */
+    void create(int number, long balance) throws PaymentEngineException {
+        MappedByteBuffer chunk = chunk(number, true);
+        long offset = offset(number);
+        synchronized (locks[number & STRIPES-1]){
+            if (chunk.getLong((int) offset)!=0) throw PaymentEngineException.ACCOUNT_EXISTS;
+            chunk.putLong((int) offset, balance | EXISTS);
+        }
+    }
+
+    /**
+     * Read balance of an account without locking, it may lag behind a transfer being applied.
+     * @return balance in cents
+     * @throws PaymentEngineException if the account is not found
+     */
+    long balance(int number) throws PaymentEngineException {
+        MappedByteBuffer chunk = chunk(number, false);
+        long slot = chunk==null ? 0 : chunk.getLong((int) offset(number));
+        if (slot==0) throw PaymentEngineException.ACCOUNT_NOT_FOUND;
+        return slot & ~EXISTS;
+    }
+
+    /**
+     * Transfer money between two different accounts.
+     * @throws PaymentEngineException if an account is not found or the source one lacks money
+     */
+    void transfer(int from, int to, long amount) throws PaymentEngineException {
+        MappedByteBuffer fromChunk = chunk(from, false);
+        MappedByteBuffer toChunk = chunk(to, false);
+        if (fromChunk==null || toChunk==null) throw PaymentEngineException.ACCOUNT_NOT_FOUND;
+        int fromOffset = (int) offset(from);
+        int toOffset = (int) offset(to);
+        int lower = Math.min(from & STRIPES-1, to & STRIPES-1);
+        int upper = Math.max(from & STRIPES-1, to & STRIPES-1);
+        synchronized (locks[lower]){
+            synchronized (locks[upper]){
+                long fromSlot = fromChunk.getLong(fromOffset);
+                long toSlot = toChunk.getLong(toOffset);
+                if (fromSlot==0 || toSlot==0) throw PaymentEngineException.ACCOUNT_NOT_FOUND;
+                if ((fromSlot & ~EXISTS) < amount) throw PaymentEngineException.INSUFFICIENT_FUNDS;
+                long fromValue = fromSlot-amount;
+                long toValue = toSlot+amount;
+                int intent = INTENTS+lower*INTENT_SIZE;
+                header.putInt(intent+FROM, from);
+                header.putInt(intent+TO, to);
+                header.putLong(intent+FROM_VALUE, fromValue);
+                header.putLong(intent+TO_VALUE, toValue);
+                fence = 0;
+                header.putLong(intent+STATE, 1);
+                fence = 0;
+                fromChunk.putLong(fromOffset, fromValue);
+                toChunk.putLong(toOffset, toValue);
+                fence = 0;
+                header.putLong(intent+STATE, 0);
+            }
+        }
+    }
+
+    /**
+     * Visit existing accounts within a range of numbers in ascending order of numbers.
+     * @return number to continue the scan from or -1 if there are no more accounts in the range
+     */
+    int scan(int from, int to, int limit, AccountVisitor visitor) throws PaymentEngineException, IOException {
+        int visited = 0;
+        for (long number = from; number<=to; number++){
+            MappedByteBuffer chunk = chunk((int) number, false);
+            if (chunk==null){
+                // the whole chunk has no accounts
+                number = ((number >>> CHUNK_BITS)+1 << CHUNK_BITS)-1;
+                continue;
+            }
+            long slot = chunk.getLong((int) offset((int) number));
+            if (slot==0) continue;
+            if (visited==limit) return (int) number;
+            visitor.visit((int) number, slot & ~EXISTS);
+            visited++;
+        }
+        return -1;
+    }
+
+    /**
+     * Write out changed pages and release the file.
+     */
+    @Override
+    public void close() throws IOException {
+        header.force();
+        for (int i=0;i<chunks.length();i++)
+            if (chunks.get(i)!=null) chunks.get(i).force();
+        file.close();
+    }
+
+    private void put(int number, long value) throws IOException {
+        try {
+            chunk(number, true).putLong((int) offset(number), value);
+        } catch (PaymentEngineException e) {
+            throw new IOException("Ledger file refers to illegal account "+number);
+        }
+    }
+
+    private static long offset(int number) {
+        return (long) (number & (1<<CHUNK_BITS)-1)*8;
+    }
+
+    /**
+     * @param create whether to map the chunk if it is not mapped yet
+     * @return chunk holding the slot of an account or null if it is not mapped and not to be created
+     */
+    private MappedByteBuffer chunk(int number, boolean create) throws PaymentEngineException {
+        if (number<0) throw PaymentEngineException.NEGATIVE_ACCOUNT_NUMBER;
+        int index = number >>> CHUNK_BITS;
+        MappedByteBuffer chunk = chunks.get(index);
+        if (chunk!=null) return chunk;
+        long position = DATA+((long) index << CHUNK_BITS)*8;
+        synchronized (chunks){
+            chunk = chunks.get(index);
+            if (chunk!=null) return chunk;
+            try {
+                // chunks written before are mapped on first use after a restart, absent ones are not created by reads
+                if (!create && file.length()<=position) return null;
+                chunk = file.getChannel().map(FileChannel.MapMode.READ_WRITE, position, (1L<<CHUNK_BITS)*8);
+            } catch (IOException e) {
+                throw new PaymentEngineException(ErrorCode.UNAVAILABLE, "Ledger file is not available: "+e.getMessage());
+            }
+            chunk.order(ByteOrder.nativeOrder());
+            chunks.set(index, chunk);
+            return chunk;
+        }
+    }
+
+}
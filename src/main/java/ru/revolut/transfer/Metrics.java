@@ -0,0 +1,135 @@
+package ru.revolut.transfer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and rejections of a Payment Engine and its REST API, written out in Prometheus text format.
+ */
+class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1};
+
+    private static final ErrorCode[] CODES = ErrorCode.values();
+
+    final LatencyHistogram createAccount = new LatencyHistogram();
+
+    final LatencyHistogram createAccounts = new LatencyHistogram();
+
+    final LatencyHistogram getAccountView = new LatencyHistogram();
+
+    final LatencyHistogram transfer = new LatencyHistogram();
+
+    final LatencyHistogram transferBatch = new LatencyHistogram();
+
+    final LatencyHistogram hold = new LatencyHistogram();
+
+    final LatencyHistogram capture = new LatencyHistogram();
+
+    final LatencyHistogram release = new LatencyHistogram();
+
+    /**
+     * Time a transfer waits for monitors of its accounts in locking mode.
+     */
+    final LatencyHistogram lockWait = new LatencyHistogram();
+
+    /**
+     * Time a transfer holds monitors of its accounts in locking mode.
+     */
+    final LatencyHistogram lockHold = new LatencyHistogram();
+
+    private final Map<String, LatencyHistogram> routes = new ConcurrentSkipListMap<>();
+
+    /**
+     * Rejections by ordinal of their error code, a fixed set of labels however many messages there are.
+     */
+    private final LongAdder[] rejections = new LongAdder[CODES.length];
+
+    Metrics() {
+        for (int i=0;i<rejections.length;i++) rejections[i] = new LongAdder();
+    }
+
+    /**
+     * @param name route name, e.g. "PUT /transfer"
+     * @return latency histogram of REST API route
+     */
+    LatencyHistogram route(String name) {
+        return routes.computeIfAbsent(name, route -> new LatencyHistogram());
+    }
+
+    /**
+     * Count a request rejected with the given error code.
+     */
+    void rejected(ErrorCode code) {
+        rejections[code.ordinal()].increment();
+    }
+
+    /**
+     * @return all metrics in Prometheus text exposition format
+     */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        header(out, "transfer_api_request_seconds", "summary", "Latency of REST API requests by route.");
+        for (Map.Entry<String, LatencyHistogram> route : routes.entrySet())
+            summary(out, "transfer_api_request_seconds", "route", route.getKey(), route.getValue());
+        header(out, "transfer_engine_operation_seconds", "summary", "Latency of payment engine operations.");
+        summary(out, "transfer_engine_operation_seconds", "operation", "createAccount", createAccount);
+        summary(out, "transfer_engine_operation_seconds", "operation", "createAccounts", createAccounts);
+        summary(out, "transfer_engine_operation_seconds", "operation", "getAccountView", getAccountView);
+        summary(out, "transfer_engine_operation_seconds", "operation", "transfer", transfer);
+        summary(out, "transfer_engine_operation_seconds", "operation", "transferBatch", transferBatch);
+        summary(out, "transfer_engine_operation_seconds", "operation", "hold", hold);
+        summary(out, "transfer_engine_operation_seconds", "operation", "capture", capture);
+        summary(out, "transfer_engine_operation_seconds", "operation", "release", release);
+        header(out, "transfer_account_lock_wait_seconds", "summary", "Time a transfer waits for monitors of its accounts.");
+        summary(out, "transfer_account_lock_wait_seconds", null, null, lockWait);
+        header(out, "transfer_account_lock_hold_seconds", "summary", "Time a transfer holds monitors of its accounts.");
+        summary(out, "transfer_account_lock_hold_seconds", null, null, lockHold);
+        header(out, "transfer_rejections_total", "counter", "Rejected requests by error code.");
+        for (int i=0;i<CODES.length;i++)
+            out.append("transfer_rejections_total{code=\"").append(CODES[i].name()).append("\"} ").append(rejections[i].sum()).append('\n');
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String label, String value, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double quantile : QUANTILES){
+            out.append(name).append('{');
+            if (label!=null){
+                out.append(label).append("=\"");
+                escape(out, value);
+                out.append("\",");
+            }
+            out.append("quantile=\"").append(quantile).append("\"} ").append(seconds(snapshot.valueAt(quantile))).append('\n');
+        }
+        labels(out.append(name).append("_sum"), label, value).append(' ').append(seconds(snapshot.getSum())).append('\n');
+        labels(out.append(name).append("_count"), label, value).append(' ').append(snapshot.getCount()).append('\n');
+    }
+
+    private static StringBuilder labels(StringBuilder out, String label, String value) {
+        if (label==null) return out;
+        out.append('{').append(label).append("=\"");
+        escape(out, value);
+        return out.append("\"}");
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i=0;i<value.length();i++){
+            char c = value.charAt(i);
+            if (c=='\\' || c=='"') out.append('\\').append(c);
+            else if (c=='\n') out.append("\\n");
+            else out.append(c);
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos/1e9;
+    }
+
+}
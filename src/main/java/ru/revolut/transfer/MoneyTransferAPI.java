@@ -2,12 +2,31 @@ package ru.revolut.transfer;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+import spark.Route;
 import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static spark.Service.ignite;
@@ -19,94 +38,472 @@ public class MoneyTransferAPI {
 
     private static Logger log = LoggerFactory.getLogger(MoneyTransferAPI.class);
 
-    private static Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    private static final String CLIENT_ID = "X-Client-Id";
+
+    private static final int DEFAULT_SCAN_LIMIT = 1000;
+
+    private static final int MAX_SCAN_LIMIT = 1_000_000;
+
+    private static final byte[] ACCOUNTS = "{\"accounts\":[".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TRANSACTIONS = "{\"transactions\":[".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TOTAL = "],\"total\":".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] NEXT = "],\"next\":".getBytes(StandardCharsets.US_ASCII);
+
+    static Gson gson = new GsonBuilder().create();
+
+    private static boolean prettyJson;
 
     private static PaymentEngine engine = PaymentEngine.getInstance();
 
     private static Service sparkService = null;
 
+    /**
+     * Requests applied concurrently or null if they are not limited.
+     */
+    private static Semaphore requests = null;
+
+    private static long requestQueueTimeoutMillis;
+
+    /**
+     * Rate limits of transfers per source account and of requests per client, null if not limited.
+     */
+    private static RateLimiter accountLimiter = null;
+
+    private static RateLimiter clientLimiter = null;
+
+    private static RejectionLog rejections;
+
+    /**
+     * Binary TCP listener or null if it is not started.
+     */
+    private static BinaryServer binaryServer = null;
+
     public static void main(String[] args) {
-        start();
+        start(ServerConfig.fromSystemProperties());
     }
 
     /**
-     * Start Spark Server and create set of money transfer API routes
+     * Start Spark Server with default settings and create set of money transfer API routes
      */
     public static void start() {
+        start(new ServerConfig());
+    }
+
+    /**
+     * Start Spark Server and create set of money transfer API routes
+     * @param config server settings
+     */
+    public static void start(ServerConfig config) {
 
         if (sparkService!=null) return;
 
-        // Run Spark server on port 8080
-        sparkService = ignite().port(8080);
+        // Jetty server factory is global for all Spark services
+        ExecutorService virtualThreads = config.getThreadMode()==ServerConfig.ThreadMode.VIRTUAL ? newVirtualThreadPerTaskExecutor() : null;
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), virtualThreads==null
+                ? new EmbeddedJettyFactory()
+                : new EmbeddedJettyFactory().withThreadPool(new ExecutorThreadPool(virtualThreads)));
+        requests = config.getMaxConcurrentRequests()>0 ? new Semaphore(config.getMaxConcurrentRequests()) : null;
+        requestQueueTimeoutMillis = config.getRequestQueueTimeoutMillis();
+        accountLimiter = config.getAccountRatePerSecond()>0
+                ? new RateLimiter(config.getAccountRatePerSecond(), config.getAccountBurst(), config.getRateLimitBuckets()) : null;
+        clientLimiter = config.getClientRatePerSecond()>0
+                ? new RateLimiter(config.getClientRatePerSecond(), config.getClientBurst(), config.getRateLimitBuckets()) : null;
+        prettyJson = config.isPrettyJson();
+        rejections = new RejectionLog(config.getRejectionLogIntervalMillis());
+        if (config.getBinaryPort()>0){
+            try {
+                binaryServer = new BinaryServer(engine, rejections, config);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        gson = prettyJson ? new GsonBuilder().setPrettyPrinting().create() : new GsonBuilder().create();
+
+        sparkService = ignite().port(config.getPort());
+        if (virtualThreads==null && config.getMaxThreads()>0) sparkService.threadPool(config.getMaxThreads());
 
         /*
          * Set of REST API routes
          */
 
         // POST method to create new account
-        sparkService.post("/account/:accountNumber/:accountBalance",(request, response) -> {
+        sparkService.post("/account/:accountNumber/:accountBalance", timed("POST /account", (request, response) -> {
             int accountNumber;
-            BigDecimal accountBalance;
             try {
                 accountNumber = Integer.parseInt(request.params(":accountNumber"));
-                accountBalance = new BigDecimal(request.params(":accountBalance"));
             } catch (NumberFormatException e){
-                throw new PaymentEngineException("Incorrect number format provided");
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
             }
-            engine.createAccount(accountNumber, accountBalance);
+            long accountBalance = Cents.parse(request.params(":accountBalance"));
+            engine.createAccountCents(accountNumber, accountBalance);
             return "";
-        });
+        }));
+
+        // POST method to create accounts in bulk from a stream of CSV or NDJSON lines, optionally presizing the ledger
+        sparkService.post("/accounts", timed("POST /accounts", (request, response) -> {
+            String expected = request.queryParams("expected");
+            if (expected!=null){
+                try {
+                    engine.presize(Integer.parseInt(expected));
+                } catch (NumberFormatException e){
+                    throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+                }
+            }
+            String contentType = request.contentType();
+            boolean csv = contentType!=null && contentType.startsWith("text/csv");
+            return new AccountImport(engine, csv).run(streamedBody(request));
+        }), gson::toJson);
+
+        // GET method to stream accounts within a range of numbers in ascending order, a page at a time
+        sparkService.get("/accounts", timed("GET /accounts", (request, response) -> {
+            int from;
+            int to;
+            int limit;
+            try {
+                from = parseIntParam(request, "from", 0);
+                to = parseIntParam(request, "to", Integer.MAX_VALUE);
+                limit = parseIntParam(request, "limit", DEFAULT_SCAN_LIMIT);
+            } catch (NumberFormatException e){
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+            }
+            if (limit>MAX_SCAN_LIMIT) throw new PaymentEngineException("Limit must not exceed "+MAX_SCAN_LIMIT);
+            // arguments are checked before anything is written out
+            if (from<0 || limit<=0) throw new PaymentEngineException("Account number must be non-negative and limit must be positive");
+            response.type("application/json");
+            // accounts are written out as they are scanned, Jetty sends the body in chunks
+            OutputStream out = response.raw().getOutputStream();
+            byte[] json = new byte[AccountJson.MAX_LENGTH+1];
+            out.write(ACCOUNTS);
+            int[] written = {0};
+            int next = engine.scanAccounts(from, to, limit, (number, balance) -> {
+                int length = 0;
+                if (written[0]++>0) json[length++] = ',';
+                length += AccountJson.encode(number, balance, false, json, length);
+                out.write(json, 0, length);
+            });
+            out.write(NEXT);
+            out.write((next<0 ? "null" : Integer.toString(next)).getBytes(StandardCharsets.US_ASCII));
+            out.write('}');
+            return "";
+        }));
+
+        // GET method to stream balances of given accounts, or of all of them, at one instant
+        sparkService.get("/accounts/snapshot", timed("GET /accounts/snapshot", (request, response) -> {
+            String list = request.queryParams("numbers");
+            int[] numbers = null;
+            long[] balances = null;
+            if (list!=null){
+                String[] items = list.split(",");
+                numbers = new int[items.length];
+                try {
+                    for (int i=0;i<items.length;i++) numbers[i] = Integer.parseInt(items[i].trim());
+                } catch (NumberFormatException e){
+                    throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+                }
+                balances = engine.snapshotBalances(numbers);
+            }
+            response.type("application/json");
+            OutputStream out = response.raw().getOutputStream();
+            byte[] json = new byte[AccountJson.MAX_LENGTH+1];
+            out.write(ACCOUNTS);
+            int[] written = {0};
+            AccountVisitor visitor = (number, balance) -> {
+                int length = 0;
+                if (written[0]++>0) json[length++] = ',';
+                length += AccountJson.encode(number, balance, false, json, length);
+                out.write(json, 0, length);
+            };
+            long total = 0;
+            if (numbers==null){
+                total = engine.snapshotAccounts(visitor);
+            } else {
+                for (int i=0;i<numbers.length;i++){
+                    visitor.visit(numbers[i], balances[i]);
+                    total += balances[i];
+                }
+            }
+            out.write(TOTAL);
+            out.write(BigDecimal.valueOf(total, 2).toPlainString().getBytes(StandardCharsets.US_ASCII));
+            out.write('}');
+            return "";
+        }));
 
         // GET method to retrieve an acoount by its number
-        sparkService.get("/account/:accountNumber",(request, response) -> {
+        sparkService.get("/account/:accountNumber", timed("GET /account", (request, response) -> {
+            int accountNumber;
+            try {
+                accountNumber = Integer.parseInt(request.params(":accountNumber"));
+            } catch (NumberFormatException e){
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+            }
+            long balance = engine.getAccountBalanceCents(accountNumber);
+            // written straight into the response, account reads are the bulk of traffic
+            response.type("application/json");
+            AccountJson.write(accountNumber, balance, prettyJson, response.raw().getOutputStream());
+            return "";
+        }));
+
+        // GET method to stream transactions of an account from the newest one, a page at a time
+        sparkService.get("/account/:accountNumber/transactions", timed("GET /account/transactions", (request, response) -> {
+            int accountNumber;
+            long before;
+            int limit;
+            try {
+                accountNumber = Integer.parseInt(request.params(":accountNumber"));
+                String cursor = request.queryParams("before");
+                before = cursor==null ? -1 : Long.parseLong(cursor);
+                limit = parseIntParam(request, "limit", DEFAULT_SCAN_LIMIT);
+            } catch (NumberFormatException e){
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+            }
+            if (limit>MAX_SCAN_LIMIT) throw new PaymentEngineException("Limit must not exceed "+MAX_SCAN_LIMIT);
+            // the engine checks arguments before the first transaction, so nothing is written out until then
+            OutputStream out = response.raw().getOutputStream();
+            byte[] json = new byte[AccountJson.MAX_TRANSACTION_LENGTH+1];
+            int[] written = {0};
+            TransactionVisitor visitor = (id, transfer, counterparty, amount, time, balance) -> {
+                int length = 0;
+                if (written[0]++==0) {
+                    response.type("application/json");
+                    out.write(TRANSACTIONS);
+                } else {
+                    json[length++] = ',';
+                }
+                length += AccountJson.encodeTransaction(id, transfer, counterparty, amount, time, balance, json, length);
+                out.write(json, 0, length);
+            };
+            long next = engine.scanTransactions(accountNumber, before, limit, visitor);
+            if (written[0]==0) {
+                response.type("application/json");
+                out.write(TRANSACTIONS);
+            }
+            out.write(NEXT);
+            out.write((next<0 ? "null" : Long.toString(next)).getBytes(StandardCharsets.US_ASCII));
+            out.write('}');
+            return "";
+        }));
+
+        // PUT method to mark an account as hot, i.e. heavily debited or credited one
+        sparkService.put("/account/:accountNumber/hot", timed("PUT /account/hot", (request, response) -> {
             int accountNumber;
             try {
                 accountNumber = Integer.parseInt(request.params(":accountNumber"));
             } catch (NumberFormatException e){
-                throw new PaymentEngineException("Incorrect number format provided");
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
             }
-            return engine.getAccountView(accountNumber);
-        }, gson::toJson);
+            engine.markAccountHot(accountNumber);
+            return "";
+        }));
 
-        // PUT method to transfer money between accounts
-        sparkService.put("/transfer/:accountFromNumber/:accountToNumber/:amount",(request, response) -> {
+        // PUT method to transfer money between accounts, applied once per optional Idempotency-Key header
+        sparkService.put("/transfer/:accountFromNumber/:accountToNumber/:amount", timed("PUT /transfer", ":accountFromNumber", (request, response) -> {
             int accountFromNumber;
             int accountToNumber;
-            BigDecimal amount;
             try {
                 accountFromNumber = Integer.parseInt(request.params(":accountFromNumber"));
                 accountToNumber = Integer.parseInt(request.params(":accountToNumber"));
-                amount = new BigDecimal(request.params(":amount"));
             } catch (NumberFormatException e) {
-                throw new PaymentEngineException("Incorrect number format provided");
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+            }
+            long amount = Cents.parse(request.params(":amount"));
+            // declined transfers are the bulk of a rejection storm: their exceptions are preallocated and stackless,
+            // so they allocate nothing, and the rejection is returned rather than thrown through the route
+            PaymentEngineException rejection = engine.tryTransferCents(accountFromNumber, accountToNumber, amount, request.headers(IDEMPOTENCY_KEY));
+            return rejection==null ? "" : rejected(response, rejection);
+        }));
+
+        // POST method to hold money of an account for a later capture, for ttlSeconds or the default time
+        sparkService.post("/account/:accountNumber/hold/:amount", timed("POST /account/hold", ":accountNumber", (request, response) -> {
+            int accountNumber;
+            long ttlSeconds;
+            try {
+                accountNumber = Integer.parseInt(request.params(":accountNumber"));
+                String ttl = request.queryParams("ttlSeconds");
+                ttlSeconds = ttl==null ? 0 : Long.parseLong(ttl);
+            } catch (NumberFormatException e) {
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+            }
+            long amount = Cents.parse(request.params(":amount"));
+            long hold = engine.holdCents(accountNumber, amount, TimeUnit.SECONDS.toMillis(ttlSeconds));
+            return new HoldView(hold, accountNumber, BigDecimal.valueOf(amount, 2),
+                    BigDecimal.valueOf(engine.getAvailableBalanceCents(accountNumber), 2));
+        }), gson::toJson);
+
+        // PUT method to capture a hold, i.e. to transfer a part of its money to another account and release the rest
+        sparkService.put("/hold/:holdId/capture/:accountToNumber/:amount", timed("PUT /hold/capture", (request, response) -> {
+            long holdId;
+            int accountToNumber;
+            try {
+                holdId = Long.parseLong(request.params(":holdId"));
+                accountToNumber = Integer.parseInt(request.params(":accountToNumber"));
+            } catch (NumberFormatException e) {
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
             }
-            engine.transfer(accountFromNumber,accountToNumber,amount);
+            engine.captureCents(holdId, accountToNumber, Cents.parse(request.params(":amount")));
             return "";
+        }));
+
+        // DELETE method to release a hold
+        sparkService.delete("/hold/:holdId", timed("DELETE /hold", (request, response) -> {
+            long holdId;
+            try {
+                holdId = Long.parseLong(request.params(":holdId"));
+            } catch (NumberFormatException e) {
+                throw PaymentEngineException.INCORRECT_NUMBER_FORMAT;
+            }
+            engine.releaseHold(holdId);
+            return "";
+        }));
+
+        // POST method to apply a batch of transfers given as JSON array, optionally all-or-nothing,
+        // applied once per optional Idempotency-Key header
+        sparkService.post("/transfers", timed("POST /transfers", (request, response) -> {
+            TransferRequest[] transfers;
+            try {
+                transfers = gson.fromJson(request.body(), TransferRequest[].class);
+            } catch (JsonParseException e) {
+                throw PaymentEngineException.INCORRECT_BATCH_FORMAT;
+            }
+            if (transfers==null) throw PaymentEngineException.INCORRECT_BATCH_FORMAT;
+            boolean atomic = Boolean.parseBoolean(request.queryParams("atomic"));
+            return engine.transferBatch(Arrays.asList(transfers), atomic, request.headers(IDEMPOTENCY_KEY));
+        }), gson::toJson);
+
+        // GET method to retrieve latencies and rejections in Prometheus text format
+        sparkService.get("/metrics",(request, response) -> {
+            response.type("text/plain; version=0.0.4");
+            return engine.getMetrics().toPrometheus();
         });
 
-        // After-filter to set ContentType header for each response
+        // After-filter to set ContentType header for each response that has not set its own
         sparkService.after((request, response) -> {
-            response.type("application/json");
+            if (response.type()==null) response.type("application/json");
         });
 
-        // Exception handler
-        sparkService.exception(PaymentEngineException.class, (exception, request, response) -> {
-            log.error(exception.getMessage());
-            response.status(500);
-            response.body(exception.getMessage());
-        });
+        // Exception handler of rejected requests
+        sparkService.exception(PaymentEngineException.class,
+                (exception, request, response) -> response.body(rejected(response, exception)));
 
         // wait a bit for Spark service to be initialized
         sparkService.awaitInitialization();
 
     }
 
+    /**
+     * Wrap a route to limit request rate and concurrent requests and record its latency.
+     * @param name route name in metrics
+     * @param route route to wrap
+     * @return wrapped route
+     */
+    private static Route timed(String name, Route route) {
+        return timed(name, null, route);
+    }
+
+    /**
+     * Wrap a route to limit request rate and concurrent requests and record its latency.
+     * Requests over the limits are rejected with 429 status before anything else is done.
+     * @param name route name in metrics
+     * @param accountParam path parameter of the source account whose rate is limited or null
+     * @param route route to wrap
+     * @return wrapped route
+     */
+    private static Route timed(String name, String accountParam, Route route) {
+        LatencyHistogram histogram = engine.getMetrics().route(name);
+        Semaphore requests = MoneyTransferAPI.requests;
+        RateLimiter accountLimiter = accountParam==null ? null : MoneyTransferAPI.accountLimiter;
+        RateLimiter clientLimiter = MoneyTransferAPI.clientLimiter;
+        return (request, response) -> {
+            long start = System.nanoTime();
+            long wait = 0;
+            if (clientLimiter!=null){
+                String client = request.headers(CLIENT_ID);
+                wait = clientLimiter.acquire((client==null ? request.ip() : client).hashCode());
+            }
+            if (wait==0 && accountLimiter!=null){
+                try {
+                    wait = accountLimiter.acquire(Integer.parseInt(request.params(accountParam)));
+                } catch (NumberFormatException e) {
+                    // a malformed number is rejected by the route itself
+                }
+            }
+            if (wait>0) throw reject(start, histogram, response, "Rate limit exceeded", TimeUnit.NANOSECONDS.toSeconds(wait)+1);
+            if (requests!=null && !requests.tryAcquire(requestQueueTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw reject(start, histogram, response, "Server is busy", 1);
+            try {
+                return route.handle(request, response);
+            } finally {
+                if (requests!=null) requests.release();
+                histogram.recordSince(start);
+            }
+        };
+    }
+
+    /**
+     * Set HTTP status of a rejected request and count it in the log of rejections.
+     * @return body of the response
+     */
+    private static String rejected(Response response, PaymentEngineException rejection) {
+        rejections.rejected(rejection);
+        response.status(rejection.getCode().getHttpStatus());
+        return rejection.getMessage();
+    }
+
+    /**
+     * @return exception to throw to reject a request with 429 status
+     */
+    private static HaltException reject(long start, LatencyHistogram histogram, Response response, String reason, long retryAfterSeconds) {
+        engine.getMetrics().rejected(ErrorCode.TOO_MANY_REQUESTS);
+        histogram.recordSince(start);
+        response.header("Retry-After", Long.toString(retryAfterSeconds));
+        return sparkService.halt(429, reason);
+    }
+
+    private static int parseIntParam(Request request, String name, int defaultValue) {
+        String value = request.queryParams(name);
+        return value==null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @return body of the request read as it arrives, Spark itself reads the whole body into memory before returning it
+     */
+    private static InputStream streamedBody(Request request) throws IOException {
+        HttpServletRequest raw = request.raw();
+        while (raw instanceof HttpServletRequestWrapper) raw = (HttpServletRequest) ((HttpServletRequestWrapper) raw).getRequest();
+        return raw.getInputStream();
+    }
+
+    /**
+     * @return executor starting a virtual thread per task or null if this Java has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads require Java 21 or later, falling back to thread pool");
+            return null;
+        }
+    }
+
     /**
      * Stop the REST API server and reset all internal state
      */
     public static void stop(){
         if (sparkService!=null)	sparkService.stop();
         sparkService = null;
+        if (binaryServer!=null){
+            try {
+                binaryServer.close();
+            } catch (IOException e) {
+                log.warn("Failed to close binary listener", e);
+            }
+            binaryServer = null;
+        }
+        if (rejections!=null) rejections.close();
         engine.reset();
     }
 
@@ -1,23 +1,605 @@
 package ru.revolut.transfer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The class where implement internal logic of payments.
  */
 public class PaymentEngine {
 
+    private static Logger log = LoggerFactory.getLogger(PaymentEngine.class);
+
     // Singleton
-    private static final PaymentEngine engine = new PaymentEngine();
+    private static final PaymentEngine engine = createInstance();
     public static PaymentEngine getInstance(){ return engine; }
-    private PaymentEngine() {}
+
+    private static PaymentEngine createInstance() {
+        try {
+            return new PaymentEngine(PaymentEngineConfig.fromSystemProperties());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Maximum number of distinct accounts a batch locks at once.
+     * Batch locks are nested monitors, so it bounds both the stack depth and the time other transfers wait for them.
+     * Larger non-atomic batches are applied in chunks, larger atomic ones are rejected.
+     */
+    static final int MAX_BATCH_ACCOUNTS = 1024;
+
+    /**
+     * Number of striped locks of try-lock strategy, a power of two.
+     */
+    private static final int TRANSFER_LOCKS = 4096;
+
+    /**
+     * Returned by a transfer which has found one of its accounts hot under the lock.
+     */
+    private static final long HOT = -2;
+
+    /**
+     * Upper bound of a random back-off of try-lock strategy.
+     */
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
 
     /**
      * Payment Engine general ledger.
      */
-    private Map<Integer, Account> ledger = new HashMap<>();
+    private volatile AccountIndex ledger = new AccountIndex();
+
+    private final PaymentEngineConfig config;
+
+    /**
+     * Strategy of transfers in locking mode, ordered monitors in other modes where transfers do not take locks.
+     */
+    private final PaymentEngineConfig.TransferStrategy transferStrategy;
+
+    /**
+     * Lock of all transfers with global strategy.
+     */
+    private final Object globalLock = new Object();
+
+    /**
+     * Striped locks of accounts with try-lock strategy or null.
+     */
+    private final ReentrantLock[] transferLocks;
+
+    /**
+     * Write-ahead journal or null if the ledger is kept in memory only.
+     */
+    private volatile Journal journal;
+
+    /**
+     * Balances in a memory mapped file used instead of the ledger or null.
+     */
+    private volatile MappedLedger mapped;
+
+    /**
+     * Balance changes made by transfers since the engine has started, they are not restored from the journal.
+     */
+    private volatile TransactionHistory history;
+
+    /**
+     * Versions of balances for consistent snapshots of accounts.
+     */
+    private final BalanceVersions versions = new BalanceVersions();
+
+    /**
+     * Serializes snapshots of accounts.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Serializes checkpoints.
+     */
+    private final Object checkpointLock = new Object();
+
+    private ScheduledExecutorService checkpointScheduler;
+
+    /**
+     * Apply all changes of the ledger, null in locking mode. There is one sequencer in sequenced mode
+     * and one per shard in partitioned mode, where an account belongs to shard {@code number % sequencers.length}.
+     */
+    private final Sequencer[] sequencers;
+
+    /**
+     * Transport to other cluster nodes or null for a standalone engine.
+     */
+    private final ClusterTransport transport;
+
+    /**
+     * Transfers to accounts of other nodes debited here, whose money has not been credited there yet, by intent id.
+     * Intent id is the sequence number of the reservation record.
+     */
+    private final Map<Long, JournalRecord> intents = new ConcurrentHashMap<>();
+
+    /**
+     * Intents of other nodes credited here, by node.
+     */
+    private final Map<Integer, Credits> credits = new ConcurrentHashMap<>();
+
+    /**
+     * Ids of intents of one node credited here. Intent ids of a node grow, and the node tells the lowest id
+     * it may still deliver, so only ids from there on are kept.
+     */
+    private static final class Credits {
+        /**
+         * Intents below it are settled by their node and never delivered again.
+         */
+        long settledBelow;
+        final Set<Long> ids = new HashSet<>();
+    }
+
+    /**
+     * Source of intent ids when there is no journal.
+     */
+    private final AtomicLong intentIds = new AtomicLong(System.currentTimeMillis()<<20);
+
+    /**
+     * Taken shared by transfers from taking their intent id until the intent is in {@link #intents}
+     * and exclusively to find the lowest id that may still be delivered.
+     */
+    private final ReentrantReadWriteLock intentLock = new ReentrantReadWriteLock();
+
+    /**
+     * Ids of intents taken out of {@link #intents} by a delivery whose settlement is not durable yet.
+     * A crash would deliver them again, so they hold {@link #settledBelow} back as pending ones do.
+     */
+    private final Set<Long> settling = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Lowest id of intents of this node that may still be delivered, sent along with deliveries.
+     */
+    private volatile long settledBelow;
+
+    private ScheduledExecutorService clusterScheduler;
+
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Outcomes of requests with idempotency keys, created on the first such request.
+     */
+    private volatile IdempotencyCache idempotency;
+
+    /**
+     * Open holds by id. A hold is closed by whoever removes it from here: a capture, a release or its expiry.
+     */
+    private final Map<Long, Hold> holds = new ConcurrentHashMap<>();
+
+    private final AtomicLong holdIds = new AtomicLong();
+
+    /**
+     * Timing wheels holds expire by, a hold goes to wheel {@code id % holdWheels.length}, so that holds created
+     * at once do not contend for one wheel. Created with the expiry thread on the first hold.
+     */
+    private volatile TimingWheel[] holdWheels;
+
+    private ScheduledExecutorService holdScheduler;
+
+    private final long holdOrigin = System.nanoTime();
+
+    /**
+     * Create new standalone Payment Engine.
+     * When journal is configured the ledger is restored from the latest checkpoint and the journal.
+     * @param config engine settings
+     * @throws IOException in case of journal I/O error
+     */
+    public PaymentEngine(PaymentEngineConfig config) throws IOException {
+        this(config, null);
+    }
+
+    /**
+     * Create new Payment Engine which is a node of a cluster when the transport is given.
+     * A node owns a range of account numbers and forwards requests to other accounts to their owners.
+     * When journal is configured the ledger is restored from the latest checkpoint and the journal.
+     * @param config engine settings
+     * @param transport transport to other cluster nodes or null for a standalone engine
+     * @throws IOException in case of journal I/O error
+     */
+    public PaymentEngine(PaymentEngineConfig config, ClusterTransport transport) throws IOException {
+        if (transport!=null && (config.getClusterNode()<0 || config.getClusterRanges()==null
+                || config.getClusterNode()>=config.getClusterRanges().length))
+            throw new IllegalArgumentException("Cluster node requires its number and account ranges of all nodes");
+        boolean locking = config.getExecutionMode()==PaymentEngineConfig.ExecutionMode.LOCKING && config.getLedgerFile()==null;
+        transferStrategy = locking ? config.getTransferStrategy() : PaymentEngineConfig.TransferStrategy.ORDERED;
+        if (transferStrategy==PaymentEngineConfig.TransferStrategy.OPTIMISTIC && (transport!=null || config.getJournalDirectory()!=null))
+            throw new IllegalArgumentException("Optimistic transfers do not support journal and cluster");
+        if (transferStrategy==PaymentEngineConfig.TransferStrategy.TRY_LOCK){
+            transferLocks = new ReentrantLock[TRANSFER_LOCKS];
+            for (int i=0;i<transferLocks.length;i++) transferLocks[i] = new ReentrantLock();
+        } else {
+            transferLocks = null;
+        }
+        if (config.getLedgerFile()!=null && (transport!=null || config.getJournalDirectory()!=null
+                || config.getExecutionMode()!=PaymentEngineConfig.ExecutionMode.LOCKING))
+            throw new IllegalArgumentException("Mapped ledger requires locking mode of a standalone engine without journal");
+        this.config = config;
+        this.transport = transport;
+        history = newHistory();
+        if (config.getLedgerFile()!=null) mapped = new MappedLedger(Paths.get(config.getLedgerFile()));
+        if (config.getJournalDirectory()!=null) journal = openJournal();
+        switch (config.getExecutionMode()){
+            case SEQUENCED:
+                sequencers = new Sequencer[]{new Sequencer("sequencer", config.getSequencerBufferCommands(),
+                        command -> applyCommand(0, command))};
+                break;
+            case PARTITIONED:
+                sequencers = new Sequencer[Math.max(1, config.getShards())];
+                for (int i=0;i<sequencers.length;i++){
+                    int shard = i;
+                    sequencers[i] = new Sequencer("shard-"+i, config.getSequencerBufferCommands(),
+                            command -> applyCommand(shard, command));
+                }
+                break;
+            default:
+                sequencers = null;
+        }
+        if (transport!=null){
+            clusterScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cluster-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = config.getClusterRetryMillis();
+            clusterScheduler.scheduleWithFixedDelay(this::retryIntents, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (journal!=null){
+            if (config.getCheckpointIntervalSeconds()>0 && (isPartitioned() || transport!=null)){
+                log.warn("Checkpoints are not supported in partitioned and cluster modes");
+            } else if (config.getCheckpointIntervalSeconds()>0){
+                checkpointScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long interval = config.getCheckpointIntervalSeconds();
+                checkpointScheduler.scheduleWithFixedDelay(this::scheduledCheckpoint, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private TransactionHistory newHistory() {
+        return new TransactionHistory(config.getHistorySegmentEntries(), config.getHistorySegments(),
+                config.getHistoryDirectory()==null ? null : Paths.get(config.getHistoryDirectory()));
+    }
+
+    private Journal openJournal() throws IOException {
+        Path directory = Paths.get(config.getJournalDirectory());
+        Files.createDirectories(directory);
+        long position = Checkpoint.load(directory, ledger);
+        Map<Long, JournalRecord> reservations = new HashMap<>();
+        Journal journal = new Journal(directory, config.getJournalBufferRecords(), config.getJournalSegmentRecords(),
+                config.getJournalCommitDelayMicros(), position, record -> replay(record, reservations));
+        // money in flight between shards when the engine stopped goes back to its source accounts,
+        // while money sent to other nodes is delivered again as they might have credited it already
+        int returned = 0;
+        try {
+            for (JournalRecord reservation : reservations.values()){
+                if (!isLocal(reservation.accounts[1])){
+                    intents.put(reservation.sequence, reservation);
+                    continue;
+                }
+                returned++;
+                Account account = journaledAccount(reservation.accounts[0]);
+                long balance = account.getTotalBalance()+reservation.amount;
+                restoreCell(account, 0, balance);
+                journal.awaitDurable(journal.settlement(reservation.amount, account.getNumber(), balance, reservation.sequence));
+            }
+        } catch (PaymentEngineException e) {
+            journal.close();
+            throw new IOException(e.getMessage());
+        }
+        if (returned>0) log.info("Returned "+returned+" unsettled transfers between shards");
+        if (!intents.isEmpty()) log.info(intents.size()+" transfers to other nodes are to be delivered");
+        return journal;
+    }
+
+    private boolean isPartitioned() {
+        return sequencers!=null && sequencers.length>1;
+    }
+
+    private int shardOf(int number) {
+        return number % sequencers.length;
+    }
+
+    /**
+     * @return cluster node owning specified account, accounts below the first range belong to the first node
+     */
+    private int ownerOf(int number) {
+        int node = Arrays.binarySearch(config.getClusterRanges(), number);
+        return node>=0 ? node : Math.max(0, -node-2);
+    }
+
+    private boolean isLocal(int number) {
+        return transport==null || number<0 || ownerOf(number)==config.getClusterNode();
+    }
+
+    /**
+     * Send a request to another node and wait for its reply.
+     * @throws PaymentEngineException if the node is not available or has failed to handle the request
+     */
+    private ClusterMessage forward(int number, ClusterMessage request) throws PaymentEngineException {
+        ClusterMessage reply = transport.send(ownerOf(number), request);
+        if (reply.getError()!=null) throw reply.rejection();
+        return reply;
+    }
+
+    /**
+     * Handle a request of another cluster node.
+     * @param request request message
+     * @return reply message, with an error message if the request has failed
+     */
+    public ClusterMessage handle(ClusterMessage request) {
+        try {
+            switch (request.getType()){
+                case ClusterMessage.CREATE:
+                    createAccountCents(request.getAccount(), request.getAmount());
+                    return ClusterMessage.reply(0);
+                case ClusterMessage.GET:
+                    return ClusterMessage.reply(isLocal(request.getAccount()) ? getAccount(request.getAccount()).getTotalBalance()
+                            : forward(request.getAccount(), request).getAmount());
+                case ClusterMessage.TRANSFER:
+                    transferCents(request.getAccount(), request.getOtherAccount(), request.getAmount());
+                    return ClusterMessage.reply(0);
+                case ClusterMessage.HOT:
+                    markAccountHot(request.getAccount());
+                    return ClusterMessage.reply(0);
+                case ClusterMessage.BATCH:
+                    ClusterMessage reply = ClusterMessage.reply(0);
+                    reply.setBatchResult(transferBatch(request.getTransfers(), request.isAtomic()));
+                    return reply;
+                case ClusterMessage.CREDIT:
+                    credit(request.getNode(), request.getIntent(), request.getSettledBelow(), request.getAccount(),
+                        request.getOtherAccount(), request.getAmount());
+                    return ClusterMessage.reply(0);
+                default:
+                    return ClusterMessage.failure(new PaymentEngineException("Unknown request"));
+            }
+        } catch (PaymentEngineException e) {
+            return ClusterMessage.failure(e);
+        }
+    }
+
+    /**
+     * Transfer money to an account of another node in two phases.
+     * First the source account is debited and the intent to credit the destination one is journaled,
+     * the intent is durable before the request leaves this node. Then the destination node credits the money
+     * and the intent is settled, or the money is returned if the destination node rejects it.
+     * If the destination node is not available the intent stays pending and is delivered later, so the transfer succeeds.
+     */
+    private void transferToNode(Account accountFrom, int accountToNumber, long amount) throws PaymentEngineException {
+        JournalRecord intent = new JournalRecord();
+        intent.type = JournalRecord.RESERVE;
+        intent.amount = amount;
+        intent.accounts[0] = accountFrom.getNumber();
+        intent.accounts[1] = accountToNumber;
+        intentLock.readLock().lock();
+        try {
+            long reservation = adjustBalance(accountFrom, -amount, accountToNumber,
+                    (appender, balance) -> appender.reservation(amount, accountFrom.getNumber(), balance, accountToNumber));
+            intent.sequence = reservation>=0 ? reservation : intentIds.getAndIncrement();
+            // it is not delivered until it is durable
+            intents.put(intent.sequence, intent);
+        } finally {
+            intentLock.readLock().unlock();
+        }
+        PaymentEngineException error = deliver(intent);
+        if (error!=null) throw error;
+    }
+
+    /**
+     * Ask the destination node to credit money of an intent and settle the intent.
+     * @return rejection if the destination node has rejected the money and it has been returned, null otherwise
+     */
+    private PaymentEngineException deliver(JournalRecord intent) throws PaymentEngineException {
+        Journal journal = this.journal;
+        // with journal the intent id is the sequence number of its reservation record
+        if (journal!=null) awaitDurable(journal, intent.sequence);
+        ClusterMessage request = ClusterMessage.request(ClusterMessage.CREDIT, intent.accounts[1], intent.accounts[0], intent.amount);
+        request.setNode(config.getClusterNode());
+        request.setIntent(intent.sequence);
+        request.setSettledBelow(settledBelow);
+        ClusterMessage reply;
+        try {
+            reply = transport.send(ownerOf(intent.accounts[1]), request);
+        } catch (PaymentEngineException e) {
+            log.warn("Transfer to account "+intent.accounts[1]+" is pending: "+e.getMessage());
+            return null;
+        }
+        // the intent might be settled by a concurrent delivery
+        if (!settling.add(intent.sequence)) return reply.rejection();
+        if (intents.remove(intent.sequence)==null){
+            settling.remove(intent.sequence);
+            return reply.rejection();
+        }
+        long sequence;
+        if (reply.getError()==null){
+            sequence = journal==null ? -1 : journal.settled(intent.sequence);
+        } else {
+            Account account = getAccount(intent.accounts[0]);
+            sequence = adjustBalance(account, intent.amount, intent.accounts[1],
+                    (appender, balance) -> appender.settlement(intent.amount, account.getNumber(), balance, intent.sequence));
+        }
+        awaitDurable(journal, sequence);
+        // stays settling if the settlement has failed, it is delivered again after a restart
+        settling.remove(intent.sequence);
+        return reply.rejection();
+    }
+
+    private void retryIntents() {
+        intentLock.writeLock().lock();
+        try {
+            // no transfer is between taking its id and putting its intent, later ones take greater ids
+            Journal journal = this.journal;
+            long lowest = journal!=null ? journal.position() : intentIds.get();
+            // intents first: a settling one is added there before it is removed from intents
+            for (Long id : intents.keySet()) lowest = Math.min(lowest, id);
+            for (Long id : settling) lowest = Math.min(lowest, id);
+            settledBelow = lowest;
+        } finally {
+            intentLock.writeLock().unlock();
+        }
+        for (JournalRecord intent : intents.values()){
+            try {
+                PaymentEngineException error = deliver(intent);
+                if (error!=null) log.warn("Transfer to account "+intent.accounts[1]+" is rejected, money is returned: "+error.getMessage());
+            } catch (Exception e) {
+                log.error("Transfer to account "+intent.accounts[1]+" has failed: "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Credit money debited by another node. Repeated credits of the same intent are ignored.
+     * @param settledBelow intents of the node below it are settled, their ids are forgotten
+     */
+    private void credit(int node, long intent, long settledBelow, int number, int from, long amount) throws PaymentEngineException {
+        Account account = getAccount(number);
+        Credits credited = credits.computeIfAbsent(node, key -> new Credits());
+        Journal journal = this.journal;
+        long sequence;
+        synchronized (credited){
+            if (settledBelow>credited.settledBelow){
+                credited.settledBelow = settledBelow;
+                credited.ids.removeIf(id -> id<settledBelow);
+            }
+            if (intent<credited.settledBelow || !credited.ids.add(intent)){
+                // the first credit of the intent must be durable before it is confirmed again
+                sequence = journal==null ? -1 : journal.position()-1;
+            } else {
+                try {
+                    sequence = adjustBalance(account, amount, from,
+                            (appender, balance) -> appender.credit(amount, number, balance, node, intent));
+                } catch (PaymentEngineException e) {
+                    credited.ids.remove(intent);
+                    throw e;
+                }
+            }
+        }
+        awaitDurable(journal, sequence);
+    }
+
+    /**
+     * Appends journal record of a balance change.
+     */
+    private interface BalanceRecord {
+        /**
+         * @return sequence number of the record
+         */
+        long append(Journal journal, long balance) throws PaymentEngineException;
+    }
+
+    /**
+     * Change balance of a single account, ordinary or hot one, which is locked exclusively meanwhile.
+     * @param delta amount to add, negative one to debit
+     * @param counterparty account on the other side of the transfer, for transaction history
+     * @param record appends journal record of the new balance
+     * @return sequence number of journal record or -1 if there is no journal
+     * @throws PaymentEngineException if the account lacks money
+     */
+    private long adjustBalance(Account account, long delta, int counterparty, BalanceRecord record) throws PaymentEngineException {
+        Journal journal = this.journal;
+        TransactionHistory history = this.history;
+        if (sequencers!=null) return (Long) sequenced(shardOf(account.getNumber()), Sequencer.OPERATION, 0, 0, 0, null,
+                () -> applyAdjustment(journal, history, versions, account, delta, counterparty, record));
+        while (true){
+            StripedBalance stripes = account.getStripes();
+            Object[] locks = new Object[stripes==null ? 1 : 1+stripes.stripes().length];
+            locks[0] = account;
+            for (int k=1;k<locks.length;k++) locks[k] = stripes.stripes()[k-1];
+            long sequence = runLocked(locks, 0, () -> {
+                // the account might have become hot while we were waiting for its monitor
+                if (account.getStripes()!=stripes) return RETRY;
+                return applyAdjustment(journal, history, versions, account, delta, counterparty, record);
+            });
+            if (sequence!=RETRY) return sequence;
+        }
+    }
+
+    private static long applyAdjustment(Journal journal, TransactionHistory history, BalanceVersions versions, Account account,
+                                        long delta, int counterparty, BalanceRecord record) throws PaymentEngineException {
+        long balance = account.getTotalBalance()+delta;
+        if (balance<0 || delta<0 && balance<account.held) throw PaymentEngineException.INSUFFICIENT_FUNDS;
+        long version = versions.enter();
+        setBalance(account, balance, version);
+        versions.exit(version);
+        history.record(account, -1, counterparty, delta, balance);
+        return journal==null ? -1 : record.append(journal, balance);
+    }
+
+    /**
+     * Write a checkpoint of all account balances while transfers go on, so that recovery replays only the journal
+     * written after it. Journal segments preceding the checkpoint are deleted.
+     * @return journal position the checkpoint corresponds to
+     * @throws PaymentEngineException if there is no journal or the engine is partitioned or a cluster node
+     * @throws IOException in case of I/O error
+     */
+    public long checkpoint() throws PaymentEngineException, IOException {
+        Journal journal = this.journal;
+        if (journal==null) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Checkpoint requires journal");
+        // ids of credited intents of other nodes are kept in the journal only
+        if (transport!=null) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Checkpoints are not supported in cluster mode");
+        // shards are not in step with each other, so there is no single journal position to take a checkpoint at
+        if (isPartitioned()) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Checkpoints are not supported in partitioned mode");
+        synchronized (checkpointLock){
+            Path directory = Paths.get(config.getJournalDirectory());
+            if (sequencers==null) return Checkpoint.write(directory, ledger, journal);
+            // the sequencer only takes the cut, balances as of the cut are written out here while it goes on
+            synchronized (snapshotLock){
+                Checkpoint.Cut cut = (Checkpoint.Cut) sequenced(0, Sequencer.OPERATION, 0, 0, 0, null,
+                        () -> Checkpoint.cut(versions, journal));
+                return Checkpoint.write(directory, ledger, cut, journal);
+            }
+        }
+    }
+
+    private void scheduledCheckpoint() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            log.error("Checkpoint failed: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Grow the ledger in advance to hold specified number of accounts.
+     * Worth to call before creating a lot of accounts as it saves on incremental resizing.
+     * The mapped ledger needs no presizing, its file is indexed by account number.
+     * @param expectedNumberOfAccounts expected number of accounts in the ledger
+     */
+    public void presize(int expectedNumberOfAccounts) {
+        if (mapped!=null) return;
+        ledger.ensureCapacity(expectedNumberOfAccounts);
+    }
 
     /**
      * Create new account.
@@ -27,16 +609,147 @@ public class PaymentEngine {
      * @throws PaymentEngineException in case of illegall arguments or when account with the same number already exists
      */
     public AccountView createAccount(int number, BigDecimal balance) throws PaymentEngineException {
-        if (number<0 || balance.compareTo(BigDecimal.ZERO)<0) throw new PaymentEngineException("Account number and balance must be non-negative");
-        if (balance.stripTrailingZeros().scale()>2) throw new PaymentEngineException("Precision of balance must not exceed 2 digits after decimal point");
-        Account account;
-        synchronized (ledger){
-            if (ledger.get(number)!=null)
-                throw new PaymentEngineException("Account already exists");
-            account = new Account(number,balance.multiply(new BigDecimal("100.00")).longValue());
-            ledger.put(number,account);
+        long start = System.nanoTime();
+        try {
+            return createAccountFromDecimal(number, balance);
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.createAccount.recordSince(start);
+        }
+    }
+
+    private AccountView createAccountFromDecimal(int number, BigDecimal balance) throws PaymentEngineException {
+        if (number<0 || balance.compareTo(BigDecimal.ZERO)<0) throw PaymentEngineException.NEGATIVE_ACCOUNT;
+        if (balance.stripTrailingZeros().scale()>2) throw PaymentEngineException.TOO_PRECISE;
+        long balanceInCents;
+        try {
+            balanceInCents = balance.movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw PaymentEngineException.AMOUNT_TOO_LARGE;
+        }
+        return insertAccount(number, balanceInCents).toAccountView();
+    }
+
+    /**
+     * Create new account with initial balance given in cents.
+     * @param number new account number
+     * @param balance account initial balance in cents
+     * @throws PaymentEngineException in case of illegal arguments or when account with the same number already exists
+     */
+    public void createAccountCents(int number, long balance) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            if (number<0 || balance<0) throw PaymentEngineException.NEGATIVE_ACCOUNT;
+            insertAccount(number, balance);
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.createAccount.recordSince(start);
+        }
+    }
+
+    /**
+     * Create accounts in bulk. Unlike separate calls of {@link #createAccountCents}, the ledger is grown once,
+     * commands of sequencers are published without waiting for each other and the journal is awaited once for all of them.
+     * @param numbers new account numbers
+     * @param balances initial balances in cents
+     * @param count number of accounts to create
+     * @param errors receives the rejection of an account that has not been created or null for a created one
+     * @return number of created accounts
+     * @throws PaymentEngineException if the journal has failed to write created accounts
+     */
+    public int createAccountsCents(int[] numbers, long[] balances, int count, PaymentEngineException[] errors) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            // accounts of the mapped ledger are not in the index
+            if (mapped==null) ledger.ensureCapacity(ledger.size()+count);
+            Journal journal = this.journal;
+            long sequence = -1;
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Object>[] pending = sequencers==null ? null : new CompletableFuture[count];
+            for (int i=0;i<count;i++){
+                errors[i] = null;
+                int number = numbers[i];
+                long balance = balances[i];
+                try {
+                    if (number<0 || balance<0) throw PaymentEngineException.NEGATIVE_ACCOUNT;
+                    if (!isLocal(number) || mapped!=null){
+                        insertAccount(number, balance);
+                    } else if (sequencers!=null){
+                        pending[i] = sequencers[shardOf(number)].publish(Sequencer.CREATE, number, 0, balance, null, null);
+                    } else {
+                        Account account = new Account(number, balance);
+                        synchronized (account){
+                            insert(account);
+                            if (journal!=null) sequence = journal.create(number, balance);
+                        }
+                    }
+                } catch (PaymentEngineException e) {
+                    errors[i] = e;
+                }
+            }
+            for (int i=0;pending!=null && i<count;i++){
+                if (pending[i]==null) continue;
+                try {
+                    sequence = Math.max(sequence, (Long) outcome(pending[i]));
+                } catch (PaymentEngineException e) {
+                    errors[i] = e;
+                }
+            }
+            awaitDurable(journal, sequence);
+            int created = 0;
+            for (int i=0;i<count;i++){
+                if (errors[i]==null) created++;
+                else metrics.rejected(errors[i].getCode());
+            }
+            return created;
+        } finally {
+            metrics.createAccounts.recordSince(start);
+        }
+    }
+
+    private Account insertAccount(int number, long balance) throws PaymentEngineException {
+        if (!isLocal(number)){
+            forward(number, ClusterMessage.request(ClusterMessage.CREATE, number, 0, balance));
+            return new Account(number, balance);
+        }
+        MappedLedger mapped = this.mapped;
+        if (mapped!=null){
+            mapped.create(number, balance);
+            return new Account(number, balance);
+        }
+        Journal journal = this.journal;
+        if (sequencers!=null){
+            awaitDurable(journal, (Long) sequenced(shardOf(number), Sequencer.CREATE, number, 0, balance, null, null));
+            return getAccount(number);
+        }
+        Account account = new Account(number, balance);
+        long sequence = -1;
+        // new account stays locked until it is journaled, so no transfer record may precede its creation record
+        synchronized (account){
+            insert(account);
+            if (journal!=null) sequence = journal.create(number, balance);
+        }
+        awaitDurable(journal, sequence);
+        return account;
+    }
+
+    /**
+     * Insert new account into the ledger, it is absent from snapshots taken before.
+     * @throws PaymentEngineException if account with the same number already exists
+     */
+    private void insert(Account account) throws PaymentEngineException {
+        long version = versions.enter();
+        try {
+            account.created(version);
+            if (ledger.putIfAbsent(account)!=null)
+                throw PaymentEngineException.ACCOUNT_EXISTS;
+        } finally {
+            versions.exit(version);
         }
-        return account.toAccountView();
     }
 
     /**
@@ -46,20 +759,146 @@ public class PaymentEngine {
      * @throws PaymentEngineException in case of illegal account number or when account with specified nuber is not found
      */
     public AccountView getAccountView(int number) throws PaymentEngineException {
-        return getAccount(number).toAccountView();
+        return new Account(number, getAccountBalanceCents(number)).toAccountView();
+    }
+
+    /**
+     * Retrieve balance of an account without creating its view.
+     * @param number number of account
+     * @return balance in cents
+     * @throws PaymentEngineException in case of illegal account number or when account with specified nuber is not found
+     */
+    public long getAccountBalanceCents(int number) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            if (!isLocal(number))
+                return forward(number, ClusterMessage.request(ClusterMessage.GET, number, 0, 0)).getAmount();
+            MappedLedger mapped = this.mapped;
+            if (mapped!=null) return mapped.balance(number);
+            return getAccount(number).getTotalBalance();
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.getAccountView.recordSince(start);
+        }
+    }
+
+    /**
+     * Visit accounts within a range of numbers in ascending order of numbers.
+     * Nothing is locked during the scan, every balance is read the same way {@link #getAccountView} reads it,
+     * and accounts created during the scan may or may not be visited.
+     * In cluster mode only accounts of this node are visited.
+     * @param from least account number to visit
+     * @param to greatest account number to visit
+     * @param limit maximum number of accounts to visit
+     * @param visitor receives accounts
+     * @return number to continue the scan from or -1 if there are no more accounts in the range
+     * @throws PaymentEngineException in case of illegal arguments
+     * @throws IOException if the visitor has failed
+     */
+    public int scanAccounts(int from, int to, int limit, AccountVisitor visitor) throws PaymentEngineException, IOException {
+        if (from<0 || limit<=0) throw new PaymentEngineException("Account number must be non-negative and limit must be positive");
+        MappedLedger mapped = this.mapped;
+        if (mapped!=null) return mapped.scan(from, to, limit, visitor);
+        AccountIndex ledger = this.ledger;
+        int number = from;
+        for (int visited = 0; visited < limit; visited++){
+            number = ledger.nextNumber(number);
+            if (number<0 || number>to) return -1;
+            visitor.visit(number, ledger.get(number).getTotalBalance());
+            if (number==Integer.MAX_VALUE) return -1;
+            number++;
+        }
+        int next = ledger.nextNumber(number);
+        return next<0 || next>to ? -1 : next;
+    }
+
+    /**
+     * Visit transactions of an account from the newest to older ones. Transactions made before the engine
+     * has started or evicted from the retained part of transaction history are not visited.
+     * In cluster mode only accounts of this node have history.
+     * @param number account number
+     * @param before id of the transaction to continue after, as returned by previous call, or -1 to start from the newest one
+     * @param limit maximum number of transactions to visit
+     * @param visitor receives transactions
+     * @return id of the transaction to continue after or -1 if there are no more transactions
+     * @throws PaymentEngineException if the account or the transaction to continue after is not found, or limit is not positive
+     * @throws IOException if the visitor has failed
+     */
+    public long scanTransactions(int number, long before, int limit, TransactionVisitor visitor) throws PaymentEngineException, IOException {
+        if (limit<=0) throw new PaymentEngineException("Limit must be positive");
+        requireLockingTransfers();
+        return history.read(getAccount(number), before, limit, visitor);
+    }
+
+    /**
+     * Read balances of specified accounts at one instant while transfers go on, every transfer is seen
+     * either entirely or not at all. Transfers are not blocked, the snapshot waits only for transfers
+     * being applied at the instant. In partitioned mode money of a transfer between shards is in none
+     * of the accounts while it is in flight, the same holds in cluster mode for money sent to other nodes.
+     * @param numbers numbers of accounts of this node
+     * @return balances in cents in the order of numbers
+     * @throws PaymentEngineException if an account is not found or belongs to another node
+     */
+    public long[] snapshotBalances(int[] numbers) throws PaymentEngineException {
+        requireLockingTransfers();
+        Account[] accounts = new Account[numbers.length];
+        for (int i=0;i<numbers.length;i++){
+            if (!isLocal(numbers[i])) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Snapshot of accounts of other nodes is not supported");
+            accounts[i] = getAccount(numbers[i]);
+        }
+        long[] balances = new long[numbers.length];
+        synchronized (snapshotLock){
+            long version = versions.advance();
+            for (int i=0;i<accounts.length;i++) balances[i] = BalanceVersions.balanceAt(accounts[i], version);
+        }
+        for (long balance : balances)
+            if (balance==BalanceVersions.ABSENT) throw PaymentEngineException.ACCOUNT_NOT_FOUND;
+        return balances;
+    }
+
+    /**
+     * Visit all accounts in ascending order of numbers with their balances at one instant, see {@link #snapshotBalances}.
+     * Other snapshots wait until the visitor is done, transfers do not.
+     * In cluster mode only accounts of this node are visited.
+     * @param visitor receives accounts
+     * @return total balance of all accounts in cents
+     * @throws PaymentEngineException if balances are kept in the mapped ledger
+     * @throws IOException if the visitor has failed
+     */
+    public long snapshotAccounts(AccountVisitor visitor) throws PaymentEngineException, IOException {
+        if (mapped!=null) throw PaymentEngineException.NOT_SUPPORTED_BY_MAPPED_LEDGER;
+        requireLockingTransfers();
+        AccountIndex ledger = this.ledger;
+        long total = 0;
+        synchronized (snapshotLock){
+            long version = versions.advance();
+            for (int number = ledger.nextNumber(0); number>=0; number = ledger.nextNumber(number+1)){
+                long balance = BalanceVersions.balanceAt(ledger.get(number), version);
+                if (balance!=BalanceVersions.ABSENT){
+                    visitor.visit(number, balance);
+                    total += balance;
+                }
+                if (number==Integer.MAX_VALUE) break;
+            }
+        }
+        return total;
     }
 
     /**
      * Internal method to retrieve account instance
      * @param number number of account to retrieve
      * @return instance of Account class
-     * @throws PaymentEngineException if specified account nu,ber is negative or account not found
+     * @throws PaymentEngineException if specified account nu,ber is negative or account not found,
+     * or if balances are kept in the mapped ledger which has no account instances
      */
     private Account getAccount(int number) throws PaymentEngineException {
-        if (number<0) throw new PaymentEngineException("Account number must be non-negative");
+        if (number<0) throw PaymentEngineException.NEGATIVE_ACCOUNT_NUMBER;
+        if (mapped!=null) throw PaymentEngineException.NOT_SUPPORTED_BY_MAPPED_LEDGER;
         Account account = ledger.get(number);
         if (account==null)
-            throw new PaymentEngineException("Account not found");
+            throw PaymentEngineException.ACCOUNT_NOT_FOUND;
         return account;
     }
 
@@ -71,52 +910,1094 @@ public class PaymentEngine {
      * @throws PaymentEngineException in case of illegal arguments or when acounts with specified numbers do not exist
      */
     public void transfer(int accountFromNumber, int accountToNumber, BigDecimal amount) throws PaymentEngineException {
-        if (amount.compareTo(BigDecimal.ZERO)<0) throw new PaymentEngineException("Non-positive money amount transfer is not allowed");
-        if (amount.scale()>2) throw new PaymentEngineException("Precision of balance must not exceed 2 digits after decimal point");
-        if (accountFromNumber == accountToNumber) throw new PaymentEngineException("Source account number must not be the same as destination account number");
+        transferCents(accountFromNumber, accountToNumber, amountInCents(amount));
+    }
+
+    /**
+     * Money transfer operation between two accounts with amount given in cents.
+     * @param accountFromNumber number of account to debit
+     * @param accountToNumber number of account to credit
+     * @param amountInLong money amount to transfer in cents
+     * @throws PaymentEngineException in case of illegal arguments or when acounts with specified numbers do not exist
+     */
+    public void transferCents(int accountFromNumber, int accountToNumber, long amountInLong) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            applyTransfer(accountFromNumber, accountToNumber, amountInLong, null);
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.transfer.recordSince(start);
+        }
+    }
+
+    /**
+     * @param hold hold of the source account captured by the transfer or null
+     */
+    private void applyTransfer(int accountFromNumber, int accountToNumber, long amountInLong, Hold hold) throws PaymentEngineException {
+        if (amountInLong<0) throw PaymentEngineException.NON_POSITIVE_AMOUNT;
+        if (accountFromNumber == accountToNumber) throw PaymentEngineException.SAME_ACCOUNT;
+        // a transfer is applied by the node owning its source account
+        if (!isLocal(accountFromNumber)){
+            forward(accountFromNumber, ClusterMessage.request(ClusterMessage.TRANSFER, accountFromNumber, accountToNumber, amountInLong));
+            return;
+        }
+        MappedLedger mapped = this.mapped;
+        if (mapped!=null){
+            if (hold!=null) throw PaymentEngineException.NOT_SUPPORTED_BY_MAPPED_LEDGER;
+            mapped.transfer(accountFromNumber, accountToNumber, amountInLong);
+            return;
+        }
         Account accountFrom = getAccount(accountFromNumber);
+        if (!isLocal(accountToNumber)){
+            transferToNode(accountFrom, accountToNumber, amountInLong);
+            return;
+        }
         Account accountTo = getAccount(accountToNumber);
-        long amountInLong = amount.multiply(new BigDecimal("100")).longValue();
 
         // Uncomment me to behold the power of concurrency tests
 //        if (accountFrom.getBalance() < amountInLong)
-//                throw new PaymentEngineException("Insufficient funds");
+//                throw PaymentEngineException.INSUFFICIENT_FUNDS;
 //        Thread.yield();
 //        accountFrom.setBalance(accountFrom.getBalance()-amountInLong);
 //        accountTo.setBalance(accountTo.getBalance()+amountInLong);
 
-        // Might be simple and efficient as a brick, but NO!
-//        synchronized (ledger){
-//            if (accountFrom.getBalance() < amountInLong)
-//                throw new PaymentEngineException("Insufficient funds");
-////            Thread.yield(); // FIXME remove this statement. It is just to provoke Race Condition, if any, and catch it in concurrency tests.
-//            accountFrom.setBalance(accountFrom.getBalance()-amountInLong);
-//            accountTo.setBalance(accountTo.getBalance()+amountInLong);
-//        }
-
-        // And How Do You Like It, Elon Musk?
+        // One lock for everything might be simple and efficient as a brick, it is GLOBAL strategy now.
+        // ORDERED strategy by default: and How Do You Like It, Elon Musk?
         // Should expose non-blocking and much higher performance on a concurrent transfer request for different accounts.
-        // Apply resource ordering technique to prevent dead locks.
+        // Apply resource ordering technique to prevent dead locks, TRY_LOCK backs off instead and OPTIMISTIC takes no locks.
+        // Transfers that involve a hot account go through its stripes instead of the account monitor
+        // Journal record is appended under the same locks, so journal order of records follows the order of updates,
+        // while waiting for the record to get on disk happens after locks are released.
+        Journal journal = this.journal;
+        if (sequencers!=null){
+            awaitDurable(journal, (Long) sequenced(shardOf(accountFromNumber), Sequencer.TRANSFER,
+                    accountFromNumber, accountToNumber, amountInLong, hold, null));
+            return;
+        }
+        if (transferStrategy==PaymentEngineConfig.TransferStrategy.OPTIMISTIC){
+            transferOptimistic(accountFrom, accountTo, amountInLong);
+            return;
+        }
+        TransactionHistory history = this.history;
         Account accountWithLowerNumber = accountFromNumber<accountToNumber?accountFrom:accountTo;
         Account accountWithGreaterNumber = accountFromNumber>accountToNumber?accountFrom:accountTo;
-        synchronized (accountWithLowerNumber){
-            synchronized (accountWithGreaterNumber){
-                if (accountFrom.getBalance() < amountInLong)
-                    throw new PaymentEngineException("Insufficient funds");
-//                Thread.yield(); // FIXME remove this statement. It is just to provoke Race Condition, if any, and catch it in concurrency tests.
-                accountFrom.setBalance(accountFrom.getBalance()-amountInLong);
-                accountTo.setBalance(accountTo.getBalance()+amountInLong);
+        long sequence = HOT;
+        while (sequence==HOT && !accountFrom.isHot() && !accountTo.isHot()) {
+            long waitStart = System.nanoTime();
+            switch (transferStrategy){
+                case GLOBAL:
+                    synchronized (globalLock){
+                        synchronized (accountWithLowerNumber){
+                            synchronized (accountWithGreaterNumber){
+                                sequence = transferLocked(waitStart, journal, history, accountFrom, accountTo, amountInLong, hold);
+                            }
+                        }
+                    }
+                    break;
+                case TRY_LOCK:
+                    sequence = transferTryLocked(waitStart, journal, history, accountFrom, accountTo, amountInLong, hold);
+                    break;
+                default:
+                    synchronized (accountWithLowerNumber){
+                        synchronized (accountWithGreaterNumber){
+                            sequence = transferLocked(waitStart, journal, history, accountFrom, accountTo, amountInLong, hold);
+                        }
+                    }
+            }
+        }
+        if (sequence==HOT) sequence = transferWithHotAccount(journal, history, accountFrom, accountTo, amountInLong, hold);
+        awaitDurable(journal, sequence);
+
+    }
+
+    /**
+     * Transfer between two ordinary accounts whose monitors are held by the caller.
+     * @param waitStart when the caller started to wait for locks
+     * @return sequence of the journal record or -1 if there is no journal, or {@link #HOT} if one of accounts
+     * has become hot while the caller was waiting for its monitor
+     */
+    private long transferLocked(long waitStart, Journal journal, TransactionHistory history,
+                                Account accountFrom, Account accountTo, long amountInLong, Hold hold) throws PaymentEngineException {
+        long holdStart = System.nanoTime();
+        metrics.lockWait.record(holdStart-waitStart);
+        try {
+            if (accountFrom.isHot() || accountTo.isHot()) return HOT;
+            // money of a captured hold is available to its capture
+            long held = hold==null ? 0 : hold.amount;
+            if (accountFrom.getBalance()-accountFrom.held+held < amountInLong)
+                throw PaymentEngineException.INSUFFICIENT_FUNDS;
+//            Thread.yield(); // FIXME remove this statement. It is just to provoke Race Condition, if any, and catch it in concurrency tests.
+            long fromBalance = accountFrom.getBalance()-amountInLong;
+            long toBalance = accountTo.getBalance()+amountInLong;
+            long version = versions.enter();
+            accountFrom.preserve(version);
+            accountTo.preserve(version);
+            accountFrom.setBalance(fromBalance);
+            accountTo.setBalance(toBalance);
+            accountFrom.held -= held;
+            if (hold!=null) hold.consumed = true;
+            versions.exit(version);
+            history.record(accountTo, history.record(accountFrom, -1, accountTo.getNumber(), -amountInLong, fromBalance),
+                    accountFrom.getNumber(), amountInLong, toBalance);
+            if (journal!=null)
+                return journal.transfer(JournalRecord.TRANSFER, amountInLong,
+                        accountFrom.getNumber(), 0, fromBalance, accountTo.getNumber(), 0, toBalance);
+            return -1;
+        } finally {
+            metrics.lockHold.recordSince(holdStart);
+        }
+    }
+
+    /**
+     * Take striped locks of both accounts without waiting for either of them, backing off and retrying
+     * while one is busy, then their monitors, which are uncontended unless other operations hold them.
+     * @return same as {@link #transferLocked}
+     */
+    private long transferTryLocked(long waitStart, Journal journal, TransactionHistory history,
+                                   Account accountFrom, Account accountTo, long amountInLong, Hold hold) throws PaymentEngineException {
+        ReentrantLock first = transferLocks[accountFrom.getNumber() & transferLocks.length-1];
+        ReentrantLock second = transferLocks[accountTo.getNumber() & transferLocks.length-1];
+        Account accountWithLowerNumber = accountFrom.getNumber()<accountTo.getNumber()?accountFrom:accountTo;
+        Account accountWithGreaterNumber = accountFrom.getNumber()>accountTo.getNumber()?accountFrom:accountTo;
+        for (int attempt = 0;; attempt++){
+            if (first.tryLock()){
+                try {
+                    // both accounts may share a stripe, the lock is reentrant then
+                    if (second.tryLock()){
+                        try {
+                            synchronized (accountWithLowerNumber){
+                                synchronized (accountWithGreaterNumber){
+                                    return transferLocked(waitStart, journal, history, accountFrom, accountTo, amountInLong, hold);
+                                }
+                            }
+                        } finally {
+                            second.unlock();
+                        }
+                    }
+                } finally {
+                    first.unlock();
+                }
+            }
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(1, MAX_BACKOFF_NANOS >> Math.max(0, 10-attempt)));
+        }
+    }
+
+    /**
+     * Transfer without locks: the debit is retried until the source balance has not changed between its check
+     * and its update, the credit cannot fail. Only transfers change balances in this strategy.
+     */
+    private void transferOptimistic(Account accountFrom, Account accountTo, long amountInLong) throws PaymentEngineException {
+        for (;;){
+            long balance = accountFrom.getBalance();
+            if (balance < amountInLong) throw PaymentEngineException.INSUFFICIENT_FUNDS;
+            if (accountFrom.compareAndSetBalance(balance, balance-amountInLong)) break;
+        }
+        accountTo.addBalance(amountInLong);
+    }
+
+    /**
+     * Reject an operation which changes balances under account monitors when transfers take no locks.
+     */
+    private void requireLockingTransfers() throws PaymentEngineException {
+        if (transferStrategy==PaymentEngineConfig.TransferStrategy.OPTIMISTIC)
+            throw PaymentEngineException.NOT_SUPPORTED_BY_OPTIMISTIC_TRANSFERS;
+    }
+
+    private static void awaitDurable(Journal journal, long sequence) throws PaymentEngineException {
+        if (sequence>=0) journal.awaitDurable(sequence);
+    }
+
+    /**
+     * Publish a command to the sequencer of specified shard and wait for its outcome.
+     * @return outcome of the command
+     * @throws PaymentEngineException if the command has failed
+     */
+    private Object sequenced(int shard, int type, int first, int second, long amount, Hold hold, Sequencer.Operation operation) throws PaymentEngineException {
+        CompletableFuture<Object> result = sequencers[shard].publish(type, first, second, amount, hold, operation);
+        // the sequencer usually answers sooner than a parked thread would wake up
+        for (int spins = 0; spins < 1000 && !result.isDone(); spins++)
+            if (spins >= 100) Thread.yield();
+        return outcome(result);
+    }
+
+    /**
+     * Wait for the outcome of a command.
+     * @throws PaymentEngineException if the command has failed
+     */
+    private static Object outcome(CompletableFuture<Object> result) throws PaymentEngineException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof PaymentEngineException) throw (PaymentEngineException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Apply a command on the sequencer thread of a shard. Nothing is locked as no other thread changes accounts of the shard.
+     * Balance of a hot account is treated as a whole, its stripes are of no use here.
+     * @return sequence number of journal record or -1 if there is no journal, or outcome of an operation
+     */
+    private Object applyCommand(int shard, Sequencer.Command command) throws PaymentEngineException {
+        Journal journal = this.journal;
+        TransactionHistory history = this.history;
+        switch (command.type){
+            case Sequencer.CREATE:
+                insert(new Account(command.first, command.amount));
+                return journal==null ? -1L : journal.create(command.first, command.amount);
+            case Sequencer.TRANSFER:
+                Account accountFrom = getAccount(command.first);
+                Account accountTo = getAccount(command.second);
+                long fromBalance = accountFrom.getTotalBalance();
+                long held = command.hold==null ? 0 : command.hold.amount;
+                if (fromBalance-accountFrom.held+held < command.amount)
+                    throw PaymentEngineException.INSUFFICIENT_FUNDS;
+                fromBalance -= command.amount;
+                accountFrom.held -= held;
+                if (command.hold!=null) command.hold.consumed = true;
+                int toShard = shardOf(command.second);
+                if (toShard!=shard){
+                    // money leaves the source account now and reaches the destination one when its shard gets the message
+                    long version = versions.enter();
+                    setBalance(accountFrom, fromBalance, version);
+                    versions.exit(version);
+                    long transfer = history.record(accountFrom, -1, command.second, -command.amount, fromBalance);
+                    long reservation = journal==null ? -1 : journal.reservation(command.amount, command.first, fromBalance, command.second);
+                    long amount = command.amount;
+                    int from = command.first;
+                    CompletableFuture<Object> result = command.result;
+                    sequencers[toShard].post(() -> settle(journal, history, versions, transfer, from, accountTo, amount, reservation, result));
+                    return Sequencer.PENDING;
+                }
+                long toBalance = accountTo.getTotalBalance()+command.amount;
+                long version = versions.enter();
+                setBalance(accountFrom, fromBalance, version);
+                setBalance(accountTo, toBalance, version);
+                versions.exit(version);
+                history.record(accountTo, history.record(accountFrom, -1, command.second, -command.amount, fromBalance),
+                        command.first, command.amount, toBalance);
+                return journal==null ? -1L : journal.transfer(JournalRecord.TRANSFER, command.amount,
+                        command.first, 0, fromBalance, command.second, 0, toBalance);
+            default:
+                return command.operation.apply();
+        }
+    }
+
+    /**
+     * Credit money in flight to the destination account of a transfer between shards, on the sequencer of its shard.
+     */
+    private static void settle(Journal journal, TransactionHistory history, BalanceVersions versions, long transfer, int from,
+                               Account account, long amount, long reservation, CompletableFuture<Object> result) {
+        long balance = account.getTotalBalance()+amount;
+        long version = versions.enter();
+        setBalance(account, balance, version);
+        versions.exit(version);
+        history.record(account, transfer, from, amount, balance);
+        try {
+            result.complete(journal==null ? -1L : journal.settlement(amount, account.getNumber(), balance, reservation));
+        } catch (PaymentEngineException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Transfer money when at least one of accounts is hot.
+     * Only the stripe of the current thread is locked on a hot side and the account monitor on an ordinary one.
+     * Locks are still taken in the order of account numbers. When the local stripe of a hot source account
+     * lacks money it borrows from other stripes under the account monitor and the transfer is retried.
+     * A hot account has no holds, so a captured hold belongs to an ordinary source account.
+     * @return sequence number of journal record or -1 if there is no journal
+     */
+    private long transferWithHotAccount(Journal journal, TransactionHistory history, Account accountFrom, Account accountTo,
+                                        long amount, Hold hold) throws PaymentEngineException {
+        while (true) {
+            StripedBalance fromStripes = accountFrom.getStripes();
+            StripedBalance toStripes = accountTo.getStripes();
+            StripedBalance.Stripe fromStripe = fromStripes==null ? null : fromStripes.local();
+            StripedBalance.Stripe toStripe = toStripes==null ? null : toStripes.local();
+            Object debitLock = fromStripe==null ? accountFrom : fromStripe;
+            Object creditLock = toStripe==null ? accountTo : toStripe;
+            Object firstLock = accountFrom.getNumber()<accountTo.getNumber() ? debitLock : creditLock;
+            Object secondLock = firstLock==debitLock ? creditLock : debitLock;
+            synchronized (firstLock){
+                synchronized (secondLock){
+                    // an ordinary account might have become hot while we were waiting for its monitor
+                    if (accountFrom.getStripes()!=fromStripes || accountTo.getStripes()!=toStripes) continue;
+                    long held = hold==null ? 0 : hold.amount;
+                    long available = fromStripe==null ? accountFrom.getBalance()-accountFrom.held+held : fromStripe.value;
+                    if (available >= amount) {
+                        long fromBalance = (fromStripe==null ? accountFrom.getBalance() : fromStripe.value)-amount;
+                        long toBalance = (toStripe==null ? accountTo.getBalance() : toStripe.value)+amount;
+                        long version = versions.enter();
+                        if (fromStripe==null) accountFrom.preserve(version);
+                        else fromStripe.preserve(version);
+                        if (toStripe==null) accountTo.preserve(version);
+                        else toStripe.preserve(version);
+                        if (fromStripe==null) accountFrom.setBalance(fromBalance);
+                        else fromStripe.value = fromBalance;
+                        if (toStripe==null) accountTo.setBalance(toBalance);
+                        else toStripe.value = toBalance;
+                        accountFrom.held -= held;
+                        if (hold!=null) hold.consumed = true;
+                        versions.exit(version);
+                        // a stripe holds a part of the balance only
+                        long transfer = history.record(accountFrom, -1, accountTo.getNumber(), -amount,
+                                fromStripe==null ? fromBalance : TransactionHistory.UNKNOWN_BALANCE);
+                        history.record(accountTo, transfer, accountFrom.getNumber(), amount,
+                                toStripe==null ? toBalance : TransactionHistory.UNKNOWN_BALANCE);
+                        if (journal==null) return -1;
+                        return journal.transfer(JournalRecord.TRANSFER, amount,
+                                accountFrom.getNumber(), fromStripe==null ? 0 : 1+fromStripe.index, fromBalance,
+                                accountTo.getNumber(), toStripe==null ? 0 : 1+toStripe.index, toBalance);
+                    }
+                }
+            }
+            if (fromStripe==null)
+                throw PaymentEngineException.INSUFFICIENT_FUNDS;
+            synchronized (accountFrom){
+                if (!fromStripes.borrow(fromStripe, amount, journal, accountFrom.getNumber(), versions))
+                    throw PaymentEngineException.INSUFFICIENT_FUNDS;
+            }
+        }
+    }
+
+    /**
+     * Validate money amount to transfer and convert it to cents.
+     * @param amount money amount
+     * @return amount in cents
+     * @throws PaymentEngineException if amount is negative or has more than 2 digits after decimal point
+     */
+    private static long amountInCents(BigDecimal amount) throws PaymentEngineException {
+        if (amount.compareTo(BigDecimal.ZERO)<0) throw PaymentEngineException.NON_POSITIVE_AMOUNT;
+        if (amount.scale()>2) throw PaymentEngineException.TOO_PRECISE;
+        try {
+            return amount.movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw PaymentEngineException.AMOUNT_TOO_LARGE;
+        }
+    }
+
+    /**
+     * Money transfer operation applied at most once per idempotency key.
+     * A repeated request with the same key is not applied again, it gets the outcome of the first one instead.
+     * @param accountFromNumber number of account to debit
+     * @param accountToNumber number of account to credit
+     * @param amountInLong money amount to transfer in cents
+     * @param idempotencyKey key of the request or null to apply it unconditionally
+     * @throws PaymentEngineException in case of illegal arguments, when acounts with specified numbers do not exist
+     * or when the key has been used for another request
+     */
+    public void transferCents(int accountFromNumber, int accountToNumber, long amountInLong, String idempotencyKey) throws PaymentEngineException {
+        if (idempotencyKey==null) {
+            transferCents(accountFromNumber, accountToNumber, amountInLong);
+            return;
+        }
+        int request = 31*(31*accountFromNumber+accountToNumber)+Long.hashCode(amountInLong);
+        idempotency().transfer(idempotencyKey, request, () -> transferCents(accountFromNumber, accountToNumber, amountInLong));
+    }
+
+    /**
+     * Money transfer that returns its rejection to the caller instead of throwing it, see {@link #transferCents(int, int, long, String)}.
+     * The engine still throws the rejection internally and catches it here. Expected rejections such as insufficient funds
+     * are preallocated without stack traces, so a declined transfer allocates nothing, but it still unwinds as an exception.
+     * @return null if the transfer is applied, its rejection otherwise
+     */
+    public PaymentEngineException tryTransferCents(int accountFromNumber, int accountToNumber, long amountInLong, String idempotencyKey) {
+        try {
+            transferCents(accountFromNumber, accountToNumber, amountInLong, idempotencyKey);
+            return null;
+        } catch (PaymentEngineException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Reserve money of an account for a later capture. The money stays in the balance of the account
+     * but is not available to transfers until the hold is captured, released or expires.
+     * Holds are kept in memory only: when an engine with journal is restarted, money of open holds is available again.
+     * @param number number of account to hold money of
+     * @param amountInLong money amount to hold in cents
+     * @param ttlMillis time after which the hold is released unless captured, 0 for the default one
+     * @return id of the hold
+     * @throws PaymentEngineException in case of illegal arguments, when the account does not exist or lacks available money
+     */
+    public long holdCents(int number, long amountInLong, long ttlMillis) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            return applyHold(number, amountInLong, ttlMillis);
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.hold.recordSince(start);
+        }
+    }
+
+    private long applyHold(int number, long amountInLong, long ttlMillis) throws PaymentEngineException {
+        if (amountInLong<0) throw PaymentEngineException.NON_POSITIVE_AMOUNT;
+        if (ttlMillis<0) throw new PaymentEngineException("Time to live of a hold must not be negative");
+        if (transport!=null) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Holds are not supported in cluster mode");
+        requireLockingTransfers();
+        Account account = getAccount(number);
+        Hold hold = new Hold(holdIds.incrementAndGet(), account, amountInLong);
+        if (sequencers!=null) {
+            sequenced(shardOf(number), Sequencer.OPERATION, 0, 0, 0, null, () -> reserve(hold));
+        } else {
+            synchronized (account){
+                reserve(hold);
             }
         }
+        long ttl = ttlMillis>0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : TimeUnit.SECONDS.toNanos(config.getHoldTtlSeconds());
+        holds.put(hold.id, hold);
+        TimingWheel[] wheels = holdWheels();
+        // the hold expires at the first tick after its deadline, never before
+        wheels[(int) (hold.id % wheels.length)].schedule(hold, holdTick(System.nanoTime()+ttl)+1);
+        return hold.id;
+    }
 
+    /**
+     * Capture a hold: transfer a part of its money, up to all of it, to another account and release the rest.
+     * The capture is applied as a transfer from the account of the hold, which is consumed under the same locks.
+     * @param holdId id of the hold
+     * @param accountToNumber number of account to credit
+     * @param amountInLong money amount to transfer in cents
+     * @throws PaymentEngineException in case of illegal arguments or when the hold is not open anymore
+     */
+    public void captureCents(long holdId, int accountToNumber, long amountInLong) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            Hold hold = holds.get(holdId);
+            if (hold==null) throw PaymentEngineException.HOLD_NOT_FOUND;
+            if (amountInLong<0) throw PaymentEngineException.NON_POSITIVE_AMOUNT;
+            if (amountInLong>hold.amount) throw PaymentEngineException.CAPTURE_EXCEEDS_HOLD;
+            if (hold.account.getNumber()==accountToNumber) throw PaymentEngineException.SAME_ACCOUNT;
+            // nothing can reject the capture once it has taken the hold
+            getAccount(accountToNumber);
+            if (!holds.remove(holdId, hold)) throw PaymentEngineException.HOLD_NOT_FOUND;
+            unschedule(hold);
+            try {
+                applyTransfer(hold.account.getNumber(), accountToNumber, amountInLong, hold);
+            } catch (PaymentEngineException e) {
+                // the hold is closed either way, its money must not stay held when the transfer has not taken it
+                if (!hold.consumed) release(hold);
+                throw e;
+            }
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.capture.recordSince(start);
+        }
+    }
 
+    /**
+     * Release a hold, its money becomes available again.
+     * @param holdId id of the hold
+     * @throws PaymentEngineException when the hold is not open anymore
+     */
+    public void releaseHold(long holdId) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            Hold hold = holds.remove(holdId);
+            if (hold==null) throw PaymentEngineException.HOLD_NOT_FOUND;
+            unschedule(hold);
+            release(hold);
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.release.recordSince(start);
+        }
+    }
+
+    /**
+     * @return balance of an account less money reserved by its holds, in cents
+     * @throws PaymentEngineException in case of illegal account number or when account with specified number is not found
+     */
+    public long getAvailableBalanceCents(int number) throws PaymentEngineException {
+        // there are no holds in cluster mode
+        if (!isLocal(number)) return getAccountBalanceCents(number);
+        return getAccount(number).getAvailableBalance();
+    }
+
+    /**
+     * Reserve money of a new hold. Caller must hold the account monitor or be the sequencer of its shard.
+     */
+    private static Object reserve(Hold hold) throws PaymentEngineException {
+        Account account = hold.account;
+        // stripes of a hot account are debited independently, there is no single available balance to hold money of
+        if (account.isHot()) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Holds are not supported for hot accounts");
+        if (account.getAvailableBalance() < hold.amount) throw PaymentEngineException.INSUFFICIENT_FUNDS;
+        account.held += hold.amount;
+        return null;
+    }
+
+    /**
+     * Return money of a hold taken out of the map of open holds to the available balance of its account.
+     */
+    private void release(Hold hold) throws PaymentEngineException {
+        Account account = hold.account;
+        if (sequencers!=null) {
+            sequenced(shardOf(account.getNumber()), Sequencer.OPERATION, 0, 0, 0, null, () -> account.held -= hold.amount);
+        } else {
+            synchronized (account){
+                account.held -= hold.amount;
+            }
+        }
+    }
+
+    /**
+     * Take a hold closed before its time out of its timing wheel.
+     */
+    private void unschedule(Hold hold) {
+        TimingWheel[] wheels = holdWheels;
+        wheels[(int) (hold.id % wheels.length)].cancel(hold);
+    }
+
+    /**
+     * @return timing wheels of holds, created with the expiry thread on the first call
+     */
+    private TimingWheel[] holdWheels() {
+        TimingWheel[] wheels = holdWheels;
+        if (wheels!=null) return wheels;
+        synchronized (holds){
+            if (holdWheels==null){
+                wheels = new TimingWheel[Runtime.getRuntime().availableProcessors()];
+                for (int i=0;i<wheels.length;i++) wheels[i] = new TimingWheel(holdTick(System.nanoTime()));
+                holdScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "hold-expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long interval = config.getHoldTickMillis();
+                holdScheduler.scheduleWithFixedDelay(this::expireHolds, interval, interval, TimeUnit.MILLISECONDS);
+                holdWheels = wheels;
+            }
+            return holdWheels;
+        }
+    }
+
+    /**
+     * @return tick of hold expiry the moment falls into
+     * @param nanos moment as of {@link System#nanoTime()}
+     */
+    private long holdTick(long nanos) {
+        return (nanos-holdOrigin)/TimeUnit.MILLISECONDS.toNanos(config.getHoldTickMillis());
+    }
+
+    /**
+     * Release holds whose time has come, on the expiry thread.
+     */
+    private void expireHolds() {
+        long tick = holdTick(System.nanoTime());
+        List<TimingWheel.Timer> expired = new ArrayList<>();
+        for (TimingWheel wheel : holdWheels) wheel.advance(tick, expired);
+        for (TimingWheel.Timer timer : expired){
+            Hold hold = (Hold) timer;
+            // a hold captured or released while it was expiring is skipped
+            if (!holds.remove(hold.id, hold)) continue;
+            try {
+                release(hold);
+            } catch (Exception e) {
+                log.error("Hold "+hold.id+" has failed to expire: "+e.getMessage());
+            }
+        }
     }
 
     /**
-     * Reset the state of ledger.
+     * Apply a batch of money transfers at most once per idempotency key.
+     * A repeated request with the same key is not applied again, it gets the outcome of the first one instead.
+     * @param transfers transfers to apply
+     * @param atomic if true either all transfers are applied or none of them
+     * @param idempotencyKey key of the request or null to apply it unconditionally
+     * @return per-transfer outcomes
+     * @throws PaymentEngineException same as {@link #transferBatch(List, boolean)} or when the key has been used for another request
+     */
+    public TransferBatchResult transferBatch(List<TransferRequest> transfers, boolean atomic, String idempotencyKey) throws PaymentEngineException {
+        if (idempotencyKey==null) return transferBatch(transfers, atomic);
+        int request = Boolean.hashCode(atomic);
+        for (TransferRequest transfer : transfers)
+            request = 31*(31*(31*request+transfer.getAccountFromNumber())+transfer.getAccountToNumber())+Objects.hashCode(transfer.getAmount());
+        return idempotency().batch(idempotencyKey, request, () -> transferBatch(transfers, atomic));
+    }
+
+    private IdempotencyCache idempotency() {
+        IdempotencyCache cache = idempotency;
+        if (cache==null){
+            synchronized (this){
+                cache = idempotency;
+                if (cache==null)
+                    idempotency = cache = new IdempotencyCache(config.getIdempotencyKeys(), config.getIdempotencyTtlSeconds(), System::nanoTime);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Apply a batch of money transfers.
+     * All accounts of the batch are locked once, in the order of their numbers, like a single transfer does with its two accounts.
+     * Transfers are applied in the order of the batch, so a transfer may spend money credited by a preceding one.
+     * @param transfers transfers to apply
+     * @param atomic if true either all transfers are applied or none of them
+     * @return per-transfer outcomes
+     * @throws PaymentEngineException when atomic batch involves more than {@link #MAX_BATCH_ACCOUNTS} accounts
+     * or accounts of different shards or nodes
+     */
+    public TransferBatchResult transferBatch(List<TransferRequest> transfers, boolean atomic) throws PaymentEngineException {
+        long start = System.nanoTime();
+        try {
+            requireLockingTransfers();
+            return applyBatch(transfers, atomic);
+        } catch (PaymentEngineException e) {
+            metrics.rejected(e.getCode());
+            throw e;
+        } finally {
+            metrics.transferBatch.recordSince(start);
+        }
+    }
+
+    private TransferBatchResult applyBatch(List<TransferRequest> transfers, boolean atomic) throws PaymentEngineException {
+        if (transport!=null){
+            int owner = batchOwner(transfers);
+            if (owner==-2 && atomic) throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Atomic batch must not involve accounts of different nodes");
+            if (owner==-2) return transferOneByOne(transfers);
+            if (owner>=0 && owner!=config.getClusterNode()){
+                ClusterMessage request = ClusterMessage.request(ClusterMessage.BATCH, 0, 0, 0);
+                request.setTransfers(transfers);
+                request.setAtomic(atomic);
+                ClusterMessage reply = transport.send(owner, request);
+                if (reply.getError()!=null) throw reply.rejection();
+                return reply.getBatchResult();
+            }
+        }
+        // transfers between shards are not applied in one step, so they go one by one
+        if (isPartitioned() && !atomic) return transferOneByOne(transfers);
+        Journal journal = this.journal;
+        int size = transfers.size();
+        Account[] accountsFrom = new Account[size];
+        Account[] accountsTo = new Account[size];
+        long[] amounts = new long[size];
+        TransferResult[] results = new TransferResult[size];
+        boolean valid = true;
+        for (int i=0;i<size;i++){
+            TransferRequest transfer = transfers.get(i);
+            try {
+                if (transfer==null || transfer.getAmount()==null) throw PaymentEngineException.INCORRECT_TRANSFER_FORMAT;
+                amounts[i] = Cents.parse(transfer.getAmount());
+                if (amounts[i]<0) throw PaymentEngineException.NON_POSITIVE_AMOUNT;
+                if (transfer.getAccountFromNumber() == transfer.getAccountToNumber()) throw PaymentEngineException.SAME_ACCOUNT;
+                accountsFrom[i] = getAccount(transfer.getAccountFromNumber());
+                accountsTo[i] = getAccount(transfer.getAccountToNumber());
+            } catch (PaymentEngineException e) {
+                results[i] = new TransferResult(i, false, e.getMessage());
+                valid = false;
+            }
+        }
+        if (atomic){
+            if (valid){
+                if (sequencers==null && batchChunkEnd(accountsFrom, accountsTo, 0) < size)
+                    throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Atomic batch must not involve more than "+MAX_BATCH_ACCOUNTS+" accounts");
+                if (isPartitioned())
+                    for (int i=0;i<size;i++)
+                        if (shardOf(accountsFrom[i].getNumber())!=shardOf(accountsFrom[0].getNumber())
+                                || shardOf(accountsTo[i].getNumber())!=shardOf(accountsFrom[0].getNumber()))
+                            throw new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Atomic batch must not involve accounts of different shards");
+                awaitDurable(journal, applyBatchChunk(journal, accountsFrom, accountsTo, amounts, results, 0, size, true));
+            } else {
+                for (int i=0;i<size;i++)
+                    if (results[i]==null) results[i] = new TransferResult(i, false, "Batch has not been applied");
+            }
+        } else {
+            long sequence = -1;
+            for (int start=0, end; start<size; start=end){
+                end = batchChunkEnd(accountsFrom, accountsTo, start);
+                sequence = Math.max(sequence, applyBatchChunk(journal, accountsFrom, accountsTo, amounts, results, start, end, false));
+            }
+            awaitDurable(journal, sequence);
+        }
+        int succeeded = 0;
+        for (TransferResult result : results)
+            if (result.isSuccess()) succeeded++;
+        return new TransferBatchResult(atomic, succeeded, size-succeeded, Arrays.asList(results));
+    }
+
+    /**
+     * @return node owning all accounts of a batch, -1 if there are no valid account numbers or -2 if there are several owners
+     */
+    private int batchOwner(List<TransferRequest> transfers) {
+        int owner = -1;
+        for (TransferRequest transfer : transfers){
+            if (transfer==null) continue;
+            for (int number : new int[]{transfer.getAccountFromNumber(), transfer.getAccountToNumber()}){
+                if (number<0) continue;
+                if (owner>=0 && ownerOf(number)!=owner) return -2;
+                owner = ownerOf(number);
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Apply transfers of a non-atomic batch one by one.
+     */
+    private TransferBatchResult transferOneByOne(List<TransferRequest> transfers) {
+        List<TransferResult> results = new ArrayList<>(transfers.size());
+        int succeeded = 0;
+        for (int i=0;i<transfers.size();i++){
+            TransferRequest transfer = transfers.get(i);
+            try {
+                if (transfer==null || transfer.getAmount()==null) throw PaymentEngineException.INCORRECT_TRANSFER_FORMAT;
+                transferCents(transfer.getAccountFromNumber(), transfer.getAccountToNumber(), Cents.parse(transfer.getAmount()));
+                results.add(new TransferResult(i, true, null));
+                succeeded++;
+            } catch (PaymentEngineException e) {
+                results.add(new TransferResult(i, false, e.getMessage()));
+            }
+        }
+        return new TransferBatchResult(false, succeeded, transfers.size()-succeeded, results);
+    }
+
+    /**
+     * @return end of the longest chunk of the batch that starts at specified position and involves at most {@link #MAX_BATCH_ACCOUNTS} accounts
+     */
+    private static int batchChunkEnd(Account[] accountsFrom, Account[] accountsTo, int start) {
+        Set<Account> accounts = new HashSet<>();
+        int end = start;
+        for (; end<accountsFrom.length; end++){
+            if (accountsFrom[end]==null) continue;
+            accounts.add(accountsFrom[end]);
+            accounts.add(accountsTo[end]);
+            if (accounts.size() > MAX_BATCH_ACCOUNTS) break;
+        }
+        return end==start ? start+1 : end;
+    }
+
+    /**
+     * Lock all accounts of a batch chunk and apply its valid transfers.
+     * Ordinary accounts are locked by their monitors. Hot accounts are locked exclusively,
+     * i.e. by their monitor and all of their stripes, so their total balance is stable while the chunk is applied.
+     * In sequenced and partitioned modes the chunk is applied by the sequencer of its shard without locks.
+     * @return sequence number of the last journal record or -1 if nothing has been journaled
+     */
+    private long applyBatchChunk(Journal journal, Account[] accountsFrom, Account[] accountsTo, long[] amounts,
+                                 TransferResult[] results, int start, int end, boolean atomic) throws PaymentEngineException {
+        Set<Account> involved = new HashSet<>();
+        for (int i=start;i<end;i++){
+            if (results[i]!=null) continue;
+            involved.add(accountsFrom[i]);
+            involved.add(accountsTo[i]);
+        }
+        if (involved.isEmpty()) return -1;
+        TransactionHistory history = this.history;
+        Account[] accounts = involved.toArray(new Account[0]);
+        Arrays.sort(accounts, Comparator.comparingInt(Account::getNumber));
+
+        if (sequencers!=null) return (Long) sequenced(shardOf(accounts[0].getNumber()), Sequencer.OPERATION, 0, 0, 0, null, () -> {
+            StripedBalance[] stripes = new StripedBalance[accounts.length];
+            for (int j=0;j<accounts.length;j++) stripes[j] = accounts[j].getStripes();
+            return applyBatchTransfers(journal, history, versions, accounts, stripes, accountsFrom, accountsTo, amounts, results, start, end, atomic);
+        });
+        while (true){
+            StripedBalance[] stripes = new StripedBalance[accounts.length];
+            int numberOfLocks = 0;
+            for (int j=0;j<accounts.length;j++){
+                stripes[j] = accounts[j].getStripes();
+                numberOfLocks += stripes[j]==null ? 1 : 1+stripes[j].stripes().length;
+            }
+            Object[] locks = new Object[numberOfLocks];
+            for (int j=0, k=0;j<accounts.length;j++){
+                locks[k++] = accounts[j];
+                if (stripes[j]!=null)
+                    for (StripedBalance.Stripe stripe : stripes[j].stripes()) locks[k++] = stripe;
+            }
+            long sequence = runLocked(locks, 0, () -> {
+                // one of accounts might have become hot while we were waiting for its monitor
+                for (int j=0;j<accounts.length;j++)
+                    if (accounts[j].getStripes()!=stripes[j]) return RETRY;
+                return applyBatchTransfers(journal, history, versions, accounts, stripes, accountsFrom, accountsTo, amounts, results, start, end, atomic);
+            });
+            if (sequence!=RETRY) return sequence;
+        }
+    }
+
+    /**
+     * Apply valid transfers of a batch chunk once its accounts are not changed by anyone else.
+     * New balances of the chunk are journaled as one group of records which is replayed all-or-nothing.
+     * @param accounts accounts involved in the chunk ordered by their numbers
+     * @param stripes striped balances of the accounts
+     * @return sequence number of the last journal record or -1 if nothing has been journaled
+     */
+    private static long applyBatchTransfers(Journal journal, TransactionHistory history, BalanceVersions versions,
+                                            Account[] accounts, StripedBalance[] stripes,
+                                            Account[] accountsFrom, Account[] accountsTo, long[] amounts,
+                                            TransferResult[] results, int start, int end, boolean atomic) throws PaymentEngineException {
+        int[] numbers = new int[accounts.length];
+        for (int j=0;j<accounts.length;j++) numbers[j] = accounts[j].getNumber();
+        long[] balances = new long[accounts.length];
+        for (int j=0;j<accounts.length;j++) balances[j] = accounts[j].getTotalBalance();
+        long[] initialBalances = balances.clone();
+        for (int i=start;i<end;i++){
+            if (results[i]!=null) continue;
+            int from = Arrays.binarySearch(numbers, accountsFrom[i].getNumber());
+            int to = Arrays.binarySearch(numbers, accountsTo[i].getNumber());
+            if (balances[from]-accounts[from].held < amounts[i]){
+                results[i] = new TransferResult(i, false, "Insufficient funds");
+                if (atomic){
+                    for (int k=start;k<end;k++)
+                        if (k!=i) results[k] = new TransferResult(k, false, "Batch has not been applied");
+                    return -1;
+                }
+                continue;
+            }
+            balances[from] -= amounts[i];
+            balances[to] += amounts[i];
+            results[i] = new TransferResult(i, true, null);
+        }
+        if (history.isEnabled()){
+            // balances after each transfer are known once the chunk is certain to be applied
+            long[] running = initialBalances.clone();
+            for (int i=start;i<end;i++){
+                if (!results[i].isSuccess()) continue;
+                int from = Arrays.binarySearch(numbers, accountsFrom[i].getNumber());
+                int to = Arrays.binarySearch(numbers, accountsTo[i].getNumber());
+                running[from] -= amounts[i];
+                running[to] += amounts[i];
+                history.record(accountsTo[i], history.record(accountsFrom[i], -1, numbers[to], -amounts[i], running[from]),
+                        numbers[from], amounts[i], running[to]);
+            }
+        }
+        int changed = 0;
+        long version = versions.enter();
+        for (int j=0;j<accounts.length;j++){
+            if (balances[j]==initialBalances[j]) continue;
+            setBalance(accounts[j], balances[j], version);
+            // changed accounts are moved to the head of arrays to be journaled below
+            accounts[changed] = accounts[j];
+            balances[changed++] = balances[j];
+        }
+        versions.exit(version);
+        if (journal==null || changed==0) return -1;
+        int records = (changed+1)/2;
+        long first = journal.reserve(records);
+        for (int r=0;r<records;r++){
+            int entries = Math.min(2, changed-2*r);
+            journal.batch(first+r, r, records, entries, accounts[2*r].getNumber(), balances[2*r],
+                    entries>1 ? accounts[2*r+1].getNumber() : 0, entries>1 ? balances[2*r+1] : 0);
+        }
+        return first+records-1;
+    }
+
+    private static final long RETRY = -2;
+
+    /**
+     * Action performed while holding a number of locks.
+     */
+    private interface LockedAction {
+        /**
+         * @return journal sequence number, -1 if nothing has been journaled or {@link #RETRY} to retry locking
+         */
+        long run() throws PaymentEngineException;
+    }
+
+    /**
+     * Take monitors of specified objects one by one, in the given order, and run the action while holding all of them.
+     */
+    private static long runLocked(Object[] locks, int i, LockedAction action) throws PaymentEngineException {
+        if (i==locks.length) return action.run();
+        synchronized (locks[i]){
+            return runLocked(locks, i+1, action);
+        }
+    }
+
+    /**
+     * Mark an account as hot, i.e. the one that takes part in a large share of transfers.
+     * Its balance is split into stripes updated independently by concurrent transfers.
+     * The account stays hot until the engine is reset.
+     * @param number number of account to mark
+     * @throws PaymentEngineException in case of illegal account number or when account with specified number is not found
+     */
+    public void markAccountHot(int number) throws PaymentEngineException {
+        if (!isLocal(number)){
+            forward(number, ClusterMessage.request(ClusterMessage.HOT, number, 0, 0));
+            return;
+        }
+        requireLockingTransfers();
+        Journal journal = this.journal;
+        Account account = getAccount(number);
+        long sequence;
+        if (sequencers!=null) {
+            sequence = (Long) sequenced(shardOf(number), Sequencer.OPERATION, 0, 0, 0, null, () -> makeHot(journal, versions, account));
+        } else {
+            synchronized (account){
+                sequence = makeHot(journal, versions, account);
+            }
+        }
+        awaitDurable(journal, sequence);
+    }
+
+    /**
+     * Split balance of an ordinary account into stripes. Caller must hold the account monitor or be the sequencer.
+     * @return sequence number of journal record or -1 if nothing has been journaled
+     */
+    private static long makeHot(Journal journal, BalanceVersions versions, Account account) throws PaymentEngineException {
+        if (account.isHot()) return -1;
+        // stripes are debited independently, there is no single available balance to keep holds against
+        if (account.held>0) throw new PaymentEngineException(ErrorCode.CONFLICT, "Account with open holds cannot become hot");
+        long balance = account.getBalance();
+        long version = versions.enter();
+        account.preserve(version);
+        account.makeHot(Runtime.getRuntime().availableProcessors());
+        versions.exit(version);
+        if (journal==null) return -1;
+        return journal.hot(account.getNumber(), account.getStripes().stripes().length, balance);
+    }
+
+    /**
+     * Apply a journal record on recovery.
+     * @param reservations transfers between shards whose money is still in flight, by sequence number of their reservation record
+     */
+    private void replay(JournalRecord record, Map<Long, JournalRecord> reservations) {
+        switch (record.type){
+            case JournalRecord.RESERVE:
+                restoreCell(journaledAccount(record.accounts[0]), 0, record.values[0]);
+                reservations.put(record.sequence, record.copy());
+                break;
+            case JournalRecord.SETTLE:
+                if (record.entries>0) restoreCell(journaledAccount(record.accounts[0]), 0, record.values[0]);
+                reservations.remove(record.values[1]);
+                break;
+            case JournalRecord.CREDIT:
+                restoreCell(journaledAccount(record.accounts[0]), 0, record.values[0]);
+                // ids settled by then are forgotten on the next credit from that node
+                credits.computeIfAbsent(record.accounts[1], key -> new Credits()).ids.add(record.values[1]);
+                break;
+            case JournalRecord.CREATE:
+                ledger.putIfAbsent(new Account(record.accounts[0], record.values[0]));
+                break;
+            case JournalRecord.HOT:
+                Account account = journaledAccount(record.accounts[0]);
+                account.setBalance(record.values[0]);
+                account.makeHot(record.cells[0]);
+                break;
+            default:
+                for (int i=0;i<record.entries;i++)
+                    restoreCell(journaledAccount(record.accounts[i]), record.cells[i], record.values[i]);
+        }
+    }
+
+    private Account journaledAccount(int number) {
+        Account account = ledger.get(number);
+        if (account==null) throw new IllegalStateException("Journal refers to unknown account "+number);
+        return account;
+    }
+
+    /**
+     * Set the whole balance of an ordinary or hot account, preserving the replaced one for snapshots of the version.
+     * @param version version entered by the caller
+     */
+    private static void setBalance(Account account, long value, long version) {
+        StripedBalance stripes = account.getStripes();
+        if (stripes==null) {
+            account.preserve(version);
+            account.setBalance(value);
+        } else {
+            stripes.preserve(version);
+            stripes.collapse(value);
+        }
+    }
+
+    /**
+     * Set value of a balance cell: cell 0 is the whole balance of an account, cell 1+i is stripe i of a hot account.
+     */
+    private static void restoreCell(Account account, int cell, long value) {
+        StripedBalance stripes = account.getStripes();
+        if (cell==0){
+            if (stripes==null) account.setBalance(value);
+            else stripes.collapse(value);
+        } else {
+            stripes.stripes()[cell-1].value = value;
+        }
+    }
+
+    /**
+     * @return latencies and rejections of this engine
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return lowest id of intents of this node that may still be delivered, as told to other nodes
+     */
+    long settledBelow() {
+        return settledBelow;
+    }
+
+    /**
+     * @return number of intent ids of a node remembered to ignore repeated credits
+     */
+    int creditedIntents(int node) {
+        Credits credited = credits.get(node);
+        if (credited==null) return 0;
+        synchronized (credited){
+            return credited.ids.size();
+        }
+    }
+
+    /**
+     * Reset the state of ledger. Journal and checkpoints, if any, are wiped out as well.
      */
     public void reset(){
-        ledger = new HashMap<>();
+        ledger = new AccountIndex();
+        intents.clear();
+        settling.clear();
+        credits.clear();
+        idempotency = null;
+        history = newHistory();
+        holds.clear();
+        if (mapped!=null){
+            try {
+                mapped.close();
+                Files.delete(Paths.get(config.getLedgerFile()));
+                mapped = new MappedLedger(Paths.get(config.getLedgerFile()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (journal!=null){
+            try {
+                synchronized (checkpointLock){
+                    journal.close();
+                    journal.delete();
+                    Checkpoint.delete(Paths.get(config.getJournalDirectory()));
+                    journal = openJournal();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Stop checkpointing, delivery of transfers to other nodes and sequencers, write out pending journal records and release journal files.
+     * @throws IOException in case of journal I/O error
+     */
+    public void close() throws IOException {
+        if (checkpointScheduler!=null) checkpointScheduler.shutdownNow();
+        if (clusterScheduler!=null) clusterScheduler.shutdownNow();
+        synchronized (holds){
+            if (holdScheduler!=null) holdScheduler.shutdownNow();
+        }
+        if (sequencers!=null){
+            for (Sequencer sequencer : sequencers) sequencer.close();
+            // transfers between shards sent after their destination shard has stopped
+            for (Sequencer sequencer : sequencers) sequencer.runMessages();
+        }
+        if (journal!=null) journal.close();
+        if (mapped!=null) mapped.close();
     }
 
 }
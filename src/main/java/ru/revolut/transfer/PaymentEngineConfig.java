@@ -0,0 +1,185 @@
+package ru.revolut.transfer;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Payment Engine settings. Defaults keep the ledger in memory only.
+ */
+@Getter
+@Setter
+public class PaymentEngineConfig {
+
+    /**
+     * How the engine applies changes of the ledger.
+     */
+    public enum ExecutionMode {
+        /**
+         * Request threads apply changes themselves under monitors of involved accounts.
+         */
+        LOCKING,
+        /**
+         * Request threads publish commands to the single sequencer thread which applies them in order without locks.
+         */
+        SEQUENCED,
+        /**
+         * Accounts are partitioned by number across shards, each shard is applied by its own sequencer thread.
+         * Transfers between shards move money in two steps, out of the source shard and then into the destination one.
+         */
+        PARTITIONED
+    }
+
+    /**
+     * How a transfer in locking mode excludes other changes of its two accounts.
+     */
+    public enum TransferStrategy {
+        /**
+         * Monitors of both accounts taken in the order of account numbers. Transfers between
+         * different accounts run in parallel, a transfer waits parked while one of its accounts is busy.
+         */
+        ORDERED,
+        /**
+         * One lock for all transfers, then monitors of both accounts. No parallelism between transfers,
+         * but the cheapest hand-over when nearly all transfers touch the same few accounts.
+         */
+        GLOBAL,
+        /**
+         * Striped locks of both accounts taken with tryLock in any order, releasing the first one and
+         * backing off for a random growing time when the second one is busy, then monitors of both accounts.
+         * Contending transfers spin and retry instead of queueing up behind each other.
+         */
+        TRY_LOCK,
+        /**
+         * No locks: the debit compares and sets the source balance, then the credit adds to the destination one.
+         * Holds, hot accounts, batches, snapshots, transaction history, journal and cluster are not supported,
+         * and money of a transfer is in neither account for a moment between the debit and the credit.
+         */
+        OPTIMISTIC
+    }
+
+    private ExecutionMode executionMode = ExecutionMode.LOCKING;
+
+    private TransferStrategy transferStrategy = TransferStrategy.ORDERED;
+
+    /**
+     * Number of commands a sequencer can hold before publishers have to wait, not used in locking mode.
+     */
+    private int sequencerBufferCommands = 1<<16;
+
+    /**
+     * Number of shards in partitioned mode.
+     */
+    private int shards = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Directory of write-ahead journal or null to keep the ledger in memory only.
+     */
+    private String journalDirectory;
+
+    /**
+     * How long the journal writer waits for more records before it forces them to disk, in microseconds.
+     * Zero means to write as soon as anything is pending; concurrent transfers still share fsyncs
+     * as they pile up while the previous one is in progress. Larger values trade latency for fewer fsyncs.
+     */
+    private long journalCommitDelayMicros = 0;
+
+    /**
+     * Number of records in one journal segment file.
+     */
+    private long journalSegmentRecords = 1<<20;
+
+    /**
+     * Number of records the journal can hold in memory before they are written out.
+     */
+    private int journalBufferRecords = 1<<16;
+
+    /**
+     * Interval between checkpoints of the ledger in seconds, 0 to take checkpoints only on demand.
+     * Recovery loads the latest checkpoint and replays only the journal written after it.
+     */
+    private long checkpointIntervalSeconds = 0;
+
+    /**
+     * Number of this node in a cluster or -1 for a standalone engine.
+     */
+    private int clusterNode = -1;
+
+    /**
+     * First account numbers of ranges owned by cluster nodes in ascending order:
+     * node i owns accounts from clusterRanges[i] up to clusterRanges[i+1] exclusive, the last node owns the rest.
+     */
+    private int[] clusterRanges;
+
+    /**
+     * Interval between attempts to deliver money debited by this node to nodes that were not available, in milliseconds.
+     */
+    private long clusterRetryMillis = 1000;
+
+    /**
+     * Maximum number of idempotency keys whose outcomes are remembered, the oldest ones are forgotten first.
+     */
+    private int idempotencyKeys = 1<<20;
+
+    /**
+     * How long the outcome of a request with an idempotency key is remembered, in seconds.
+     */
+    private long idempotencyTtlSeconds = 24*3600;
+
+    /**
+     * Number of entries in a segment of transaction history.
+     */
+    private int historySegmentEntries = 1<<16;
+
+    /**
+     * Number of the latest segments of transaction history to keep, 0 to keep no history.
+     */
+    private int historySegments = 16;
+
+    /**
+     * Directory of memory mapped segments of transaction history or null to keep them on heap.
+     */
+    private String historyDirectory;
+
+    /**
+     * Time to live of a hold when its request does not specify one, in seconds.
+     */
+    private long holdTtlSeconds = 7*24*3600;
+
+    /**
+     * Precision of hold expiry in milliseconds, i.e. the tick of the timing wheel holds expire by.
+     */
+    private long holdTickMillis = 100;
+
+    /**
+     * Memory mapped file to keep balances in instead of account objects on heap, or null to keep them on heap.
+     * It supports only creation of accounts, their balances, scans and transfers in locking mode of a standalone engine.
+     */
+    private String ledgerFile;
+
+    /**
+     * Read settings from system properties, e.g. -Dtransfer.journal.dir=/var/lib/transfer
+     * @return settings
+     */
+    public static PaymentEngineConfig fromSystemProperties() {
+        PaymentEngineConfig config = new PaymentEngineConfig();
+        config.setExecutionMode(ExecutionMode.valueOf(System.getProperty("transfer.engine.mode", config.getExecutionMode().name()).toUpperCase()));
+        config.setTransferStrategy(TransferStrategy.valueOf(System.getProperty("transfer.engine.transferStrategy", config.getTransferStrategy().name()).toUpperCase()));
+        config.setSequencerBufferCommands(Integer.getInteger("transfer.sequencer.bufferCommands", config.getSequencerBufferCommands()));
+        config.setShards(Integer.getInteger("transfer.engine.shards", config.getShards()));
+        config.setJournalDirectory(System.getProperty("transfer.journal.dir"));
+        config.setJournalCommitDelayMicros(Long.getLong("transfer.journal.commitDelayMicros", config.getJournalCommitDelayMicros()));
+        config.setJournalSegmentRecords(Long.getLong("transfer.journal.segmentRecords", config.getJournalSegmentRecords()));
+        config.setJournalBufferRecords(Integer.getInteger("transfer.journal.bufferRecords", config.getJournalBufferRecords()));
+        config.setCheckpointIntervalSeconds(Long.getLong("transfer.checkpoint.intervalSeconds", config.getCheckpointIntervalSeconds()));
+        config.setIdempotencyKeys(Integer.getInteger("transfer.idempotency.keys", config.getIdempotencyKeys()));
+        config.setIdempotencyTtlSeconds(Long.getLong("transfer.idempotency.ttlSeconds", config.getIdempotencyTtlSeconds()));
+        config.setHistorySegmentEntries(Integer.getInteger("transfer.history.segmentEntries", config.getHistorySegmentEntries()));
+        config.setHistorySegments(Integer.getInteger("transfer.history.segments", config.getHistorySegments()));
+        config.setHistoryDirectory(System.getProperty("transfer.history.dir"));
+        config.setHoldTtlSeconds(Long.getLong("transfer.hold.ttlSeconds", config.getHoldTtlSeconds()));
+        config.setHoldTickMillis(Long.getLong("transfer.hold.tickMillis", config.getHoldTickMillis()));
+        config.setLedgerFile(System.getProperty("transfer.ledger.file"));
+        return config;
+    }
+
+}
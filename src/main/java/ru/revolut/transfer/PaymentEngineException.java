@@ -1,10 +1,93 @@
 package ru.revolut.transfer;
 
 
+/**
+ * Rejection of a request by the Payment Engine.
+ *
+ * Rejections are expected outcomes rather than failures, so no stack trace is captured. Common ones are preallocated
+ * and thrown as they are: they are immutable, and a flood of declined transfers allocates nothing.
+ */
 public class PaymentEngineException extends Exception {
 
+    static final PaymentEngineException INSUFFICIENT_FUNDS =
+            new PaymentEngineException(ErrorCode.INSUFFICIENT_FUNDS, "Insufficient funds");
+
+    static final PaymentEngineException ACCOUNT_NOT_FOUND =
+            new PaymentEngineException(ErrorCode.ACCOUNT_NOT_FOUND, "Account not found");
+
+    static final PaymentEngineException ACCOUNT_EXISTS =
+            new PaymentEngineException(ErrorCode.ACCOUNT_EXISTS, "Account already exists");
+
+    static final PaymentEngineException INCORRECT_NUMBER_FORMAT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Incorrect number format provided");
+
+    static final PaymentEngineException INCORRECT_ACCOUNT_FORMAT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Incorrect account format provided");
+
+    static final PaymentEngineException INCORRECT_TRANSFER_FORMAT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Incorrect transfer format provided");
+
+    static final PaymentEngineException INCORRECT_BATCH_FORMAT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Incorrect batch format provided");
+
+    static final PaymentEngineException NON_POSITIVE_AMOUNT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Non-positive money amount transfer is not allowed");
+
+    static final PaymentEngineException AMOUNT_TOO_LARGE =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Money amount is too large");
+
+    static final PaymentEngineException TOO_PRECISE =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Precision of balance must not exceed 2 digits after decimal point");
+
+    static final PaymentEngineException SAME_ACCOUNT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Source account number must not be the same as destination account number");
+
+    static final PaymentEngineException NEGATIVE_ACCOUNT =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Account number and balance must be non-negative");
+
+    static final PaymentEngineException NEGATIVE_ACCOUNT_NUMBER =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Account number must be non-negative");
+
+    static final PaymentEngineException IDEMPOTENCY_KEY_IN_PROGRESS =
+            new PaymentEngineException(ErrorCode.CONFLICT, "Request with the same idempotency key is in progress");
+
+    static final PaymentEngineException IDEMPOTENCY_KEY_REUSED =
+            new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Idempotency key has been used for another request");
+
+    static final PaymentEngineException IDEMPOTENCY_KEYS_EXHAUSTED =
+            new PaymentEngineException(ErrorCode.UNAVAILABLE, "Too many requests with idempotency keys are in progress");
+
+    static final PaymentEngineException HOLD_NOT_FOUND =
+            new PaymentEngineException(ErrorCode.NOT_FOUND, "Hold not found");
+
+    static final PaymentEngineException CAPTURE_EXCEEDS_HOLD =
+            new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Captured amount must not exceed the hold");
+
+    static final PaymentEngineException UNKNOWN_OPERATION =
+            new PaymentEngineException(ErrorCode.INVALID_REQUEST, "Unknown operation");
+
+    static final PaymentEngineException NOT_SUPPORTED_BY_MAPPED_LEDGER =
+            new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Operation is not supported by the mapped ledger");
+
+    static final PaymentEngineException NOT_SUPPORTED_BY_OPTIMISTIC_TRANSFERS =
+            new PaymentEngineException(ErrorCode.UNPROCESSABLE, "Operation is not supported with optimistic transfers");
+
+    private final ErrorCode code;
+
+    /**
+     * Rejection of an invalid request.
+     */
     public PaymentEngineException(String message) {
-        super(message);
+        this(ErrorCode.INVALID_REQUEST, message);
+    }
+
+    public PaymentEngineException(ErrorCode code, String message) {
+        super(message, null, false, false);
+        this.code = code;
+    }
+
+    public ErrorCode getCode() {
+        return code;
     }
 
 }
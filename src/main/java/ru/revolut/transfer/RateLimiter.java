@@ -0,0 +1,74 @@
+package ru.revolut.transfer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket limits of request rate per key, e.g. per source account or per client.
+ *
+ * Buckets are kept in a fixed array of slots chosen by hash of the key, one long per bucket: the time
+ * its bucket becomes full again, i.e. the generic cell rate algorithm. A request takes a token with a single CAS
+ * and nothing is allocated or locked. Keys of the same slot share their bucket, the array is sized to make it rare.
+ */
+class RateLimiter {
+
+    private final long interval;
+
+    private final long tolerance;
+
+    private final int mask;
+
+    private final long origin = System.nanoTime();
+
+    /**
+     * Per slot, the time when the bucket would be full in nanoseconds since {@link #origin}.
+     */
+    private final AtomicLongArray full;
+
+    /**
+     * @param ratePerSecond tokens added to a bucket per second
+     * @param burst capacity of a bucket in tokens
+     * @param slots number of buckets, rounded up to a power of two
+     */
+    RateLimiter(double ratePerSecond, int burst, int slots) {
+        interval = Math.max(1, (long) (1e9/ratePerSecond));
+        tolerance = interval*Math.max(0, burst-1);
+        int n = 1;
+        while (n < slots) n <<= 1;
+        mask = n-1;
+        full = new AtomicLongArray(n);
+    }
+
+    /**
+     * Take a token from the bucket of a key.
+     * @return 0 if the token is taken, otherwise nanoseconds until the bucket has a token
+     */
+    long acquire(long key) {
+        return acquire(key, System.nanoTime()-origin);
+    }
+
+    /**
+     * Take a token at the given time.
+     * @param now nanoseconds since the limiter has been created
+     */
+    long acquire(long key, long now) {
+        int slot = slot(key);
+        while (true) {
+            long current = full.get(slot);
+            long start = Math.max(current, now);
+            long wait = start-now-tolerance;
+            if (wait > 0) return wait;
+            if (full.compareAndSet(slot, current, start+interval)) return 0;
+        }
+    }
+
+    private int slot(long key) {
+        // finalizer of MurmurHash3 spreads neighbouring account numbers over the array
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+}
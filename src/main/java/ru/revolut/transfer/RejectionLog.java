@@ -0,0 +1,73 @@
+package ru.revolut.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log of rejected requests which costs a rejection no more than a counter increment.
+ * Rejections are counted by their codes and a background thread logs the counts with a sample message
+ * of each code once per interval, so a flood of declined transfers produces a line per code per interval.
+ */
+class RejectionLog {
+
+    private static Logger log = LoggerFactory.getLogger(RejectionLog.class);
+
+    private static final ErrorCode[] CODES = ErrorCode.values();
+
+    private final LongAdder[] counts = new LongAdder[CODES.length];
+
+    private final AtomicReferenceArray<String> samples = new AtomicReferenceArray<>(CODES.length);
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long intervalMillis;
+
+    /**
+     * @param intervalMillis interval between log lines of the same code in milliseconds
+     */
+    RejectionLog(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        for (int i=0;i<counts.length;i++) counts[i] = new LongAdder();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rejection-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count a rejection to be logged later.
+     */
+    void rejected(PaymentEngineException rejection) {
+        int code = rejection.getCode().ordinal();
+        counts[code].increment();
+        if (samples.get(code)==null) samples.compareAndSet(code, null, rejection.getMessage());
+    }
+
+    /**
+     * Log rejections counted since the previous call.
+     */
+    void flush() {
+        for (int i=0;i<CODES.length;i++){
+            long count = counts[i].sumThenReset();
+            String sample = samples.getAndSet(i, null);
+            if (count>0) log.warn(count+" requests rejected with "+CODES[i]+" in "+intervalMillis+" ms, e.g. "+sample);
+        }
+    }
+
+    /**
+     * Log what is left and stop the background thread.
+     */
+    void close() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+}
@@ -0,0 +1,223 @@
+package ru.revolut.transfer;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command pipeline of the sequenced execution mode.
+ *
+ * Request threads publish commands into a preallocated ring the same way journal records are published:
+ * a sequence number is reserved with an atomic increment, the command is put into its slot and the slot is published.
+ * The only sequencer thread drains published commands in sequence order and applies them one by one,
+ * so the ledger is changed by a single thread and needs no locks. The outcome of a command is handed back
+ * to its publisher through a future.
+ *
+ * Sequencers of a partitioned engine also exchange messages: a command may hand its future over to a message
+ * sent to another sequencer, which completes it later. Messages are kept in an unbounded queue, so a sequencer
+ * never waits for another one and two sequencers sending to each other cannot get stuck.
+ */
+class Sequencer implements Closeable {
+
+    static final int CREATE = 1;
+
+    static final int TRANSFER = 2;
+
+    static final int OPERATION = 3;
+
+    /**
+     * Outcome of a command whose future is completed later by a message.
+     */
+    static final Object PENDING = new Object();
+
+    private static final int IDLE_SPINS = 1000;
+
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static final long WAIT_PARK_NANOS = 1_000;
+
+    /**
+     * Operation applied by the sequencer thread.
+     */
+    interface Operation {
+        Object apply() throws PaymentEngineException;
+    }
+
+    /**
+     * Applies commands on the sequencer thread.
+     */
+    interface Handler {
+        /**
+         * @return outcome of the command to complete its future with
+         */
+        Object apply(Command command) throws PaymentEngineException;
+    }
+
+    /**
+     * Slot of the ring. Slots are reused, so a handler must not keep references to them.
+     */
+    static final class Command {
+        int type;
+        int first;
+        int second;
+        long amount;
+        /**
+         * Hold captured by a transfer or null.
+         */
+        Hold hold;
+        Operation operation;
+        CompletableFuture<Object> result;
+    }
+
+    private final Handler handler;
+
+    private final int mask;
+
+    private final Command[] ring;
+
+    /**
+     * Sequence number of the command published in each slot.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Next sequence number to reserve.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Commands below this sequence number have been applied, their slots can be reused.
+     */
+    private volatile long consumed;
+
+    private volatile boolean running = true;
+
+    private volatile boolean idle;
+
+    /**
+     * Messages from other sequencers.
+     */
+    private final ConcurrentLinkedQueue<Runnable> messages = new ConcurrentLinkedQueue<>();
+
+    private final Thread thread;
+
+    /**
+     * Start the sequencer thread.
+     * @param bufferCommands capacity of the ring, rounded up to a power of two
+     * @param handler applies commands
+     */
+    Sequencer(String name, int bufferCommands, Handler handler) {
+        this.handler = handler;
+        int capacity = 1;
+        while (capacity < bufferCommands) capacity <<= 1;
+        mask = capacity-1;
+        ring = new Command[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i=0;i<capacity;i++) {
+            ring[i] = new Command();
+            published.set(i, -1);
+        }
+        thread = new Thread(this::applyCommands, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Publish a command.
+     * @return future of the command outcome
+     */
+    CompletableFuture<Object> publish(int type, int first, int second, long amount, Hold hold, Operation operation) {
+        if (!running) throw new IllegalStateException("Sequencer is closed");
+        long sequence = tail.getAndIncrement();
+        // wait for the slot to be released by the sequencer thread
+        while (sequence-consumed > mask) LockSupport.parkNanos(WAIT_PARK_NANOS);
+        int slot = (int) (sequence & mask);
+        Command command = ring[slot];
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        command.type = type;
+        command.first = first;
+        command.second = second;
+        command.amount = amount;
+        command.hold = hold;
+        command.operation = operation;
+        command.result = result;
+        // volatile write, so it is either seen by the sequencer or the sequencer is seen idle
+        published.set(slot, sequence);
+        if (idle) LockSupport.unpark(thread);
+        return result;
+    }
+
+    /**
+     * Send a message to be run by the sequencer thread ahead of commands that have not been applied yet.
+     */
+    void post(Runnable message) {
+        messages.add(message);
+        if (idle) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Run messages sent after the sequencer thread has stopped.
+     */
+    void runMessages() {
+        for (Runnable message; (message = messages.poll()) != null; ) message.run();
+    }
+
+    /**
+     * Sequencer thread loop.
+     */
+    private void applyCommands() {
+        long next = 0;
+        int spins = 0;
+        while (true) {
+            runMessages();
+            int slot = (int) (next & mask);
+            if (published.get(slot) != next) {
+                if (!running) break;
+                if (!messages.isEmpty()) continue;
+                if (++spins < IDLE_SPINS) {
+                    if (spins > IDLE_SPINS/10) Thread.yield();
+                    continue;
+                }
+                idle = true;
+                if (published.get(slot) != next && messages.isEmpty() && running) LockSupport.parkNanos(IDLE_PARK_NANOS);
+                idle = false;
+                continue;
+            }
+            spins = 0;
+            Command command = ring[slot];
+            CompletableFuture<Object> result = command.result;
+            try {
+                Object outcome = handler.apply(command);
+                command.hold = null;
+                command.operation = null;
+                command.result = null;
+                consumed = ++next;
+                if (outcome != PENDING) result.complete(outcome);
+            } catch (PaymentEngineException | RuntimeException e) {
+                command.hold = null;
+                command.operation = null;
+                command.result = null;
+                consumed = ++next;
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Apply commands published so far and stop the sequencer thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package ru.revolut.transfer;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * REST API server settings. Defaults run requests on the usual bounded pool of Jetty threads.
+ */
+@Getter
+@Setter
+public class ServerConfig {
+
+    /**
+     * Which threads run requests.
+     */
+    public enum ThreadMode {
+        /**
+         * Bounded pool of platform threads, a request waits in the queue while all of them are busy.
+         */
+        POOLED,
+        /**
+         * A new virtual thread per request, available since Java 21. Requests blocked on the journal
+         * hold no platform thread and take little memory. Falls back to the pool on older Java.
+         */
+        VIRTUAL
+    }
+
+    private int port = 8080;
+
+    private ThreadMode threadMode = ThreadMode.POOLED;
+
+    /**
+     * Maximum number of threads in pooled mode, 0 to keep Jetty default.
+     */
+    private int maxThreads = 0;
+
+    /**
+     * Maximum number of requests applied concurrently, 0 for no limit other than the thread pool.
+     * Should be set in virtual mode, where there is no pool to limit them.
+     */
+    private int maxConcurrentRequests = 0;
+
+    /**
+     * How long a request waits for its turn when maximum number of concurrent requests is reached
+     * before it is rejected with 429 status, in milliseconds. 0 rejects it right away.
+     */
+    private long requestQueueTimeoutMillis = 1000;
+
+    /**
+     * Rate of transfers from one account per second, 0 for no limit. Transfers over it are rejected with 429 status.
+     */
+    private double accountRatePerSecond = 0;
+
+    /**
+     * Number of transfers from one account allowed at once over its rate.
+     */
+    private int accountBurst = 100;
+
+    /**
+     * Rate of requests of one client per second, 0 for no limit. Requests over it are rejected with 429 status.
+     * A client is identified by X-Client-Id header or by its address.
+     */
+    private double clientRatePerSecond = 0;
+
+    /**
+     * Number of requests of one client allowed at once over its rate.
+     */
+    private int clientBurst = 1000;
+
+    /**
+     * Number of buckets of each rate limit, keys sharing a bucket share their limit.
+     */
+    private int rateLimitBuckets = 1<<16;
+
+    /**
+     * Interval between log lines about rejected requests of the same kind, in milliseconds.
+     */
+    private long rejectionLogIntervalMillis = 10000;
+
+    /**
+     * Port of the binary TCP listener, 0 to not start it.
+     */
+    private int binaryPort = 0;
+
+    /**
+     * Address the binary listener is bound to, the local one by default.
+     */
+    private String binaryHost = "127.0.0.1";
+
+    /**
+     * Number of threads applying requests of the binary listener.
+     */
+    private int binaryWorkers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of requests of the binary listener in flight over all connections.
+     */
+    private int binaryMaxInFlight = 4096;
+
+    /**
+     * Whether to indent JSON responses for humans.
+     */
+    private boolean prettyJson = false;
+
+    /**
+     * Read settings from system properties, e.g. -Dtransfer.server.threadMode=virtual
+     * @return settings
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setPort(Integer.getInteger("transfer.server.port", config.getPort()));
+        config.setThreadMode(ThreadMode.valueOf(System.getProperty("transfer.server.threadMode", config.getThreadMode().name()).toUpperCase()));
+        config.setMaxThreads(Integer.getInteger("transfer.server.maxThreads", config.getMaxThreads()));
+        config.setMaxConcurrentRequests(Integer.getInteger("transfer.server.maxConcurrentRequests", config.getMaxConcurrentRequests()));
+        config.setRequestQueueTimeoutMillis(Long.getLong("transfer.server.requestQueueTimeoutMillis", config.getRequestQueueTimeoutMillis()));
+        config.setAccountRatePerSecond(Double.parseDouble(System.getProperty("transfer.server.accountRatePerSecond", Double.toString(config.getAccountRatePerSecond()))));
+        config.setAccountBurst(Integer.getInteger("transfer.server.accountBurst", config.getAccountBurst()));
+        config.setClientRatePerSecond(Double.parseDouble(System.getProperty("transfer.server.clientRatePerSecond", Double.toString(config.getClientRatePerSecond()))));
+        config.setClientBurst(Integer.getInteger("transfer.server.clientBurst", config.getClientBurst()));
+        config.setRateLimitBuckets(Integer.getInteger("transfer.server.rateLimitBuckets", config.getRateLimitBuckets()));
+        config.setRejectionLogIntervalMillis(Long.getLong("transfer.server.rejectionLogIntervalMillis", config.getRejectionLogIntervalMillis()));
+        config.setBinaryPort(Integer.getInteger("transfer.server.binaryPort", config.getBinaryPort()));
+        config.setBinaryHost(System.getProperty("transfer.server.binaryHost", config.getBinaryHost()));
+        config.setBinaryWorkers(Integer.getInteger("transfer.server.binaryWorkers", config.getBinaryWorkers()));
+        config.setBinaryMaxInFlight(Integer.getInteger("transfer.server.binaryMaxInFlight", config.getBinaryMaxInFlight()));
+        config.setPrettyJson(Boolean.getBoolean("transfer.server.prettyJson"));
+        return config;
+    }
+
+}
@@ -0,0 +1,140 @@
+package ru.revolut.transfer;
+
+/**
+ * Balance of a hot account split into a number of independent stripes.
+ *
+ * Each thread works with its own stripe, so concurrent transfers to or from a hot account
+ * take different stripe monitors instead of queueing on the account monitor.
+ * Stripes are padded to separate cache lines, otherwise they would still contend on the hardware level.
+ * Total balance of the account is a sum of all stripes.
+ */
+class StripedBalance {
+
+    /**
+     * Stripe of the balance, its monitor guards its value.
+     */
+    static final class Stripe {
+
+        final int index;
+
+        volatile long value;
+
+        /**
+         * Value replaced by the first change in {@link #preservedVersion}, see {@link BalanceVersions}.
+         */
+        long preservedValue;
+
+        volatile long preservedVersion;
+
+        // padding to keep neighbouring stripes on separate cache lines
+        long p1, p2, p3, p4, p5;
+
+        Stripe(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Preserve value of this stripe before it is changed in the version for the first time.
+         * Caller must hold the stripe monitor or be the sequencer of its shard.
+         * @param version version entered by the caller
+         */
+        void preserve(long version) {
+            if (preservedVersion==version) return;
+            preservedValue = value;
+            preservedVersion = version;
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    /**
+     * @param numberOfStripes number of stripes, rounded up to a power of two
+     * @param initialBalance balance to put into the first stripe
+     */
+    StripedBalance(int numberOfStripes, long initialBalance) {
+        int n = 1;
+        while (n < numberOfStripes) n <<= 1;
+        stripes = new Stripe[n];
+        for (int i=0;i<n;i++) stripes[i] = new Stripe(i);
+        stripes[0].value = initialBalance;
+        mask = n-1;
+    }
+
+    /**
+     * @return stripe of the current thread
+     */
+    Stripe local() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    /**
+     * @return sum of all stripes
+     */
+    long sum() {
+        long sum = 0;
+        for (Stripe stripe : stripes) sum += stripe.value;
+        return sum;
+    }
+
+    /**
+     * @return all stripes in the order of their indices
+     */
+    Stripe[] stripes() {
+        return stripes;
+    }
+
+    /**
+     * Preserve values of all stripes before they are changed in the version, see {@link Stripe#preserve}.
+     */
+    void preserve(long version) {
+        for (Stripe stripe : stripes) stripe.preserve(version);
+    }
+
+    /**
+     * Replace balance of all stripes with the specified total kept in the first stripe.
+     * The caller must hold monitors of all stripes.
+     * @param total new total balance
+     */
+    void collapse(long total) {
+        stripes[0].value = total;
+        for (int i=1;i<stripes.length;i++) stripes[i].value = 0;
+    }
+
+    /**
+     * Move money from other stripes to the target one until it holds requested amount.
+     * The caller must hold the account monitor, so borrowers of the same account do not interfere.
+     * @param target stripe that lacks money
+     * @param amount amount of money that is needed in the target stripe
+     * @param journal journal to record money moves or null
+     * @param number account number
+     * @param versions versions to preserve stripe values for
+     * @return true if target stripe holds requested amount at the end
+     * @throws PaymentEngineException if journal is not available
+     */
+    boolean borrow(Stripe target, long amount, Journal journal, int number, BalanceVersions versions) throws PaymentEngineException {
+        for (Stripe source : stripes) {
+            if (target.value >= amount) return true;
+            if (source == target || source.value == 0) continue;
+            // stripes of the same account are always locked in the order of their indices
+            Stripe first = source.index < target.index ? source : target;
+            Stripe second = first == source ? target : source;
+            synchronized (first) {
+                synchronized (second) {
+                    long moved = source.value;
+                    long version = versions.enter();
+                    target.preserve(version);
+                    source.preserve(version);
+                    target.value += moved;
+                    source.value = 0;
+                    versions.exit(version);
+                    if (journal != null)
+                        journal.transfer(JournalRecord.BORROW, moved, number, 1+target.index, target.value, number, 1+source.index, 0);
+                }
+            }
+        }
+        return target.value >= amount;
+    }
+
+}
@@ -0,0 +1,123 @@
+package ru.revolut.transfer;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of timers due at a given tick, for many timers that mostly never fire.
+ *
+ * The wheel has levels of 64 slots, a slot of level L spans 64^L ticks. A timer is linked into the slot
+ * of the lowest level that tells its tick apart from the current one and moves down a level when the wheel
+ * reaches its slot, so scheduling takes constant time and a tick touches only timers due or moving down then.
+ * Timers are linked both ways through their own fields, nothing is allocated, and a timer that has become
+ * irrelevant is cancelled in constant time, so it is not kept until its tick.
+ */
+class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+
+    private static final int SLOTS = 1<<SLOT_BITS;
+
+    private static final int LEVELS = 6;
+
+    /**
+     * Farthest tick a timer can be due at, relative to the current tick, later ones are brought closer.
+     */
+    private static final long SPAN = (1L<<SLOT_BITS*LEVELS)-1;
+
+    /**
+     * Entry of the wheel.
+     */
+    static class Timer {
+        private Timer prev;
+        private Timer next;
+        private long due;
+        /**
+         * Slot the timer is linked into, -1 when it is not scheduled.
+         */
+        private int slot = -1;
+    }
+
+    private final Timer[] slots = new Timer[LEVELS*SLOTS];
+
+    private long current;
+
+    /**
+     * @param start tick the wheel starts at
+     */
+    TimingWheel(long start) {
+        current = start;
+    }
+
+    /**
+     * Schedule a timer, which must not be scheduled already.
+     * @param due tick to expire the timer at, the next tick if it has passed
+     */
+    synchronized void schedule(Timer timer, long due) {
+        timer.due = Math.min(Math.max(due, current+1), current+SPAN);
+        link(timer);
+    }
+
+    /**
+     * Take a timer out of the wheel before it expires.
+     * @return false if the timer is not scheduled, e.g. it has expired already
+     */
+    synchronized boolean cancel(Timer timer) {
+        if (timer.slot<0) return false;
+        if (timer.prev==null) slots[timer.slot] = timer.next;
+        else timer.prev.next = timer.next;
+        if (timer.next!=null) timer.next.prev = timer.prev;
+        unlinked(timer);
+        return true;
+    }
+
+    /**
+     * Advance the wheel up to the given tick and take timers due by then out of it.
+     * @param tick current tick
+     * @param expired receives expired timers
+     */
+    synchronized void advance(long tick, List<Timer> expired) {
+        while (current<tick){
+            current++;
+            // higher levels first, their timers may move down into slots reached at this very tick
+            for (int level=LEVELS-1; level>0; level--){
+                if ((current & (1L<<SLOT_BITS*level)-1)!=0) continue;
+                int slot = level*SLOTS+((int) (current>>>SLOT_BITS*level) & SLOTS-1);
+                Timer timer = slots[slot];
+                slots[slot] = null;
+                while (timer!=null){
+                    Timer next = timer.next;
+                    unlinked(timer);
+                    if (timer.due<=current) expired.add(timer);
+                    else link(timer);
+                    timer = next;
+                }
+            }
+            int slot = (int) current & SLOTS-1;
+            Timer timer = slots[slot];
+            slots[slot] = null;
+            while (timer!=null){
+                Timer next = timer.next;
+                unlinked(timer);
+                expired.add(timer);
+                timer = next;
+            }
+        }
+    }
+
+    private void link(Timer timer) {
+        int level = Math.min(LEVELS-1, (63-Long.numberOfLeadingZeros(timer.due^current))/SLOT_BITS);
+        int slot = level*SLOTS+((int) (timer.due>>>SLOT_BITS*level) & SLOTS-1);
+        Timer head = slots[slot];
+        timer.next = head;
+        if (head!=null) head.prev = timer;
+        slots[slot] = timer;
+        timer.slot = slot;
+    }
+
+    private static void unlinked(Timer timer) {
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+
+}
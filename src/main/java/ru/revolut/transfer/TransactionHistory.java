@@ -0,0 +1,189 @@
+package ru.revolut.transfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log of balance changes of accounts made by transfers since the engine has started.
+ *
+ * Entries are fixed-size rows of primitive fields in segments of a fixed number of entries, only the latest segments
+ * are retained. Segments are allocated on heap or, when a directory is given, mapped from files that are deleted
+ * right away, so the operating system pages them out instead of the heap holding them.
+ * An entry is appended by reserving its position with an atomic increment, there are no locks.
+ *
+ * Entries of an account are chained from the newest to older ones: every entry refers to the previous entry
+ * of its account and the account refers to its newest entry, which is replaced with CAS after the entry is written,
+ * so a reader following the chain sees complete entries only.
+ */
+class TransactionHistory {
+
+    /**
+     * Balance of an entry of a hot account, whose balance is split into stripes that are changed independently.
+     */
+    static final long UNKNOWN_BALANCE = Long.MIN_VALUE;
+
+    private static final int ENTRY_SIZE = 48;
+
+    private static final int TRANSFER = 0;
+    private static final int TIME = 8;
+    private static final int AMOUNT = 16;
+    private static final int BALANCE = 24;
+    private static final int PREVIOUS = 32;
+    private static final int ACCOUNT = 40;
+    private static final int COUNTERPARTY = 44;
+
+    private static final AtomicLongFieldUpdater<Account> LATEST =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "latestTransaction");
+
+    private static final class Segment {
+        final long index;
+        final ByteBuffer entries;
+
+        Segment(long index, ByteBuffer entries) {
+            this.index = index;
+            this.entries = entries;
+        }
+    }
+
+    private final int segmentEntries;
+
+    private final Path directory;
+
+    /**
+     * Retained segments, segment i is kept in slot i % length.
+     */
+    private final AtomicReferenceArray<Segment> segments;
+
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param segmentEntries number of entries in a segment
+     * @param retainedSegments number of latest segments to retain, 0 to keep no history
+     * @param directory directory of segment files or null to keep segments on heap
+     */
+    TransactionHistory(int segmentEntries, int retainedSegments, Path directory) {
+        this.segmentEntries = segmentEntries;
+        this.directory = directory;
+        segments = new AtomicReferenceArray<>(retainedSegments);
+    }
+
+    /**
+     * @return false if no history is kept
+     */
+    boolean isEnabled() {
+        return segments.length() > 0;
+    }
+
+    /**
+     * Append an entry of a transfer leg. Entries of an ordinary account must be appended in the order of its balance changes.
+     * @param account account whose balance has changed
+     * @param transfer id of the transfer the leg belongs to or -1 for a new transfer
+     * @param counterparty number of the other account of the transfer
+     * @param amount signed amount in cents
+     * @param balance balance after the change or {@link #UNKNOWN_BALANCE}
+     * @return id of the transfer, i.e. the id of its first entry, or -1 if no history is kept
+     */
+    long record(Account account, long transfer, int counterparty, long amount, long balance) {
+        if (!isEnabled()) return -1;
+        long id = next.getAndIncrement();
+        Segment segment = segment(id);
+        if (transfer < 0) transfer = id;
+        long previous;
+        do {
+            previous = account.latestTransaction;
+            if (segment != null) {
+                ByteBuffer entries = segment.entries;
+                int offset = (int) (id % segmentEntries) * ENTRY_SIZE;
+                entries.putLong(offset+TRANSFER, transfer);
+                entries.putLong(offset+TIME, System.currentTimeMillis());
+                entries.putLong(offset+AMOUNT, amount);
+                entries.putLong(offset+BALANCE, balance);
+                entries.putLong(offset+PREVIOUS, previous);
+                entries.putInt(offset+ACCOUNT, account.getNumber());
+                entries.putInt(offset+COUNTERPARTY, counterparty);
+            }
+        } while (!LATEST.compareAndSet(account, previous, id));
+        return transfer;
+    }
+
+    /**
+     * Visit entries of an account from newer to older ones.
+     * @param account account
+     * @param before id of an entry of the account to continue after, as returned by previous call, or -1 to start from the newest one
+     * @param limit maximum number of entries to visit
+     * @param visitor receives entries
+     * @return id of the last visited entry if there are older ones, -1 otherwise
+     * @throws PaymentEngineException if specified entry does not belong to the account or is not retained anymore
+     * @throws IOException if the visitor has failed
+     */
+    long read(Account account, long before, int limit, TransactionVisitor visitor) throws PaymentEngineException, IOException {
+        long id = account.latestTransaction;
+        if (before >= 0) {
+            Segment segment = retained(before);
+            int offset = (int) (before % segmentEntries) * ENTRY_SIZE;
+            if (segment == null || segment.entries.getInt(offset+ACCOUNT) != account.getNumber() || before > id)
+                throw new PaymentEngineException(ErrorCode.NOT_FOUND, "Transaction is not found");
+            id = segment.entries.getLong(offset+PREVIOUS);
+        }
+        long last = -1;
+        for (int visited = 0; visited < limit && id >= 0; visited++) {
+            Segment segment = retained(id);
+            if (segment == null) return -1;
+            ByteBuffer entries = segment.entries;
+            int offset = (int) (id % segmentEntries) * ENTRY_SIZE;
+            visitor.visit(id, entries.getLong(offset+TRANSFER), entries.getInt(offset+COUNTERPARTY),
+                    entries.getLong(offset+AMOUNT), entries.getLong(offset+TIME), entries.getLong(offset+BALANCE));
+            last = id;
+            id = entries.getLong(offset+PREVIOUS);
+        }
+        return id >= 0 && retained(id) != null ? last : -1;
+    }
+
+    /**
+     * @return segment holding the entry or null if it is not retained anymore
+     */
+    private Segment retained(long id) {
+        if (id >= next.get()) return null;
+        Segment segment = segments.get((int) (id / segmentEntries % segments.length()));
+        return segment != null && segment.index == id / segmentEntries ? segment : null;
+    }
+
+    /**
+     * @return segment to write the entry to, allocated if it is the first entry of the segment,
+     * or null if writers have gone so far ahead that the segment is not retained anymore
+     */
+    private Segment segment(long id) {
+        long index = id / segmentEntries;
+        int slot = (int) (index % segments.length());
+        while (true) {
+            Segment segment = segments.get(slot);
+            if (segment != null && segment.index >= index) return segment.index == index ? segment : null;
+            Segment allocated = allocate(index);
+            if (segments.compareAndSet(slot, segment, allocated)) return allocated;
+        }
+    }
+
+    private Segment allocate(long index) {
+        if (directory == null) return new Segment(index, ByteBuffer.allocate(segmentEntries*ENTRY_SIZE));
+        try {
+            Files.createDirectories(directory);
+            Path path = Files.createTempFile(directory, "history-"+index+"-", ".dat");
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                ByteBuffer entries = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentEntries*ENTRY_SIZE);
+                // the mapping outlives the file, its pages are freed once the segment is collected
+                Files.delete(path);
+                return new Segment(index, entries);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Transaction history segment cannot be mapped: "+e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package ru.revolut.transfer;
+
+import java.io.IOException;
+
+/**
+ * Receives transactions of an account from its transaction history.
+ */
+public interface TransactionVisitor {
+
+    /**
+     * @param id id of the transaction, unique for the engine
+     * @param transfer id of the transfer, the same for both of its accounts
+     * @param counterparty number of the other account of the transfer
+     * @param amount amount in cents, negative for a debit
+     * @param time time of the transaction in milliseconds since the epoch
+     * @param balance balance in cents after the transaction or {@link Long#MIN_VALUE} if the account was hot
+     * @throws IOException in case of I/O error of the visitor, it stops the scan
+     */
+    void visit(long id, long transfer, int counterparty, long amount, long time, long balance) throws IOException;
+
+}
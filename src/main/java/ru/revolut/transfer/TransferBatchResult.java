@@ -0,0 +1,26 @@
+package ru.revolut.transfer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Outcome of a batch of money transfers.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class TransferBatchResult {
+    /**
+     * Whether the batch has been requested to be applied all-or-nothing.
+     */
+    boolean atomic;
+    int succeeded;
+    int failed;
+    /**
+     * Per-transfer outcomes in the order of the batch.
+     */
+    List<TransferResult> results;
+}
@@ -0,0 +1,22 @@
+package ru.revolut.transfer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A single money transfer in a batch.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferRequest {
+    int accountFromNumber;
+    int accountToNumber;
+    /**
+     * Decimal money amount as it is given by the client, e.g. "10.50".
+     */
+    String amount;
+}
@@ -0,0 +1,23 @@
+package ru.revolut.transfer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Outcome of a single money transfer in a batch.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class TransferResult {
+    /**
+     * Position of the transfer in the batch.
+     */
+    int index;
+    boolean success;
+    /**
+     * Reason of failure or null for successful transfer.
+     */
+    String error;
+}
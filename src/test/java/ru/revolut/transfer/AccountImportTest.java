@@ -0,0 +1,56 @@
+package ru.revolut.transfer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+
+public class AccountImportTest {
+
+    private final PaymentEngine engine = new PaymentEngine(new PaymentEngineConfig());
+
+    public AccountImportTest() throws IOException {
+    }
+
+    @After
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    @Test
+    public void import_should_span_several_batches() throws Exception {
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        int accounts = AccountImport.BATCH_SIZE*2+10;
+        for (int i=0;i<accounts;i++) csv.write((i+","+i+".01\r\n").getBytes(StandardCharsets.US_ASCII));
+        // duplicate in another batch
+        csv.write("5,1.00".getBytes(StandardCharsets.US_ASCII));
+        AccountImportResult result = new AccountImport(engine, true).run(new ByteArrayInputStream(csv.toByteArray()));
+        assertEquals(accounts, result.getCreated());
+        assertEquals(1, result.getFailed());
+        assertEquals(accounts+1, result.getErrors().get(0).getLine());
+        assertEquals(100*(accounts-1)+1, engine.getAccountBalanceCents(accounts-1));
+    }
+
+    @Test
+    public void malformed_lines_should_be_reported() throws Exception {
+        String ndjson = "{\"number\": 1, \"balance\": 1.5}\n" +
+                "{\"number\": -2, \"balance\": 1}\n" +
+                "{\"number\": 3, \"balance\": 1} {}\n" +
+                "[3, 1]\n" +
+                "{\"number\": \"x\", \"balance\": 1}\n";
+        AccountImportResult result = new AccountImport(engine, false).run(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(1, result.getCreated());
+        assertEquals(4, result.getFailed());
+        assertEquals("Account number and balance must be non-negative", result.getErrors().get(0).getError());
+        assertEquals("Incorrect account format provided", result.getErrors().get(1).getError());
+        assertEquals("Incorrect number format provided", result.getErrors().get(3).getError());
+        assertEquals(150, engine.getAccountBalanceCents(1));
+    }
+
+}
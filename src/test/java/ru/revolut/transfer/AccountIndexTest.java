@@ -0,0 +1,92 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class AccountIndexTest {
+
+    @Test
+    public void inserted_accounts_should_be_found_by_number() {
+        AccountIndex index = new AccountIndex();
+        for (int i=0;i<10000;i++)
+            assertNull(index.putIfAbsent(new Account(i*7, i)));
+        assertEquals(10000, index.size());
+        for (int i=0;i<10000;i++)
+            assertEquals(i, index.get(i*7).getBalance());
+        assertNull(index.get(3));
+        assertNull(index.get(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void duplicate_account_number_should_not_be_inserted() {
+        AccountIndex index = new AccountIndex(100);
+        Account account = new Account(42, 1);
+        assertNull(index.putIfAbsent(account));
+        assertSame(account, index.putIfAbsent(new Account(42, 2)));
+        assertEquals(1, index.size());
+        assertEquals(1, index.get(42).getBalance());
+    }
+
+    @Test
+    public void concurrent_inserts_and_lookups_should_not_lose_accounts() throws Throwable {
+        int numberOfThreads = 8;
+        int accountsPerThread = 50000;
+        AccountIndex index = new AccountIndex();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger misses = new AtomicInteger();
+
+        // every thread inserts the same set of numbers, so each number must be inserted only once
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++) {
+            executorService.submit(() -> {
+                for (int i=0;i<accountsPerThread;i++) {
+                    if (index.putIfAbsent(new Account(i, i))!=null) duplicates.incrementAndGet();
+                    if (index.get(i)==null) misses.incrementAndGet();
+                }
+            });
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(0, misses.get());
+        assertEquals(accountsPerThread*(numberOfThreads-1), duplicates.get());
+        assertEquals(accountsPerThread, index.size());
+        for (int i=0;i<accountsPerThread;i++)
+            assertEquals(i, index.get(i).getNumber());
+    }
+
+    @Test
+    public void numbers_should_be_found_in_ascending_order() {
+        AccountIndex index = new AccountIndex();
+        // dense group turns into a bitmap, sparse ones stay sorted arrays
+        for (int i=10000;i>=0;i--) index.putIfAbsent(new Account(i, 0));
+        for (int i=1;i<=100;i++) index.putIfAbsent(new Account(i*20_000_000, 0));
+        index.putIfAbsent(new Account(Integer.MAX_VALUE, 0));
+        for (int i=0;i<=10000;i++) assertEquals(i, index.nextNumber(i));
+        assertEquals(20_000_000, index.nextNumber(10001));
+        assertEquals(40_000_000, index.nextNumber(20_000_001));
+        assertEquals(Integer.MAX_VALUE, index.nextNumber(2_000_000_001));
+        AccountIndex empty = new AccountIndex();
+        assertEquals(-1, empty.nextNumber(0));
+    }
+
+    @Test
+    public void sequential_numbers_should_be_found_among_inserted_out_of_order() {
+        AccountIndex index = new AccountIndex();
+        // appended in place, then inserted between them, below the size of a bitmap
+        for (int i=0;i<=6000;i+=2) index.putIfAbsent(new Account(i, 0));
+        for (int i=1999;i>0;i-=2) index.putIfAbsent(new Account(i, 0));
+        index.putIfAbsent(new Account(1000, 0));
+        for (int i=0;i<2000;i++) assertEquals(i, index.nextNumber(i));
+        for (int i=2001;i<=6000;i+=2) assertEquals(i+1, index.nextNumber(i));
+        assertEquals(-1, index.nextNumber(6001));
+    }
+
+}
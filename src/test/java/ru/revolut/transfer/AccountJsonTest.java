@@ -0,0 +1,34 @@
+package ru.revolut.transfer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+
+public class AccountJsonTest {
+
+    private static String json(int number, long balance, boolean pretty) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccountJson.write(number, balance, pretty, out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void encoded_account_should_match_gson_output() throws Exception {
+        Gson compact = new GsonBuilder().create();
+        Gson pretty = new GsonBuilder().setPrettyPrinting().create();
+        long[] balances = {0, 5, 10, 100, 3435, 1000000, -50, Long.MAX_VALUE, Long.MIN_VALUE};
+        int[] numbers = {0, 6458, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int number : numbers)
+            for (long balance : balances){
+                Account account = new Account(number, balance);
+                assertEquals(compact.toJson(account.toAccountView()), json(number, balance, false));
+                assertEquals(pretty.toJson(account.toAccountView()), json(number, balance, true));
+            }
+    }
+
+}
@@ -0,0 +1,120 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class BinaryServerTest {
+
+    private static final int TRANSFERS = 10_000;
+
+    @Test
+    public void pipelined_requests_should_get_responses_by_their_ids() throws Exception {
+        PaymentEngine engine = new PaymentEngine(new PaymentEngineConfig());
+        RejectionLog rejections = new RejectionLog(60_000);
+        ServerConfig config = new ServerConfig();
+        config.setBinaryWorkers(4);
+        config.setBinaryMaxInFlight(256);
+        BinaryServer server = new BinaryServer(engine, rejections, config);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+            send(channel, 1, BinaryServer.CREATE, 1, 0, TRANSFERS);
+            send(channel, 2, BinaryServer.CREATE, 2, 0, 0);
+            Map<Long, Integer> statuses = receive(channel, 2, null);
+            assertEquals(200, (int) statuses.get(1L));
+            assertEquals(200, (int) statuses.get(2L));
+
+            // requests are sent without waiting for responses, which are read meanwhile
+            ByteBuffer requests = ByteBuffer.allocate((TRANSFERS+3)*BinaryServer.REQUEST_SIZE);
+            for (int i=0;i<TRANSFERS;i++) frame(requests, 100+i, BinaryServer.TRANSFER, 1, 2, 1);
+            frame(requests, 10, BinaryServer.TRANSFER, 1, 3, 1);
+            frame(requests, 11, BinaryServer.CREATE, 2, 0, 0);
+            frame(requests, 12, 42, 1, 2, 1);
+            requests.flip();
+            Thread writer = new Thread(() -> {
+                try {
+                    while (requests.hasRemaining()) channel.write(requests);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.start();
+            statuses = receive(channel, TRANSFERS+3, null);
+            writer.join();
+            for (int i=0;i<TRANSFERS;i++) assertEquals(200, (int) statuses.get(100L+i));
+            assertEquals(404, (int) statuses.get(10L));
+            assertEquals(409, (int) statuses.get(11L));
+            assertEquals(400, (int) statuses.get(12L));
+
+            send(channel, 3, BinaryServer.TRANSFER, 1, 2, 1);
+            send(channel, 4, BinaryServer.BALANCE, 2, 0, 0);
+            Map<Long, Long> values = new HashMap<>();
+            statuses = receive(channel, 2, values);
+            assertEquals(422, (int) statuses.get(3L));
+            assertEquals(TRANSFERS, (long) values.get(4L));
+        } finally {
+            server.close();
+            rejections.close();
+            engine.close();
+        }
+    }
+
+    @Test
+    public void half_closed_connection_should_get_responses_in_flight() throws Exception {
+        PaymentEngine engine = new PaymentEngine(new PaymentEngineConfig());
+        RejectionLog rejections = new RejectionLog(60_000);
+        ServerConfig config = new ServerConfig();
+        config.setBinaryWorkers(2);
+        BinaryServer server = new BinaryServer(engine, rejections, config);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+            send(channel, 1, BinaryServer.CREATE, 1, 0, 100);
+            send(channel, 2, BinaryServer.CREATE, 2, 0, 0);
+            receive(channel, 2, null);
+            for (int i=0;i<100;i++) send(channel, 100+i, BinaryServer.TRANSFER, 1, 2, 1);
+            channel.shutdownOutput();
+            Map<Long, Integer> statuses = receive(channel, 100, null);
+            for (int i=0;i<100;i++) assertEquals(200, (int) statuses.get(100L+i));
+            // the server closes the connection once everything is sent
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            assertEquals(100, engine.getAccountBalanceCents(2));
+        } finally {
+            server.close();
+            rejections.close();
+            engine.close();
+        }
+    }
+
+    private static void frame(ByteBuffer buffer, long id, int op, int from, int to, long amount) {
+        buffer.putLong(id).putInt(op).putInt(from).putInt(to).putLong(amount);
+    }
+
+    private static void send(SocketChannel channel, long id, int op, int from, int to, long amount) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryServer.REQUEST_SIZE);
+        frame(buffer, id, op, from, to, amount);
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static Map<Long, Integer> receive(SocketChannel channel, int count, Map<Long, Long> values) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(count*BinaryServer.RESPONSE_SIZE);
+        while (buffer.hasRemaining()) assertTrue(channel.read(buffer)>=0);
+        buffer.flip();
+        Map<Long, Integer> statuses = new HashMap<>();
+        for (int i=0;i<count;i++){
+            long id = buffer.getLong();
+            assertNull("Response should be sent once", statuses.put(id, buffer.getInt()));
+            long value = buffer.getLong();
+            if (values!=null) values.put(id, value);
+        }
+        return statuses;
+    }
+
+}
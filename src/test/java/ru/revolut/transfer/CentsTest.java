@@ -0,0 +1,47 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class CentsTest {
+
+    @Test
+    public void decimal_strings_should_be_parsed_to_cents() throws PaymentEngineException {
+        assertEquals(3435, Cents.parse("34.35"));
+        assertEquals(3430, Cents.parse("34.3"));
+        assertEquals(3400, Cents.parse("34"));
+        assertEquals(3400, Cents.parse("34."));
+        assertEquals(50, Cents.parse(".5"));
+        assertEquals(3435, Cents.parse("34.3500"));
+        assertEquals(-3435, Cents.parse("-34.35"));
+        assertEquals(3435, Cents.parse("+34.35"));
+        assertEquals(0, Cents.parse("0.00"));
+        assertEquals(Long.MAX_VALUE, Cents.parse("92233720368547758.07"));
+    }
+
+    @Test
+    public void malformed_decimal_strings_should_be_rejected() {
+        assertRejected("", "Incorrect number format provided");
+        assertRejected(".", "Incorrect number format provided");
+        assertRejected("-", "Incorrect number format provided");
+        assertRejected("12a", "Incorrect number format provided");
+        assertRejected("1.2.3", "Incorrect number format provided");
+        assertRejected("1e5", "Incorrect number format provided");
+        assertRejected("34.355", "Precision of balance must not exceed 2 digits after decimal point");
+        assertRejected("92233720368547758.08", "Money amount is too large");
+        assertRejected("1000000000000000000", "Money amount is too large");
+    }
+
+    private static void assertRejected(String text, String message) {
+        try {
+            Cents.parse(text);
+            fail("'"+text+"' should be rejected");
+        } catch (PaymentEngineException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package ru.revolut.transfer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Cluster of three nodes in one JVM connected by loopback transport.
+ * Node 0 owns accounts below 100, node 1 - from 100 to 199 and node 2 - the rest.
+ */
+public class ClusterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+
+    private final List<PaymentEngine> nodes = new ArrayList<>(Arrays.asList(null, null, null));
+
+    private PaymentEngine start(int node) throws IOException {
+        return start(node, transport, 0);
+    }
+
+    private PaymentEngine start(int node, ClusterTransport outgoing, long commitDelayMicros) throws IOException {
+        PaymentEngineConfig config = new PaymentEngineConfig();
+        config.setClusterNode(node);
+        config.setClusterRanges(new int[]{0, 100, 200});
+        config.setClusterRetryMillis(50);
+        config.setJournalDirectory(folder.getRoot().toPath().resolve("node-"+node).toString());
+        config.setJournalCommitDelayMicros(commitDelayMicros);
+        PaymentEngine engine = new PaymentEngine(config, outgoing);
+        transport.connect(node, engine);
+        nodes.set(node, engine);
+        return engine;
+    }
+
+    private void stop(int node) throws IOException {
+        transport.disconnect(node);
+        nodes.get(node).close();
+        nodes.set(node, null);
+    }
+
+    @After
+    public void stopAll() throws IOException {
+        for (int node=0;node<nodes.size();node++)
+            if (nodes.get(node)!=null) stop(node);
+    }
+
+    @Test
+    public void any_node_should_serve_any_account() throws Exception {
+        for (int node=0;node<3;node++) start(node);
+        PaymentEngine any = nodes.get(0);
+        any.createAccountCents(1, 10000);
+        any.createAccountCents(150, 10000);
+        nodes.get(2).createAccountCents(250, 0);
+
+        // forwarded to node 1, which debits account 150 and credits account 250 of node 2
+        any.transferCents(150, 250, 2500);
+        nodes.get(2).transferCents(1, 150, 100);
+        for (PaymentEngine node : nodes){
+            assertEquals(9900, balance(node, 1));
+            assertEquals(7600, balance(node, 150));
+            assertEquals(2500, balance(node, 250));
+        }
+        try {
+            any.transferCents(1, 199, 100);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals("Account not found", e.getMessage());
+        }
+        // money rejected by the destination node is returned
+        assertEquals(9900, balance(any, 1));
+
+        List<TransferRequest> batch = new ArrayList<>();
+        batch.add(new TransferRequest(150, 250, "1.00"));
+        batch.add(new TransferRequest(250, 1, "2.00"));
+        try {
+            any.transferBatch(batch, true);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals("Atomic batch must not involve accounts of different nodes", e.getMessage());
+        }
+        assertEquals(2, any.transferBatch(batch, false).getSucceeded());
+        assertEquals(10100, balance(any, 1));
+    }
+
+    @Test
+    public void money_should_reach_node_that_was_down() throws Exception {
+        for (int node=0;node<3;node++) start(node);
+        nodes.get(0).createAccountCents(1, 10000);
+        nodes.get(0).createAccountCents(2, 10000);
+        nodes.get(1).createAccountCents(100, 0);
+        stop(1);
+
+        // the transfer is accepted while its destination node is down
+        nodes.get(0).transferCents(1, 100, 1000);
+        assertEquals(9000, balance(nodes.get(0), 1));
+        nodes.get(0).transferCents(2, 100, 500);
+        // and the source node crashes before it is delivered
+        stop(0);
+
+        start(1);
+        start(0);
+        for (int i=0;i<100 && balance(nodes.get(1), 100)==0;i++) Thread.sleep(50);
+        Thread.sleep(200);
+        assertEquals(1500, balance(nodes.get(1), 100));
+        assertEquals(9000, balance(nodes.get(0), 1));
+        assertEquals(9500, balance(nodes.get(0), 2));
+    }
+
+    @Test
+    public void repeated_credit_should_be_ignored() throws Exception {
+        PaymentEngine engine = start(1);
+        engine.createAccountCents(100, 0);
+        ClusterMessage credit = ClusterMessage.request(ClusterMessage.CREDIT, 100, 0, 700);
+        credit.setNode(0);
+        credit.setIntent(42);
+        assertNull(engine.handle(credit).getError());
+        assertNull(engine.handle(credit).getError());
+        stop(1);
+
+        // credited intents are restored from the journal as well
+        engine = start(1);
+        assertNull(engine.handle(credit).getError());
+        assertEquals(700, balance(engine, 100));
+    }
+
+    @Test
+    public void ids_of_settled_intents_should_be_forgotten() throws Exception {
+        for (int node=0;node<2;node++) start(node);
+        nodes.get(0).createAccountCents(1, 10000);
+        nodes.get(1).createAccountCents(100, 0);
+        for (int i=0;i<100;i++) nodes.get(0).transferCents(1, 100, 1);
+        // the next retry round tells node 1 that all of them are settled
+        Thread.sleep(200);
+        nodes.get(0).transferCents(1, 100, 1);
+        assertEquals(1, nodes.get(1).creditedIntents(0));
+
+        ClusterMessage credit = ClusterMessage.request(ClusterMessage.CREDIT, 100, 1, 700);
+        credit.setNode(0);
+        credit.setIntent(42);
+        assertNull(nodes.get(1).handle(credit).getError());
+        // an intent below the watermark has been credited already
+        assertEquals(101, balance(nodes.get(1), 100));
+    }
+
+    @Test
+    public void intent_should_not_be_forgotten_before_its_refund_is_durable() throws Exception {
+        CountDownLatch rejected = new CountDownLatch(1);
+        AtomicLong rejectedIntent = new AtomicLong();
+        ClusterTransport observed = (node, request) -> {
+            // only the transfer itself delivers, so retry rounds keep moving the watermark while it waits for the refund
+            if (request.getType()==ClusterMessage.CREDIT && Thread.currentThread().getName().equals("cluster-retry"))
+                throw new PaymentEngineException(ErrorCode.UNAVAILABLE, "Node "+node+" is not available");
+            ClusterMessage reply = transport.send(node, request);
+            if (request.getType()==ClusterMessage.CREDIT && reply.getError()!=null){
+                rejectedIntent.set(request.getIntent());
+                rejected.countDown();
+            }
+            return reply;
+        };
+        // every journal record of the source waits half a second to become durable
+        PaymentEngine source = start(0, observed, 500_000);
+        PaymentEngine destination = start(1);
+        source.createAccountCents(1, 10000);
+        Thread transfer = new Thread(() -> {
+            try {
+                source.transferCents(1, 199, 100);
+            } catch (PaymentEngineException e) {
+                // account 199 does not exist yet
+            }
+        });
+        transfer.start();
+        assertTrue(rejected.await(10, TimeUnit.SECONDS));
+        // retry rounds go on while the refund waits for the journal
+        Thread.sleep(200);
+        long watermark = source.settledBelow();
+        long intent = rejectedIntent.get();
+        assertTrue("Watermark "+watermark+" should not pass intent "+intent, watermark<=intent);
+
+        // should the source crash now, the next credit would carry the watermark and the replayed intent
+        // would be delivered again, by then to an account that exists
+        destination.createAccountCents(199, 0);
+        destination.createAccountCents(150, 0);
+        ClusterMessage next = ClusterMessage.request(ClusterMessage.CREDIT, 150, 1, 1);
+        next.setNode(0);
+        next.setIntent(intent+1_000_000);
+        next.setSettledBelow(watermark);
+        assertNull(destination.handle(next).getError());
+        ClusterMessage replayed = ClusterMessage.request(ClusterMessage.CREDIT, 199, 1, 100);
+        replayed.setNode(0);
+        replayed.setIntent(intent);
+        replayed.setSettledBelow(watermark);
+        assertNull(destination.handle(replayed).getError());
+        // credited rather than taken for a repetition, so the money is not lost
+        assertEquals(100, balance(destination, 199));
+        transfer.join();
+    }
+
+    private static long balance(PaymentEngine engine, int number) throws PaymentEngineException {
+        return engine.getAccountView(number).getBalance().multiply(new BigDecimal(100)).longValueExact();
+    }
+
+}
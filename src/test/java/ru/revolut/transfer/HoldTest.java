@@ -0,0 +1,85 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class HoldTest {
+
+    @Test
+    public void holds_should_be_captured_released_and_expire_in_every_mode() throws Exception {
+        for (PaymentEngineConfig.ExecutionMode mode : PaymentEngineConfig.ExecutionMode.values()){
+            PaymentEngineConfig config = new PaymentEngineConfig();
+            config.setExecutionMode(mode);
+            config.setShards(2);
+            config.setHoldTickMillis(5);
+            PaymentEngine engine = new PaymentEngine(config);
+            try {
+                engine.createAccountCents(1, 10_000);
+                engine.createAccountCents(2, 0);
+                engine.createAccountCents(3, 0);
+                long hold = engine.holdCents(1, 7_000, 0);
+                assertEquals(mode.name(), 3_000, engine.getAvailableBalanceCents(1));
+                assertEquals(10_000, engine.getAccountBalanceCents(1));
+                try {
+                    engine.transferCents(1, 2, 3_001);
+                    fail("Held money should not be transferred");
+                } catch (PaymentEngineException e) {
+                    assertEquals(ErrorCode.INSUFFICIENT_FUNDS, e.getCode());
+                }
+                // accounts 1 and 2 are in different shards, 1 and 3 are in the same one
+                engine.captureCents(hold, 2, 5_000);
+                assertEquals(5_000, engine.getAccountBalanceCents(1));
+                assertEquals(5_000, engine.getAvailableBalanceCents(1));
+                assertEquals(5_000, engine.getAccountBalanceCents(2));
+                try {
+                    engine.releaseHold(hold);
+                    fail("Captured hold should be closed");
+                } catch (PaymentEngineException e) {
+                    assertEquals(ErrorCode.NOT_FOUND, e.getCode());
+                }
+                hold = engine.holdCents(1, 1_000, 0);
+                try {
+                    engine.captureCents(hold, 3, 1_001);
+                    fail("Capture should not exceed the hold");
+                } catch (PaymentEngineException e) {
+                    assertEquals(ErrorCode.UNPROCESSABLE, e.getCode());
+                }
+                engine.captureCents(hold, 3, 1_000);
+                assertEquals(1_000, engine.getAccountBalanceCents(3));
+                engine.releaseHold(engine.holdCents(1, 4_000, 0));
+                assertEquals(4_000, engine.getAvailableBalanceCents(1));
+                engine.holdCents(1, 4_000, 20);
+                assertEquals(0, engine.getAvailableBalanceCents(1));
+                long deadline = System.currentTimeMillis()+5_000;
+                while (engine.getAvailableBalanceCents(1)==0 && System.currentTimeMillis()<deadline) Thread.sleep(5);
+                assertEquals(4_000, engine.getAvailableBalanceCents(1));
+                assertEquals(4_000, engine.getAccountBalanceCents(1));
+            } finally {
+                engine.close();
+            }
+        }
+    }
+
+    @Test
+    public void held_account_should_not_become_hot() throws Exception {
+        PaymentEngine engine = new PaymentEngine(new PaymentEngineConfig());
+        engine.createAccountCents(1, 100);
+        engine.createAccountCents(2, 0);
+        long hold = engine.holdCents(1, 50, 0);
+        try {
+            engine.markAccountHot(1);
+            fail("Account with open holds should not become hot");
+        } catch (PaymentEngineException e) {
+            assertEquals(ErrorCode.CONFLICT, e.getCode());
+        }
+        // captures to hot accounts are the common case
+        engine.markAccountHot(2);
+        engine.captureCents(hold, 2, 50);
+        assertEquals(50, engine.getAccountBalanceCents(2));
+        engine.markAccountHot(1);
+        engine.close();
+    }
+
+}
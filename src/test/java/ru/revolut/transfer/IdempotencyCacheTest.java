@@ -0,0 +1,146 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class IdempotencyCacheTest {
+
+    private long now;
+
+    private final AtomicInteger applied = new AtomicInteger();
+
+    private final IdempotencyCache cache = new IdempotencyCache(64, 60, () -> now);
+
+    private void transfer(String key) throws PaymentEngineException {
+        cache.transfer(key, 1, applied::incrementAndGet);
+    }
+
+    @Test
+    public void repeated_request_should_get_outcome_of_the_first_one() throws Exception {
+        transfer("a");
+        transfer("a");
+        assertEquals(1, applied.get());
+        for (int i=0;i<2;i++){
+            try {
+                cache.transfer("b", 1, () -> { applied.incrementAndGet(); throw new PaymentEngineException("Insufficient funds"); });
+                fail();
+            } catch (PaymentEngineException e) {
+                assertEquals("Insufficient funds", e.getMessage());
+            }
+        }
+        assertEquals(2, applied.get());
+        try {
+            cache.transfer("a", 2, applied::incrementAndGet);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals("Idempotency key has been used for another request", e.getMessage());
+        }
+    }
+
+    @Test
+    public void keys_should_be_forgotten_when_expired_or_evicted() throws Exception {
+        transfer("old");
+        now += TimeUnit.SECONDS.toNanos(61);
+        transfer("old");
+        assertEquals(2, applied.get());
+
+        // one key per segment is remembered, so enough new keys push every old one out
+        for (int i=0;i<10000;i++) transfer("key-"+i);
+        applied.set(0);
+        transfer("key-9999");
+        assertEquals(0, applied.get());
+        transfer("key-0");
+        assertEquals(1, applied.get());
+    }
+
+    @Test
+    public void abandoned_request_should_be_applied_again() throws Exception {
+        try {
+            cache.transfer("a", 1, () -> { throw new IllegalStateException("Sequencer is closed"); });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        transfer("a");
+        assertEquals(1, applied.get());
+    }
+
+    @Test
+    public void unavailable_request_should_be_applied_again() throws Exception {
+        try {
+            cache.transfer("a", 1, () -> { throw new PaymentEngineException(ErrorCode.UNAVAILABLE, "Journal is not available"); });
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals(ErrorCode.UNAVAILABLE, e.getCode());
+        }
+        transfer("a");
+        assertEquals(1, applied.get());
+    }
+
+    @Test
+    public void request_in_progress_should_not_be_evicted() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(() -> {
+            try {
+                cache.transfer("slow", 1, () -> {
+                    applied.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } catch (PaymentEngineException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        first.start();
+        started.await();
+        // one key per segment is remembered, some of new keys fall into the segment of the slow one
+        int rejected = 0;
+        for (int i=0;i<1000;i++){
+            try {
+                transfer("key-"+i);
+            } catch (PaymentEngineException e) {
+                assertEquals(ErrorCode.UNAVAILABLE, e.getCode());
+                rejected++;
+            }
+        }
+        assertTrue(rejected>0);
+        release.countDown();
+        first.join();
+        applied.set(0);
+        transfer("slow");
+        assertEquals(0, applied.get());
+    }
+
+    @Test
+    public void replayed_error_should_keep_its_code_when_errors_are_many() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10000, 60, () -> now);
+        for (int i=0;i<5000;i++){
+            int n = i;
+            try {
+                cache.transfer("key-"+i, 1, () -> { throw new PaymentEngineException(ErrorCode.NOT_FOUND, "Transaction "+n+" not found"); });
+                fail();
+            } catch (PaymentEngineException e) {
+                // expected
+            }
+        }
+        try {
+            cache.transfer("key-4999", 1, applied::incrementAndGet);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals(ErrorCode.NOT_FOUND, e.getCode());
+        }
+        assertEquals(0, applied.get());
+    }
+
+}
@@ -0,0 +1,309 @@
+package ru.revolut.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Restarting the engine over its journal should bring the ledger back exactly as it was.
+ */
+public class JournalRecoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PaymentEngineConfig config() {
+        PaymentEngineConfig config = new PaymentEngineConfig();
+        config.setJournalDirectory(folder.getRoot().getPath());
+        config.setJournalSegmentRecords(16);
+        return config;
+    }
+
+    @Test
+    public void ledger_should_be_restored_from_journal() throws Exception {
+        PaymentEngine engine = new PaymentEngine(config());
+        engine.createAccountCents(1, 10000);
+        engine.createAccountCents(2, 0);
+        engine.createAccountCents(3, 500);
+        engine.transferCents(1, 2, 2550);
+        engine.markAccountHot(2);
+        engine.transferCents(3, 2, 100);
+        engine.transferCents(2, 1, 50);
+        List<TransferRequest> batch = new ArrayList<>();
+        batch.add(new TransferRequest(1, 3, "10.00"));
+        batch.add(new TransferRequest(2, 3, "1.00"));
+        batch.add(new TransferRequest(3, 1, "1000.00"));
+        engine.transferBatch(batch, false);
+        // enough records to roll over a few segments
+        for (int i=0;i<40;i++) engine.transferCents(1+i%3, 1+(i+1)%3, 1);
+        long[] balances = {balance(engine, 1), balance(engine, 2), balance(engine, 3)};
+        engine.close();
+
+        PaymentEngine restarted = new PaymentEngine(config());
+        assertTrue(restarted.getAccountView(2).getBalance().signum() > 0);
+        assertArrayEquals(balances, new long[]{balance(restarted, 1), balance(restarted, 2), balance(restarted, 3)});
+        // and it goes on from there
+        restarted.transferCents(1, 3, 1);
+        restarted.close();
+        restarted = new PaymentEngine(config());
+        assertEquals(balances[0]-1, balance(restarted, 1));
+        assertEquals(balances[2]+1, balance(restarted, 3));
+        restarted.close();
+    }
+
+    @Test
+    public void torn_journal_tail_should_be_cut_off() throws Exception {
+        PaymentEngine engine = new PaymentEngine(config());
+        engine.createAccountCents(1, 10000);
+        engine.createAccountCents(2, 0);
+        engine.transferCents(1, 2, 100);
+        engine.close();
+
+        // half-written record at the end of the last segment
+        Path last = segments().get(segments().size()-1);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[Journal.RECORD_SIZE/2]));
+        }
+
+        engine = new PaymentEngine(config());
+        assertEquals(9900, balance(engine, 1));
+        assertEquals(100, balance(engine, 2));
+        engine.transferCents(1, 2, 100);
+        engine.close();
+        engine = new PaymentEngine(config());
+        assertEquals(9800, balance(engine, 1));
+        engine.close();
+    }
+
+    @Test
+    public void concurrent_transfers_should_be_restored_from_journal() throws Exception {
+        int numberOfAccounts = 10;
+        int numberOfThreads = 8;
+        int transfersPerThread = 2000;
+        PaymentEngineConfig config = config();
+        config.setJournalSegmentRecords(1000);
+        PaymentEngine engine = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) engine.createAccountCents(i, 100000);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++){
+            int shift = t;
+            executorService.submit(() -> {
+                for (int i=0;i<transfersPerThread;i++)
+                    engine.transferCents((i+shift)%numberOfAccounts, (i+shift*3+1)%numberOfAccounts, 1+i%7);
+                return null;
+            });
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        long[] balances = new long[numberOfAccounts];
+        for (int i=0;i<numberOfAccounts;i++) balances[i] = balance(engine, i);
+        engine.close();
+
+        PaymentEngine restarted = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) assertEquals(balances[i], balance(restarted, i));
+        restarted.close();
+    }
+
+    @Test
+    public void checkpoint_taken_during_transfers_should_shorten_recovery() throws Exception {
+        int numberOfAccounts = 10;
+        int numberOfThreads = 4;
+        int transfersPerThread = 3000;
+        PaymentEngineConfig config = config();
+        config.setJournalSegmentRecords(500);
+        PaymentEngine engine = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) engine.createAccountCents(i, 100000);
+        engine.markAccountHot(0);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++){
+            int shift = t;
+            executorService.submit(() -> {
+                for (int i=0;i<transfersPerThread;i++)
+                    engine.transferCents((i+shift)%numberOfAccounts, (i+shift*3+1)%numberOfAccounts, 1+i%7);
+                return null;
+            });
+        }
+        // checkpoints are taken while transfers go on
+        long position = 0;
+        for (int i=0;i<3;i++){
+            Thread.sleep(20);
+            position = engine.checkpoint();
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        long[] balances = new long[numberOfAccounts];
+        for (int i=0;i<numberOfAccounts;i++) balances[i] = balance(engine, i);
+        engine.close();
+
+        // journal segments preceding the last checkpoint are gone
+        assertTrue(position > 0);
+        String firstSegment = segments().stream().map(path -> path.getFileName().toString())
+                .filter(name -> name.startsWith("journal-")).findFirst().get();
+        assertTrue(Long.parseLong(firstSegment.substring(8, 28)) > position-500);
+
+        PaymentEngine restarted = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) assertEquals(balances[i], balance(restarted, i));
+        restarted.close();
+    }
+
+    @Test
+    public void sequenced_engine_should_keep_ledger_consistent_and_restorable() throws Exception {
+        int numberOfAccounts = 10;
+        int numberOfThreads = 8;
+        int transfersPerThread = 2000;
+        PaymentEngineConfig config = config();
+        config.setJournalSegmentRecords(500);
+        config.setExecutionMode(PaymentEngineConfig.ExecutionMode.SEQUENCED);
+        PaymentEngine engine = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) engine.createAccountCents(i, 100000);
+        engine.markAccountHot(0);
+        try {
+            engine.createAccountCents(1, 0);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals("Account already exists", e.getMessage());
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++){
+            int shift = t;
+            executorService.submit(() -> {
+                for (int i=0;i<transfersPerThread;i++){
+                    if (i%100==0) {
+                        List<TransferRequest> batch = new ArrayList<>();
+                        batch.add(new TransferRequest(shift%numberOfAccounts, (shift+1)%numberOfAccounts, "1.00"));
+                        batch.add(new TransferRequest((shift+1)%numberOfAccounts, (shift+2)%numberOfAccounts, "2.00"));
+                        engine.transferBatch(batch, true);
+                    }
+                    engine.transferCents((i+shift)%numberOfAccounts, (i+shift*3+1)%numberOfAccounts, 1+i%7);
+                }
+                return null;
+            });
+        }
+        // an exact checkpoint is taken by the sequencer while transfers go on
+        Thread.sleep(20);
+        assertTrue(engine.checkpoint() > 0);
+        // the image itself adds up, before any journal is replayed on top of it
+        AccountIndex image = new AccountIndex();
+        Checkpoint.load(folder.getRoot().toPath(), image);
+        long[] imageTotal = {0};
+        image.forEach(account -> imageTotal[0] += account.getTotalBalance());
+        assertEquals(100000L*numberOfAccounts, imageTotal[0]);
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        long[] balances = new long[numberOfAccounts];
+        long total = 0;
+        for (int i=0;i<numberOfAccounts;i++) total += balances[i] = balance(engine, i);
+        assertEquals(100000L*numberOfAccounts, total);
+        try {
+            engine.transferCents(1, 2, total);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals("Insufficient funds", e.getMessage());
+        }
+        engine.close();
+
+        // journal of the sequenced engine is restored by the locking one as well
+        config.setExecutionMode(PaymentEngineConfig.ExecutionMode.LOCKING);
+        PaymentEngine restarted = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) assertEquals(balances[i], balance(restarted, i));
+        restarted.close();
+    }
+
+    @Test
+    public void transfers_between_shards_should_neither_create_nor_lose_money() throws Exception {
+        int numberOfAccounts = 16;
+        int numberOfThreads = 8;
+        int transfersPerThread = 2000;
+        PaymentEngineConfig config = config();
+        config.setJournalSegmentRecords(1000);
+        config.setExecutionMode(PaymentEngineConfig.ExecutionMode.PARTITIONED);
+        config.setShards(4);
+        PaymentEngine engine = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) engine.createAccountCents(i, 100000);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++){
+            int shift = t;
+            executorService.submit(() -> {
+                for (int i=0;i<transfersPerThread;i++)
+                    engine.transferCents((i+shift)%numberOfAccounts, (i+shift*3+1)%numberOfAccounts, 1+i%7);
+                return null;
+            });
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        // atomic batches are allowed within one shard only
+        List<TransferRequest> batch = new ArrayList<>();
+        batch.add(new TransferRequest(1, 5, "1.00"));
+        batch.add(new TransferRequest(5, 9, "1.00"));
+        assertEquals(2, engine.transferBatch(batch, true).getSucceeded());
+        batch.add(new TransferRequest(9, 2, "1.00"));
+        try {
+            engine.transferBatch(batch, true);
+            fail();
+        } catch (PaymentEngineException e) {
+            assertEquals("Atomic batch must not involve accounts of different shards", e.getMessage());
+        }
+        assertEquals(3, engine.transferBatch(batch, false).getSucceeded());
+        long[] balances = new long[numberOfAccounts];
+        long total = 0;
+        for (int i=0;i<numberOfAccounts;i++) total += balances[i] = balance(engine, i);
+        assertEquals(100000L*numberOfAccounts, total);
+        engine.close();
+
+        PaymentEngine restarted = new PaymentEngine(config);
+        for (int i=0;i<numberOfAccounts;i++) assertEquals(balances[i], balance(restarted, i));
+        restarted.close();
+    }
+
+    @Test
+    public void money_in_flight_between_shards_should_return_to_source_account() throws Exception {
+        PaymentEngine engine = new PaymentEngine(config());
+        engine.createAccountCents(1, 10000);
+        engine.createAccountCents(2, 0);
+        engine.close();
+        // the engine has stopped after money left account 1 and before it reached account 2
+        Journal journal = new Journal(folder.getRoot().toPath(), 16, 16, 0, 0, record -> {});
+        journal.awaitDurable(journal.reservation(2500, 1, 7500, 2));
+        journal.close();
+
+        for (int restart=0;restart<2;restart++){
+            engine = new PaymentEngine(config());
+            assertEquals(10000, balance(engine, 1));
+            assertEquals(0, balance(engine, 2));
+            engine.close();
+        }
+    }
+
+    private static long balance(PaymentEngine engine, int number) throws PaymentEngineException {
+        return engine.getAccountView(number).getBalance().multiply(new BigDecimal(100)).longValueExact();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+}
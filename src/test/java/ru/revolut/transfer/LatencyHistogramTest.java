@@ -0,0 +1,48 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_should_cover_values_without_gaps() {
+        assertEquals(31, LatencyHistogram.highestValue(LatencyHistogram.bucket(31)));
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE/3; value = value*3+1){
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            assertTrue(bucket==0 || LatencyHistogram.highestValue(bucket-1) < value);
+        }
+    }
+
+    @Test
+    public void quantiles_should_be_within_bucket_precision() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i=1;i<=1000;i++) histogram.record(i*1000L);
+        // another thread may record into another recorder
+        Thread thread = new Thread(() -> histogram.record(5_000_000));
+        thread.start();
+        thread.join();
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(5_000_000, snapshot.getMax());
+        assertEquals(500_000, snapshot.valueAt(0.5), 500_000/16);
+        assertEquals(990_000, snapshot.valueAt(0.99), 990_000/16);
+        assertEquals(5_000_000, snapshot.valueAt(1));
+    }
+
+    @Test
+    public void recorders_should_not_grow_with_threads() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i=0;i<1000;i++){
+            Thread thread = new Thread(() -> histogram.record(1000));
+            thread.start();
+            thread.join();
+        }
+        assertTrue(histogram.recorders() <= LatencyHistogram.RECORDERS);
+        assertEquals(1000, histogram.snapshot().getCount());
+    }
+
+}
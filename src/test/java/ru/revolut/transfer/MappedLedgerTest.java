@@ -0,0 +1,119 @@
+package ru.revolut.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Balances kept in a memory mapped file should survive a restart of the engine.
+ */
+public class MappedLedgerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PaymentEngineConfig config(Path file) {
+        PaymentEngineConfig config = new PaymentEngineConfig();
+        config.setLedgerFile(file.toString());
+        return config;
+    }
+
+    @Test
+    public void balances_should_be_kept_in_file_across_restart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ledger");
+        PaymentEngine engine = new PaymentEngine(config(file));
+        try {
+            // the file is indexed by account number, there is nothing to presize
+            engine.presize(1_000_000);
+            engine.createAccountCents(1, 10_000);
+            // far from the first account, so the file stays sparse between them
+            engine.createAccountCents(300_000_000, 0);
+            engine.transferCents(1, 300_000_000, 2_500);
+            try {
+                engine.transferCents(1, 300_000_000, 7_501);
+                fail("Transfer should not overdraw the account");
+            } catch (PaymentEngineException e) {
+                assertEquals(ErrorCode.INSUFFICIENT_FUNDS, e.getCode());
+            }
+            try {
+                engine.transferCents(1, 2, 1);
+                fail("Transfer to absent account should be rejected");
+            } catch (PaymentEngineException e) {
+                assertEquals(ErrorCode.ACCOUNT_NOT_FOUND, e.getCode());
+            }
+            try {
+                engine.createAccountCents(1, 0);
+                fail("Account should not be created twice");
+            } catch (PaymentEngineException e) {
+                assertEquals(ErrorCode.ACCOUNT_EXISTS, e.getCode());
+            }
+            try {
+                engine.holdCents(1, 100, 0);
+                fail("Holds should be rejected by the mapped ledger");
+            } catch (PaymentEngineException e) {
+                assertEquals(ErrorCode.UNPROCESSABLE, e.getCode());
+            }
+        } finally {
+            engine.close();
+        }
+
+        engine = new PaymentEngine(config(file));
+        try {
+            List<Integer> numbers = new ArrayList<>();
+            assertEquals(-1, engine.scanAccounts(0, Integer.MAX_VALUE, 10, (number, balance) -> numbers.add(number)));
+            assertEquals(2, numbers.size());
+            assertEquals(300_000_000, (int) numbers.get(1));
+            assertEquals(7_500, engine.getAccountBalanceCents(1));
+            assertEquals(2_500, engine.getAccountBalanceCents(300_000_000));
+            engine.reset();
+            try {
+                engine.getAccountBalanceCents(1);
+                fail("Reset should wipe the file");
+            } catch (PaymentEngineException e) {
+                assertEquals(ErrorCode.ACCOUNT_NOT_FOUND, e.getCode());
+            }
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void interrupted_transfer_should_be_completed_on_open() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ledger");
+        PaymentEngine engine = new PaymentEngine(config(file));
+        try {
+            engine.createAccountCents(1, 100);
+            engine.createAccountCents(2, 0);
+        } finally {
+            engine.close();
+        }
+        // intent of a transfer of 40 cents from account 1 to account 2 left by a killed process, stripe 1 is at 64+32
+        ByteBuffer intent = ByteBuffer.allocate(32).order(ByteOrder.nativeOrder());
+        intent.putLong(1).putInt(1).putInt(2).putLong(60 | Long.MIN_VALUE).putLong(40 | Long.MIN_VALUE).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(intent, 64+32);
+        }
+
+        engine = new PaymentEngine(config(file));
+        try {
+            assertEquals(60, engine.getAccountBalanceCents(1));
+            assertEquals(40, engine.getAccountBalanceCents(2));
+            engine.transferCents(2, 1, 40);
+            assertEquals(100, engine.getAccountBalanceCents(1));
+        } finally {
+            engine.close();
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RateLimiterTest {
+
+    @Test
+    public void burst_should_be_allowed_and_then_the_rate() {
+        RateLimiter limiter = new RateLimiter(10, 3, 1024);
+        long second = 1_000_000_000L;
+        for (int i=0;i<3;i++) assertEquals(0, limiter.acquire(42, second));
+        assertEquals(second/10, limiter.acquire(42, second));
+        // other keys have their own buckets
+        assertEquals(0, limiter.acquire(43, second));
+        // a token is added every 100 ms
+        assertEquals(0, limiter.acquire(42, second+second/10));
+        assertTrue(limiter.acquire(42, second+second/10) > 0);
+        // an idle bucket is full again
+        for (int i=0;i<3;i++) assertEquals(0, limiter.acquire(42, 3*second));
+        assertTrue(limiter.acquire(42, 3*second) > 0);
+    }
+
+}
@@ -8,6 +8,7 @@ import java.math.BigDecimal;
 
 import static io.restassured.RestAssured.*;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertTrue;
 
 
 public class RestApiUnitTest {
@@ -49,23 +50,55 @@ public class RestApiUnitTest {
     public void account_creation_with_illegal_arguments_should_fail() {
         // create account with more then 2 digits after decimal point in balance value
         when().post("/account/6458/34.355").
-            then().statusCode(500);
+            then().statusCode(400);
         // create account with negative balance
         when().post("/account/6458/-34.35").
-            then().statusCode(500);
+            then().statusCode(400);
         // create account with negative account number
             when().post("/account/-6458/34.35").
-        then().statusCode(500);
+        then().statusCode(400);
         // create account with negative account number and balance
         when().post("/account/-6458/-34.35").
-            then().statusCode(500);
+            then().statusCode(400);
     }
 
     @Test
     public void request_for_non_existing_account_should_fail(){
         // retrieve non existing account
         when().get("/account/300").
-                then().statusCode(500);
+                then().statusCode(404);
+    }
+
+    @Test
+    public void rejections_should_get_status_of_their_error_code() {
+        when().post("/account/320/5.00").then().statusCode(200);
+        when().post("/account/320/5.00").
+                then().statusCode(409).body(equalTo("Account already exists"));
+        when().post("/account/321/0.00").then().statusCode(200);
+        when().put("/transfer/320/321/5.01").
+                then().statusCode(422).body(equalTo("Insufficient funds"));
+        when().put("/transfer/320/320/1.00").
+                then().statusCode(400);
+    }
+
+    @Test
+    public void hold_should_reserve_money_until_captured_or_released() {
+        when().post("/account/330/100.00").then().statusCode(200);
+        when().post("/account/331/0.00").then().statusCode(200);
+        int hold = when().post("/account/330/hold/60.00").
+                then().statusCode(200).
+                    body("accountNumber", equalTo(330),
+                            "amount", equalTo(60.0f),
+                            "available", equalTo(40.0f)).
+                extract().path("id");
+        when().put("/transfer/330/331/40.01").then().statusCode(422);
+        when().put("/hold/"+hold+"/capture/331/25.00").then().statusCode(200);
+        when().get("/account/330").then().body("balance", equalTo(75.0f));
+        when().get("/account/331").then().body("balance", equalTo(25.0f));
+        when().delete("/hold/"+hold).then().statusCode(404);
+        hold = when().post("/account/330/hold/75.00?ttlSeconds=60").then().statusCode(200).extract().path("id");
+        when().delete("/hold/"+hold).then().statusCode(200);
+        when().put("/transfer/330/331/75.00").then().statusCode(200);
     }
 
     @Test
@@ -129,7 +162,7 @@ public class RestApiUnitTest {
                 then().statusCode(200);
         // transfer 120.46 units of money from account #250 to acount #280
         when().put("/transfer/250/280/120.46").
-                then().statusCode(500);
+                then().statusCode(422);
     }
 
     @Test
@@ -139,13 +172,210 @@ public class RestApiUnitTest {
                 then().statusCode(200);
         // trying to transfer from #150 to non-existing acount #180
         when().put("/transfer/150/180/11.17").
-                then().statusCode(500);
+                then().statusCode(404);
         // trying to transfer from #150 to non-existing acount #180
         when().put("/transfer/180/150/11.17").
-                then().statusCode(500);
+                then().statusCode(404);
         // trying to transfer from #150 to non-existing acount #180
         when().put("/transfer/170/180/11.17").
-                then().statusCode(500);
+                then().statusCode(404);
+    }
+
+    @Test
+    public void batch_money_transfer_should_report_each_transfer() {
+        when().post("/account/400/100.00").then().statusCode(200);
+        when().post("/account/410/0.00").then().statusCode(200);
+        when().post("/account/420/0.00").then().statusCode(200);
+        // the second transfer spends money credited by the first one, the third one lacks money
+        given().body("[{accountFromNumber:400,accountToNumber:410,amount:60.00}," +
+                      "{accountFromNumber:410,accountToNumber:420,amount:20.50}," +
+                      "{accountFromNumber:400,accountToNumber:420,amount:40.01}]").
+        when().post("/transfers").
+                then().
+                    statusCode(200).
+                    body("succeeded", equalTo(2),
+                            "failed", equalTo(1),
+                            "results.success", contains(true, true, false),
+                            "results[2].error", equalTo("Insufficient funds")
+                    );
+        when().get("/account/400").then().body("balance", equalTo(40.0f));
+        when().get("/account/410").then().body("balance", equalTo(39.5f));
+        when().get("/account/420").then().body("balance", equalTo(20.5f));
+    }
+
+    @Test
+    public void atomic_batch_money_transfer_should_be_applied_all_or_nothing() {
+        when().post("/account/500/100.00").then().statusCode(200);
+        when().post("/account/510/0.00").then().statusCode(200);
+        // the second transfer lacks money, so the first one must not be applied either
+        given().body("[{accountFromNumber:500,accountToNumber:510,amount:60.00}," +
+                      "{accountFromNumber:500,accountToNumber:510,amount:40.01}]").
+        when().post("/transfers?atomic=true").
+                then().
+                    statusCode(200).
+                    body("succeeded", equalTo(0),
+                            "failed", equalTo(2),
+                            "results[1].error", equalTo("Insufficient funds")
+                    );
+        when().get("/account/500").then().body("balance", equalTo(100.0f));
+        when().get("/account/510").then().body("balance", equalTo(0.0f));
+        // and it is applied when all transfers are fine
+        given().body("[{accountFromNumber:500,accountToNumber:510,amount:60.00}," +
+                      "{accountFromNumber:510,accountToNumber:500,amount:10.00}]").
+        when().post("/transfers?atomic=true").
+                then().
+                    statusCode(200).
+                    body("succeeded", equalTo(2));
+        when().get("/account/500").then().body("balance", equalTo(50.0f));
+        when().get("/account/510").then().body("balance", equalTo(50.0f));
+    }
+
+    @Test
+    public void transfer_repeated_with_same_idempotency_key_should_be_applied_once() {
+        when().post("/account/600/100.00").then().statusCode(200);
+        when().post("/account/610/0.00").then().statusCode(200);
+        given().header("Idempotency-Key", "c0ffee").when().put("/transfer/600/610/30.00").then().statusCode(200);
+        // a retry of the same request succeeds without moving money again
+        given().header("Idempotency-Key", "c0ffee").when().put("/transfer/600/610/30.00").then().statusCode(200);
+        when().get("/account/600").then().body("balance", equalTo(70.0f));
+        // the key must not be reused for another request
+        given().header("Idempotency-Key", "c0ffee").when().put("/transfer/600/610/31.00").then().statusCode(422);
+        // a batch retry gets the outcome of the first attempt
+        for (int attempt=0;attempt<2;attempt++)
+            given().header("Idempotency-Key", "batch-1").
+                    body("[{accountFromNumber:600,accountToNumber:610,amount:50.00}," +
+                          "{accountFromNumber:600,accountToNumber:610,amount:50.00}]").
+            when().post("/transfers").
+                    then().
+                        statusCode(200).
+                        body("succeeded", equalTo(1),
+                                "results[1].error", equalTo("Insufficient funds"));
+        when().get("/account/610").then().body("balance", equalTo(80.0f));
+    }
+
+    @Test
+    public void metrics_should_report_latencies_and_rejections() {
+        when().post("/account/700/1.00").then().statusCode(200);
+        when().put("/transfer/700/701/0.50").then().statusCode(404);
+        when().get("/metrics").
+                then().
+                    statusCode(200).
+                    contentType(startsWith("text/plain")).
+                    body(containsString("transfer_api_request_seconds_count{route=\"PUT /transfer\"}"),
+                            containsString("transfer_engine_operation_seconds{operation=\"transfer\",quantile=\"0.99\"}"),
+                            containsString("transfer_rejections_total{code=\"ACCOUNT_NOT_FOUND\"}"));
+    }
+
+    @Test
+    public void server_with_virtual_threads_should_serve_requests() throws Exception {
+        MoneyTransferAPI.stop();
+        Thread.sleep(100);
+        ServerConfig config = new ServerConfig();
+        config.setThreadMode(ServerConfig.ThreadMode.VIRTUAL);
+        config.setMaxConcurrentRequests(2);
+        // runs on a thread pool when Java has no virtual threads
+        MoneyTransferAPI.start(config);
+        when().post("/account/800/10.00").then().statusCode(200);
+        when().post("/account/810/0.00").then().statusCode(200);
+        when().put("/transfer/800/810/2.50").then().statusCode(200);
+        when().get("/account/810").then().statusCode(200).body("balance", equalTo(2.5f));
+    }
+
+    @Test
+    public void requests_on_virtual_threads_should_not_grow_per_thread_state() throws Exception {
+        MoneyTransferAPI.stop();
+        Thread.sleep(100);
+        ServerConfig config = new ServerConfig();
+        config.setThreadMode(ServerConfig.ThreadMode.VIRTUAL);
+        MoneyTransferAPI.start(config);
+        when().post("/account/840/10.00").then().statusCode(200);
+        Metrics metrics = PaymentEngine.getInstance().getMetrics();
+        // every request runs on a new thread, none of them may leave anything behind
+        for (int i=0;i<2000;i++) when().get("/account/840").then().statusCode(200);
+        assertTrue(metrics.route("GET /account").recorders() <= LatencyHistogram.RECORDERS);
+        assertTrue(metrics.getAccountView.recorders() <= LatencyHistogram.RECORDERS);
+        assertTrue(AccountJson.pooledBuffers() <= AccountJson.POOLED_BUFFERS);
+    }
+
+    @Test
+    public void transfers_over_account_rate_should_be_rejected() throws Exception {
+        MoneyTransferAPI.stop();
+        Thread.sleep(100);
+        ServerConfig config = new ServerConfig();
+        config.setAccountRatePerSecond(0.01);
+        config.setAccountBurst(2);
+        MoneyTransferAPI.start(config);
+        when().post("/account/820/10.00").then().statusCode(200);
+        when().post("/account/830/10.00").then().statusCode(200);
+        when().put("/transfer/820/830/1.00").then().statusCode(200);
+        when().put("/transfer/820/830/1.00").then().statusCode(200);
+        when().put("/transfer/820/830/1.00").then().statusCode(429).header("Retry-After", "100");
+        // other accounts are not affected by the flood
+        when().put("/transfer/830/820/1.00").then().statusCode(200);
+        when().get("/account/820").then().body("balance", equalTo(9f));
+    }
+
+    @Test
+    public void bulk_account_import_should_report_failed_lines() {
+        when().post("/account/900/1.00").then().statusCode(200);
+        given().contentType("text/csv").
+                body("number,balance\n901,10.50\n900,2.00\n902,1.005\n\n903,0\n").
+        when().post("/accounts?expected=1000").
+                then().
+                    statusCode(200).
+                    body("created", equalTo(2),
+                            "failed", equalTo(2),
+                            "errors.line", contains(3, 4),
+                            "errors[0].error", equalTo("Account already exists"));
+        given().contentType("application/x-ndjson").
+                body("{\"number\": 904, \"balance\": 7.25}\n{\"number\": 905, \"balance\": \"1\"}\n{\"number\": 906}\n".getBytes()).
+        when().post("/accounts").
+                then().
+                    statusCode(200).
+                    body("created", equalTo(2),
+                            "errors[0].line", equalTo(3));
+        when().get("/account/901").then().body("balance", equalTo(10.5f));
+        when().get("/account/904").then().body("balance", equalTo(7.25f));
+    }
+
+    @Test
+    public void accounts_should_be_scanned_in_pages() {
+        for (int number : new int[]{70003, 70001, 1_000_000, 70002})
+            when().post("/account/{number}/1.50", number).then().statusCode(200);
+        when().get("/accounts?from=70000&limit=2").
+                then().
+                    statusCode(200).
+                    body("accounts.number", contains(70001, 70002),
+                            "accounts[0].balance", equalTo(1.5f),
+                            "next", equalTo(70003));
+        when().get("/accounts?from=70003&to=999999").
+                then().
+                    statusCode(200).
+                    body("accounts.number", contains(70003),
+                            "next", nullValue());
+        when().get("/accounts?from=-1").then().statusCode(400);
+    }
+
+    @Test
+    public void transactions_of_account_should_be_listed_in_pages() {
+        when().post("/account/80001/100").then().statusCode(200);
+        when().post("/account/80002/0").then().statusCode(200);
+        when().put("/transfer/80001/80002/10.50").then().statusCode(200);
+        when().put("/transfer/80002/80001/0.50").then().statusCode(200);
+        String cursor = when().get("/account/80001/transactions?limit=1").
+                then().
+                    statusCode(200).
+                    body("transactions.counterparty", contains(80002),
+                            "transactions[0].amount", equalTo(0.5f),
+                            "transactions[0].balance", equalTo(90f)).
+                    extract().path("next").toString();
+        when().get("/account/80001/transactions?before="+cursor).
+                then().
+                    statusCode(200).
+                    body("transactions.amount", contains(-10.5f),
+                            "next", nullValue());
+        when().get("/account/80002/transactions?before="+cursor).then().statusCode(404);
+        when().get("/account/80003/transactions").then().statusCode(404);
     }
 
 }
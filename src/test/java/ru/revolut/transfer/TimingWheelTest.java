@@ -0,0 +1,78 @@
+package ru.revolut.transfer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+public class TimingWheelTest {
+
+    private static final class Entry extends TimingWheel.Timer {
+        final long due;
+
+        Entry(long due) {
+            this.due = due;
+        }
+    }
+
+    @Test
+    public void timers_should_expire_at_their_ticks_across_levels() {
+        long start = 4000;
+        TimingWheel wheel = new TimingWheel(start);
+        Random random = new Random(7);
+        List<Entry> entries = new ArrayList<>();
+        for (int i=0;i<10000;i++){
+            // both near and far timers, which move down several levels
+            Entry entry = new Entry(start+1+(i%2==0 ? random.nextInt(100) : random.nextInt(1_000_000)));
+            wheel.schedule(entry, entry.due);
+            entries.add(entry);
+        }
+        List<TimingWheel.Timer> expired = new ArrayList<>();
+        int seen = 0;
+        for (long tick=start+1; tick<=start+1_000_000; tick+=1+random.nextInt(50)){
+            wheel.advance(tick, expired);
+            for (; seen<expired.size(); seen++){
+                long due = ((Entry) expired.get(seen)).due;
+                assertTrue("expired late or early: "+due+" at "+tick, due<=tick && due>tick-51);
+            }
+        }
+        wheel.advance(start+1_000_000, expired);
+        assertEquals(entries.size(), expired.size());
+    }
+
+    @Test
+    public void cancelled_timers_should_not_expire() {
+        TimingWheel wheel = new TimingWheel(0);
+        List<Entry> entries = new ArrayList<>();
+        for (int i=0;i<300;i++){
+            Entry entry = new Entry(1+i%3*100);
+            wheel.schedule(entry, entry.due);
+            entries.add(entry);
+        }
+        // heads, middles and tails of slots of different levels
+        for (int i=0;i<300;i+=2) assertTrue(wheel.cancel(entries.get(i)));
+        assertFalse(wheel.cancel(entries.get(0)));
+        List<TimingWheel.Timer> expired = new ArrayList<>();
+        wheel.advance(300, expired);
+        assertEquals(150, expired.size());
+        for (TimingWheel.Timer timer : expired) assertEquals(1, entries.indexOf(timer)%2);
+        assertFalse(wheel.cancel(expired.get(0)));
+    }
+
+    @Test
+    public void passed_tick_should_expire_on_the_next_one() {
+        TimingWheel wheel = new TimingWheel(100);
+        Entry entry = new Entry(0);
+        wheel.schedule(entry, 50);
+        List<TimingWheel.Timer> expired = new ArrayList<>();
+        wheel.advance(100, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(101, expired);
+        assertEquals(1, expired.size());
+    }
+
+}
@@ -0,0 +1,75 @@
+package ru.revolut.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class TransactionHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<long[]> read(TransactionHistory history, Account account, long before, int limit, long[] next) throws Exception {
+        List<long[]> entries = new ArrayList<>();
+        next[0] = history.read(account, before, limit,
+                (id, transfer, counterparty, amount, time, balance) -> entries.add(new long[]{id, transfer, counterparty, amount, balance}));
+        return entries;
+    }
+
+    @Test
+    public void transactions_of_account_should_be_read_from_newest_in_pages() throws Exception {
+        TransactionHistory history = new TransactionHistory(4, 4, null);
+        Account first = new Account(1, 0);
+        Account second = new Account(2, 0);
+        for (int i=1;i<=5;i++){
+            long transfer = history.record(first, -1, 2, -i, 100-i);
+            assertEquals(transfer, history.record(second, transfer, 1, i, i));
+        }
+        long[] next = new long[1];
+        List<long[]> page = read(history, first, -1, 3, next);
+        assertEquals(3, page.size());
+        assertArrayEquals(new long[]{8, 8, 2, -5, 95}, page.get(0));
+        assertEquals(-3, page.get(2)[3]);
+        assertEquals(page.get(2)[0], next[0]);
+        page = read(history, first, next[0], 3, next);
+        assertEquals(2, page.size());
+        assertArrayEquals(new long[]{0, 0, 2, -1, 99}, page.get(1));
+        assertEquals(-1, next[0]);
+        try {
+            read(history, second, 0, 3, next);
+            fail("Transaction of another account should not be a cursor");
+        } catch (PaymentEngineException e) {
+            assertEquals("Transaction is not found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void evicted_segments_should_end_transactions() throws Exception {
+        TransactionHistory history = new TransactionHistory(4, 2, folder.getRoot().toPath());
+        Account account = new Account(1, 0);
+        for (int i=0;i<20;i++) history.record(account, -1, 2, i, i);
+        long[] next = new long[1];
+        List<long[]> page = read(history, account, -1, 100, next);
+        assertEquals(8, page.size());
+        assertEquals(19, page.get(0)[3]);
+        assertEquals(12, page.get(7)[3]);
+        assertEquals(-1, next[0]);
+        // segment files are mapped and deleted right away
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void disabled_history_should_keep_nothing() throws Exception {
+        TransactionHistory history = new TransactionHistory(4, 0, null);
+        Account account = new Account(1, 0);
+        assertEquals(-1, history.record(account, -1, 2, 1, 1));
+        assertTrue(read(history, account, -1, 10, new long[1]).isEmpty());
+    }
+
+}
@@ -4,9 +4,15 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import ru.revolut.transfer.AccountView;
+import ru.revolut.transfer.ErrorCode;
 import ru.revolut.transfer.PaymentEngine;
+import ru.revolut.transfer.PaymentEngineConfig;
+import ru.revolut.transfer.PaymentEngineException;
+import ru.revolut.transfer.TransferRequest;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -17,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -187,6 +194,239 @@ public class PaymentEngineConcurrencyTest {
 
     }
 
+    @Test
+    public void cuncurrent_transfers_from_hot_account_should_not_break_ledger_consistency() throws Throwable {
+
+        // setting up test parameters
+        int numberOfTransferThreads = 10;
+        int numberOfTransfersPerOneThread = 20000;
+        BigDecimal initialMoneyAmount = new BigDecimal("100000.00");
+        int initialAccountNumber = 0;
+        BigDecimal moneyAmountPerOneTransfer = new BigDecimal("0.33");
+
+        // Creating initial source account and make it hot
+        PaymentEngine engine = PaymentEngine.getInstance();
+        engine.createAccount(initialAccountNumber,initialMoneyAmount);
+        engine.markAccountHot(initialAccountNumber);
+
+        Collection<MoneyTransferTask> transferTasks = new HashSet<>();
+        for (int i=1;i<=numberOfTransferThreads;i++){
+            transferTasks.add(
+                    new MoneyTransferTask(
+                            initialAccountNumber,
+                            initialAccountNumber+i,
+                            numberOfTransfersPerOneThread,
+                            moneyAmountPerOneTransfer
+                    )
+            );
+        }
+        ExecutorService executorService =  Executors.newFixedThreadPool(numberOfTransferThreads);
+        List<Future<MoneyTransferTaskResult>> futureTasksResults = executorService.invokeAll(transferTasks);
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        assertTrue("Concurrent money transfer tasks took too long time to finish", executorService.isTerminated());
+
+        // all transfers should succeed as there is enough money on the hot account overall
+        for (Future<MoneyTransferTaskResult> futureTaskResult:futureTasksResults){
+            MoneyTransferTaskResult result = futureTaskResult.get();
+            assertTrue(result.getExceptions().isEmpty());
+            assertEquals(result.getSuccessfullTransfersCounter(), numberOfTransfersPerOneThread);
+        }
+
+        // and the total of the hot account is exact
+        assertEquals(
+                "Hot account balance is incorrect",
+                initialMoneyAmount.subtract(
+                        new BigDecimal(numberOfTransfersPerOneThread * numberOfTransferThreads).multiply(moneyAmountPerOneTransfer)
+                ).stripTrailingZeros(),
+                engine.getAccountView(initialAccountNumber).getBalance().stripTrailingZeros()
+        );
+    }
+
+    @Test
+    public void cuncurrent_transfers_to_hot_account_should_be_drainable_at_once() throws Throwable {
+
+        int numberOfTransferThreads = 10;
+        int numberOfTransfersPerOneThread = 20000;
+        int hotAccountNumber = 0;
+        int drainAccountNumber = 1000;
+
+        // every thread owns its source account and credits the same hot account
+        PaymentEngine engine = PaymentEngine.getInstance();
+        engine.createAccount(hotAccountNumber, BigDecimal.ZERO);
+        engine.createAccount(drainAccountNumber, BigDecimal.ZERO);
+        engine.markAccountHot(hotAccountNumber);
+        ExecutorService executorService =  Executors.newFixedThreadPool(numberOfTransferThreads);
+        for (int i=1;i<=numberOfTransferThreads;i++){
+            int sourceAccountNumber = i;
+            engine.createAccount(sourceAccountNumber, new BigDecimal(numberOfTransfersPerOneThread));
+            executorService.submit(() -> {
+                for (int j=0;j<numberOfTransfersPerOneThread;j++)
+                    engine.transfer(sourceAccountNumber, hotAccountNumber, BigDecimal.ONE);
+                return null;
+            });
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        assertTrue("Concurrent money transfer tasks took too long time to finish", executorService.isTerminated());
+
+        BigDecimal expectedHotBalance = new BigDecimal(numberOfTransfersPerOneThread*numberOfTransferThreads);
+        assertEquals(expectedHotBalance.stripTrailingZeros(),
+                engine.getAccountView(hotAccountNumber).getBalance().stripTrailingZeros());
+
+        // money spread over stripes should be collected to pay out the whole balance in one transfer
+        try {
+            engine.transfer(hotAccountNumber, drainAccountNumber, expectedHotBalance.add(new BigDecimal("0.01")));
+            fail("Transfer of more than hot account total should fail");
+        } catch (PaymentEngineException e) {
+            assertEquals("Insufficient funds", e.getMessage());
+        }
+        engine.transfer(hotAccountNumber, drainAccountNumber, expectedHotBalance);
+        assertEquals(0, engine.getAccountView(hotAccountNumber).getBalance().signum());
+        assertEquals(expectedHotBalance.stripTrailingZeros(),
+                engine.getAccountView(drainAccountNumber).getBalance().stripTrailingZeros());
+    }
+
+    @Test
+    public void cuncurrent_batches_and_transfers_should_not_break_ledger_consistency() throws Throwable {
+
+        int numberOfAccounts = 20;
+        int numberOfThreads = 8;
+        int numberOfBatchesPerThread = 2000;
+        PaymentEngine engine = PaymentEngine.getInstance();
+        for (int i=0;i<numberOfAccounts;i++)
+            engine.createAccount(i, new BigDecimal("100.00"));
+        engine.markAccountHot(0);
+
+        // every thread applies batches of cyclic transfers over all accounts interleaved with single transfers
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++){
+            int shift = t;
+            executorService.submit(() -> {
+                for (int b=0;b<numberOfBatchesPerThread;b++){
+                    List<TransferRequest> batch = new ArrayList<>();
+                    for (int i=0;i<numberOfAccounts;i++)
+                        batch.add(new TransferRequest((i+shift)%numberOfAccounts, (i+shift+1)%numberOfAccounts, "1.01"));
+                    engine.transferBatch(batch, b%2==0);
+                    try {
+                        engine.transfer((b+shift+1)%numberOfAccounts, (b+shift)%numberOfAccounts, new BigDecimal("0.50"));
+                    } catch (PaymentEngineException e) {
+                        // insufficient funds is fine here
+                    }
+                }
+                return null;
+            });
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        assertTrue("Concurrent batches took too long time to finish, deadlock?", executorService.isTerminated());
+
+        BigDecimal finalOverallMoneyAmount = new BigDecimal("0.00");
+        for (int i=0;i<numberOfAccounts;i++)
+            finalOverallMoneyAmount = finalOverallMoneyAmount.add(engine.getAccountView(i).getBalance());
+        assertEquals("Ledger consistency is broken!",
+                new BigDecimal("100.00").multiply(new BigDecimal(numberOfAccounts)).stripTrailingZeros(),
+                finalOverallMoneyAmount.stripTrailingZeros());
+    }
+
+    @Test
+    public void snapshots_during_concurrent_transfers_should_conserve_money() throws Throwable {
+
+        int numberOfAccounts = 20;
+        int numberOfThreads = 8;
+        int numberOfTransfersPerThread = 20000;
+        PaymentEngine engine = PaymentEngine.getInstance();
+        int[] numbers = new int[numberOfAccounts];
+        for (int i=0;i<numberOfAccounts;i++){
+            numbers[i] = i;
+            engine.createAccountCents(i, 10000);
+        }
+        engine.markAccountHot(0);
+        long expectedTotal = 10000L*numberOfAccounts;
+
+        // transfers and batches go on while snapshots are taken, every snapshot must see all the money
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        for (int t=0;t<numberOfThreads;t++){
+            int shift = t;
+            executorService.submit(() -> {
+                for (int i=0;i<numberOfTransfersPerThread;i++){
+                    try {
+                        if (i%100==0) engine.transferBatch(Arrays.asList(new TransferRequest(i%numberOfAccounts, shift, "0.07"),
+                                new TransferRequest(shift, (i+1)%numberOfAccounts, "0.05")), true);
+                        else engine.transferCents((i+shift)%numberOfAccounts, (i*7+shift+1)%numberOfAccounts, 3);
+                    } catch (PaymentEngineException e) {
+                        // insufficient funds or transfer to the same account is fine here
+                    }
+                }
+                return null;
+            });
+        }
+        executorService.shutdown();
+        int snapshots = 0;
+        while (!executorService.isTerminated() || snapshots==0){
+            long total = 0;
+            for (long balance : engine.snapshotBalances(numbers)) total += balance;
+            assertEquals("Snapshot of accounts has lost money", expectedTotal, total);
+            assertEquals("Snapshot of all accounts has lost money", expectedTotal, engine.snapshotAccounts((number, balance) -> {}));
+            snapshots++;
+        }
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void concurrent_transfers_should_conserve_money_with_every_strategy() throws Throwable {
+
+        int numberOfAccounts = 16;
+        int numberOfThreads = 8;
+        int numberOfTransfersPerThread = 20000;
+        for (PaymentEngineConfig.TransferStrategy strategy : PaymentEngineConfig.TransferStrategy.values()){
+            PaymentEngineConfig config = new PaymentEngineConfig();
+            config.setTransferStrategy(strategy);
+            PaymentEngine engine = new PaymentEngine(config);
+            try {
+                for (int i=0;i<numberOfAccounts;i++) engine.createAccountCents(i, 1000);
+
+                // transfers go both ways between the same accounts, so that locks are taken in every order
+                ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+                List<Future<Object>> futures = new ArrayList<>();
+                for (int t=0;t<numberOfThreads;t++){
+                    int shift = t;
+                    futures.add(executorService.submit(() -> {
+                        for (int i=0;i<numberOfTransfersPerThread;i++){
+                            try {
+                                engine.transferCents((i+shift)%numberOfAccounts, (i*5+shift+1)%numberOfAccounts, 7);
+                            } catch (PaymentEngineException e) {
+                                // insufficient funds or transfer to the same account is fine here
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                executorService.shutdown();
+                assertTrue(strategy+" transfers took too long", executorService.awaitTermination(1, TimeUnit.MINUTES));
+                for (Future<Object> future : futures) future.get();
+
+                long total = 0;
+                for (int i=0;i<numberOfAccounts;i++){
+                    long balance = engine.getAccountBalanceCents(i);
+                    assertTrue(strategy+" produced negative balance", balance>=0);
+                    total += balance;
+                }
+                assertEquals(strategy+" broke ledger consistency", 1000L*numberOfAccounts, total);
+                if (strategy==PaymentEngineConfig.TransferStrategy.OPTIMISTIC){
+                    try {
+                        engine.holdCents(0, 1, 0);
+                        fail("Holds should be rejected with optimistic transfers");
+                    } catch (PaymentEngineException e) {
+                        assertEquals(ErrorCode.UNPROCESSABLE, e.getCode());
+                    }
+                }
+            } finally {
+                engine.close();
+            }
+        }
+    }
+
     @Test
     public void cyclic_concurrent_transfers_should_not_produce_deadlock(){
         /*